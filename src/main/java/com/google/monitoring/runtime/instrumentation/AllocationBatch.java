@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A batch of allocations passed to a {@link BatchSampler}.  The batch is
+ * stored by column: the i-th allocation is described by element i of each
+ * array, for i from 0 to {@link #length()} - 1.  The arrays may be longer
+ * than that, and are overwritten when the batch is reused.
+ */
+public final class AllocationBatch {
+  final int[] typeIds;
+  final int[] siteIds;
+  final int[] stackIds;
+  final int[] counts;
+  final long[] sizes;
+  final long[] timestamps;
+  final double[] weights;
+  final long[] threadIds;
+
+  // The allocated objects, when the recorder keeps them (see
+  // AllocationRecorder#setAsyncObjectReferences); only handed to per-event
+  // samplers.
+  final Object[] objects;
+
+  // Whether the per-event samplers still have to see each allocation, as
+  // opposed to having been invoked on the allocating thread already.
+  final boolean[] deferred;
+
+  int length;
+
+  AllocationBatch(int capacity) {
+    typeIds = new int[capacity];
+    siteIds = new int[capacity];
+    stackIds = new int[capacity];
+    counts = new int[capacity];
+    sizes = new long[capacity];
+    timestamps = new long[capacity];
+    weights = new double[capacity];
+    threadIds = new long[capacity];
+    objects = new Object[capacity];
+    deferred = new boolean[capacity];
+  }
+
+  /**
+   * Returns the number of allocations in this batch.
+   *
+   * @return the number of valid elements in each column.
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Returns the {@link TypeRegistry} IDs of the allocated types.
+   *
+   * @return the type ID column.
+   */
+  public int[] typeIds() {
+    return typeIds;
+  }
+
+  /**
+   * Returns the {@link AllocationSites} IDs of the allocation sites, -1 where
+   * the site is not known.
+   *
+   * @return the site ID column.
+   */
+  public int[] siteIds() {
+    return siteIds;
+  }
+
+  /**
+   * Returns the {@link CallStacks} IDs of the allocating stacks, -1 where no
+   * stack was captured (see {@link AllocationRecorder#setStackDepth(int)}).
+   *
+   * @return the stack ID column.
+   */
+  public int[] stackIds() {
+    return stackIds;
+  }
+
+  /**
+   * Returns the array lengths of the allocations, -1 for objects that are
+   * not arrays (see {@link Sampler#sampleAllocation}).
+   *
+   * @return the count column.
+   */
+  public int[] counts() {
+    return counts;
+  }
+
+  /**
+   * Returns the sizes of the allocated objects, in bytes.
+   *
+   * @return the size column.
+   */
+  public long[] sizes() {
+    return sizes;
+  }
+
+  /**
+   * Returns the times of the allocations, as given by
+   * {@link System#nanoTime()}.
+   *
+   * @return the timestamp column.
+   */
+  public long[] timestamps() {
+    return timestamps;
+  }
+
+  /**
+   * Returns the number of allocations each sampled allocation stands for
+   * (see {@link WeightedSampler}); all ones when every allocation is
+   * recorded.
+   *
+   * @return the weight column.
+   */
+  public double[] weights() {
+    return weights;
+  }
+
+  /**
+   * Returns the IDs (see {@link Thread#getId()}) of the allocating threads.
+   *
+   * @return the thread ID column.
+   */
+  public long[] threadIds() {
+    return threadIds;
+  }
+}
@@ -31,14 +31,68 @@ import org.objectweb.asm.commons.JSRInlinerAdapter;
  * @author fischman@google.com (Ami Fischman) (Original Author)
  */
 class AllocationClassAdapter extends ClassVisitor {
+  /**
+   * Whether to emit invokedynamic probes (see {@link RecorderCallSites})
+   * instead of static calls to the recorder, where possible.
+   */
+  static boolean invokeDynamicProbes;
+
+  /**
+   * Whether to emit count-only probes (see
+   * {@link AllocationRecorder#countAllocation(int, Class, int)}), which
+   * are not passed the new objects.
+   */
+  static boolean countOnlyProbes;
+
   private final String recorderClass;
   private final String recorderMethod;
+  private final ClassLoader loader;
+  // Which methods, by position in the class file, to rewrite; null means
+  // all of them.
+  private final boolean[] methodsToRewrite;
+  private int methodIndex;
+  private boolean useInvokeDynamic;
+  private boolean countOnly;
+  private String className;
 
   public AllocationClassAdapter(ClassVisitor cv, String recorderClass,
-      String recorderMethod) {
+      String recorderMethod, ClassLoader loader) {
+    this(cv, recorderClass, recorderMethod, loader, null);
+  }
+
+  /**
+   * @param methodsToRewrite for each method of the class, in the order they
+   *     are visited, whether it is to be rewritten (see
+   *     {@link AllocationScanner#allocatingMethods(byte[])}); or null to
+   *     rewrite every method.  The other methods are passed through
+   *     unchanged.
+   */
+  public AllocationClassAdapter(ClassVisitor cv, String recorderClass,
+      String recorderMethod, ClassLoader loader, boolean[] methodsToRewrite) {
     super(Opcodes.ASM5, cv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.loader = loader;
+    this.methodsToRewrite = methodsToRewrite;
+  }
+
+  @Override
+  public void visit(int version, int access, String name, String signature,
+      String superName, String[] interfaces) {
+    // invokedynamic needs a version 51 (Java 7) class file, and only works
+    // for the stock recorder, whose samplers decide whether probes are
+    // enabled.  Classes loaded by the bootstrap class loader keep static
+    // calls: linking a probe runs JDK code, which could reach the very probe
+    // that is being linked.
+    useInvokeDynamic = invokeDynamicProbes &&
+        (version & 0xFFFF) >= Opcodes.V1_7 &&
+        loader != null &&
+        AllocationInstrumenter.DEFAULT_RECORDER_CLASS.equals(recorderClass);
+    // Count-only probes load class constants, which need a version 49
+    // (Java 5) class file.
+    countOnly = countOnlyProbes && (version & 0xFFFF) >= Opcodes.V1_5;
+    className = name;
+    super.visit(version, access, name, signature, superName, interfaces);
   }
 
   /**
@@ -49,6 +103,16 @@ class AllocationClassAdapter extends ClassVisitor {
   @Override
   public MethodVisitor visitMethod(int access, String base, String desc,
       String signature, String[] exceptions) {
+    int index = methodIndex++;
+    if (methodsToRewrite != null && index < methodsToRewrite.length &&
+        !methodsToRewrite[index]) {
+      // Lets ASM copy the method without parsing it or computing its
+      // frames, which would need the class hierarchy.
+      return (cv instanceof VerifyingClassAdapter) ?
+          ((VerifyingClassAdapter) cv).visitUnchangedMethod(
+              access, base, desc, signature, exceptions) :
+          cv.visitMethod(access, base, desc, signature, exceptions);
+    }
     MethodVisitor mv =
       cv.visitMethod(access, base, desc, signature, exceptions);
 
@@ -60,7 +124,8 @@ class AllocationClassAdapter extends ClassVisitor {
       JSRInlinerAdapter jsria = new JSRInlinerAdapter(
           mv, access, base, desc, signature, exceptions);
       AllocationMethodAdapter aimv =
-        new AllocationMethodAdapter(jsria, recorderClass, recorderMethod);
+        new AllocationMethodAdapter(jsria, recorderClass, recorderMethod,
+            useInvokeDynamic, className, base, desc, countOnly);
       LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
       aimv.lvs = lvs;
       mv = lvs;
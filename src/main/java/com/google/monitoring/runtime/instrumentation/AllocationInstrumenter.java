@@ -20,13 +20,20 @@ import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +47,10 @@ import java.util.logging.Logger;
  * @author Jeremy Manson
  */
 public class AllocationInstrumenter implements ClassFileTransformer {
+  // The internal name of the stock recorder class.
+  static final String DEFAULT_RECORDER_CLASS =
+      "com/google/monitoring/runtime/instrumentation/AllocationRecorder";
+
    static final Logger logger =
        Logger.getLogger(AllocationInstrumenter.class.getName());
 
@@ -51,6 +62,50 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   // guarantee programmatically.
   private static volatile boolean canRewriteBootstrap;
 
+  // The include and exclude patterns given to the agent.
+  private static volatile ClassFilter classFilter = ClassFilter.ACCEPT_ALL;
+
+  // Whether the agent is attached, with or without a transformer (it has
+  // none in manualOnly mode).  Guarded by the class lock.
+  private static boolean attached;
+
+  // The installed transformer and the instrumentation it was installed with,
+  // or null if no transformer is installed.  Guarded by the class lock.
+  private static AllocationInstrumenter transformer;
+  private static Instrumentation instrumentation;
+
+  // Whether premain has done the setup that is done once per process:
+  // calibrating ArraySizes and loading the classes instrumentation needs.
+  // Both are kept across detach() and a later attach.  Guarded by the class
+  // lock.
+  private static boolean initialized;
+
+  // A class file and what transform() turned it into.
+  private static final class Rewrite {
+    final byte[] input;
+    final byte[] output;
+
+    Rewrite(byte[] input, byte[] output) {
+      this.input = input;
+      this.output = output;
+    }
+  }
+
+  // The last rewrite of each class that has had constructor callbacks.  The
+  // ConstructorInstrumenter retransforms such a class whenever its
+  // callbacks change, and the allocation probes come out the same every
+  // time, so they are only worked out once.  Weakly keyed, so that classes
+  // can still be unloaded; cleared by detach(), since the next attach may
+  // use different arguments.
+  private static final Map<Class<?>, Rewrite> rewrites =
+      Collections.synchronizedMap(new WeakHashMap<Class<?>, Rewrite>());
+
+  // The internal names of the classes this agent has rewritten, so that
+  // detach() can restore them.  Names rather than classes, so that class
+  // loaders can still be unloaded.
+  private static final Set<String> instrumentedClasses =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   static boolean canRewriteClass(String className, ClassLoader loader) {
     // There are two conditions under which we don't rewrite:
     //  1. If className was loaded by the bootstrap class loader and
@@ -62,6 +117,12 @@ public class AllocationInstrumenter implements ClassFileTransformer {
         className.startsWith("java/lang/ThreadLocal")) {
       return false;
     }
+    // The agent's own classes (including the embedded copy of ASM) are
+    // never rewritten; among other things, this keeps the recorder from
+    // recursing into itself when it allocates its per-thread state.
+    if (className.startsWith("com/google/monitoring/runtime/instrumentation/")) {
+      return false;
+    }
     // third_party/java/webwork/*/ognl.jar contains bad class files.  Ugh.
     if (className.startsWith("ognl/")) {
       return false;
@@ -73,19 +134,221 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   // No instantiating me except in premain() or in {@link JarClassTransformer}.
   AllocationInstrumenter() { }
 
+  /**
+   * The entry point of an agent loaded into a running JVM, for example with
+   * <code>com.sun.tools.attach.VirtualMachine.loadAgent()</code>.  Takes the
+   * same arguments as {@link #premain}, and rewrites the classes that are
+   * already loaded.  Loading the agent again with the argument
+   * <code>detach</code> calls {@link #detach()}.
+   *
+   * @param agentArgs the agent arguments, separated by commas.
+   * @param inst the instrumentation object of the JVM.
+   */
+  public static void agentmain(String agentArgs, Instrumentation inst) {
+    if ("detach".equals(agentArgs)) {
+      detach();
+      return;
+    }
+    // Held throughout, so that two concurrent attaches cannot both get
+    // past the check.
+    synchronized (AllocationInstrumenter.class) {
+      if (attached) {
+        System.err.println("AllocationInstrumenter is already attached; " +
+            "ignoring arguments " + agentArgs);
+        return;
+      }
+      premain(agentArgs, inst);
+    }
+  }
+
+  /**
+   * Removes the allocation instrumentation from every class it was applied
+   * to.  The agent's transformer is uninstalled and the rewritten classes
+   * are retransformed, upon which the JVM restores the class files they
+   * were loaded from, so that no probes remain in application code.
+   * Samplers stay registered, but are no longer called, and the threads
+   * that dispatch asynchronous events and track the live heap are stopped.
+   * The agent can be attached again afterwards, which restarts them.
+   * Constructor callbacks (see {@link ConstructorInstrumenter}) are not
+   * affected.
+   *
+   * @return the number of classes that were restored.
+   */
+  public static int detach() {
+    Instrumentation inst;
+    synchronized (AllocationInstrumenter.class) {
+      if (!attached) {
+        return 0;
+      }
+      attached = false;
+      inst = instrumentation;
+      if (inst != null) {
+        inst.removeTransformer(transformer);
+        transformer = null;
+        instrumentation = null;
+      }
+    }
+    AsyncDispatcher.stop();
+    LiveHeap.stopReaper();
+    if (inst == null) {
+      return 0;
+    }
+
+    List<Class<?>> classList = new ArrayList<Class<?>>();
+    for (Class<?> cls : inst.getAllLoadedClasses()) {
+      if (instrumentedClasses.contains(cls.getName().replace('.', '/')) &&
+          inst.isModifiableClass(cls)) {
+        classList.add(cls);
+      }
+    }
+    instrumentedClasses.clear();
+    rewrites.clear();
+    int restored = 0;
+    // One class at a time, so that a class that cannot be restored does not
+    // keep the others from being restored.
+    for (Class<?> cls : classList) {
+      try {
+        inst.retransformClasses(cls);
+        restored++;
+      } catch (Throwable e) {
+        logger.log(Level.WARNING, "Could not restore class " + cls.getName(),
+            e);
+      }
+    }
+    return restored;
+  }
+
   public static void premain(String agentArgs, Instrumentation inst) {
+    boolean firstAttach;
+    synchronized (AllocationInstrumenter.class) {
+      firstAttach = !initialized;
+      initialized = true;
+      attached = true;
+    }
     AllocationRecorder.setInstrumentation(inst);
+    if (firstAttach) {
+      ArraySizes.calibrate(inst);
+    }
+    List<String> args = Arrays.asList(
+        agentArgs == null ? new String[0] : agentArgs.split(","));
+
+    // "include=PATTERN" and "exclude=PATTERN" (both repeatable), and
+    // "filterFile=FILE", restrict the classes that are rewritten; see
+    // ClassFilter.
+    List<String> includes = getArgValues(args, "include");
+    List<String> excludes = getArgValues(args, "exclude");
+    String filterFile = getArgValue(args, "filterFile");
+    if (filterFile != null) {
+      try {
+        ClassFilter.readConfig(new File(filterFile), includes, excludes);
+      } catch (IOException e) {
+        System.err.println("Ignoring filterFile: " + e.getMessage());
+      }
+    }
+    classFilter = ClassFilter.compile(includes, excludes);
+
+    // "samplingInterval=N" turns on sampling with a mean of N bytes between
+    // samples; see AllocationRecorder#setSamplingInterval.
+    String samplingInterval = getArgValue(args, "samplingInterval");
+    if (samplingInterval != null) {
+      try {
+        AllocationRecorder.setSamplingInterval(
+            Long.parseLong(samplingInterval));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Ignoring invalid samplingInterval: " +
+            samplingInterval);
+      }
+    }
+
+    // "inlineSampling=N" guards each instrumented allocation site with an
+    // inline countdown; see AllocationRecorder#setInlineSamplingInterval.
+    String inlineSampling = getArgValue(args, "inlineSampling");
+    if (inlineSampling != null) {
+      try {
+        AllocationRecorder.setInlineSamplingInterval(
+            Integer.parseInt(inlineSampling));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Ignoring invalid inlineSampling: " +
+            inlineSampling);
+      }
+    }
+
+    // "stackDepth=N" captures up to N frames for each sampled allocation;
+    // see AllocationRecorder#setStackDepth.
+    String stackDepth = getArgValue(args, "stackDepth");
+    if (stackDepth != null) {
+      try {
+        AllocationRecorder.setStackDepth(Integer.parseInt(stackDepth));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Ignoring invalid stackDepth: " + stackDepth);
+      }
+    }
+
+    // "async" hands sampled allocations to a background thread; see
+    // AllocationRecorder#setAsyncDispatch.  "asyncObjectReferences" lets
+    // that thread pass the allocated objects on to the samplers.
+    AllocationRecorder.setAsyncObjectReferences(
+        args.contains("asyncObjectReferences"));
+    if (args.contains("async")) {
+      AllocationRecorder.setAsyncDispatch(true);
+    }
+
+    // "eventLog=DIR" logs every recorded allocation to segment files in DIR;
+    // see EventLogWriter.
+    String eventLog = getArgValue(args, "eventLog");
+    if (eventLog != null) {
+      try {
+        AllocationRecorderControl.continueBuiltInEventLog(eventLog);
+      } catch (IOException e) {
+        System.err.println("Cannot write event log to " + eventLog + ": " +
+            e);
+      }
+    }
+
+    // "siteCounters" keeps per-allocation-site totals; see AllocationSites.
+    if (args.contains("siteCounters")) {
+      AllocationSites.setCountingEnabled(true);
+    }
+
+    // "liveHeap" tracks sampled objects until they are collected; see
+    // LiveHeap.
+    if (args.contains("liveHeap")) {
+      LiveHeap.setEnabled(true);
+    }
+
+    // "jmx" registers an AllocationRecorderMXBean with the platform MBean
+    // server.
+    if (args.contains("jmx")) {
+      try {
+        AllocationRecorderControl.register();
+      } catch (Exception e) {
+        System.err.println("Cannot register the allocation recorder MBean: " +
+            e);
+      }
+    }
+
+    // Restart the threads detach() stopped, if the settings they serve
+    // survived it.
+    if (AllocationRecorder.isAsyncDispatch() ||
+        AllocationRecorder.getBatchSamplers() != null) {
+      AsyncDispatcher.start();
+    }
+    if (LiveHeap.isEnabled()) {
+      LiveHeap.startReaper();
+    }
 
     // Force eager class loading here; we need these classes in order to do
     // instrumentation, so if we don't do the eager class loading, we
     // get a ClassCircularityError when trying to load and instrument
     // this class.
-    try {
-      Class.forName("sun.security.provider.PolicyFile");
-      Class.forName("java.util.ResourceBundle");
-      Class.forName("java.util.Date");
-    } catch (Throwable t) {
-      // NOP
+    if (firstAttach) {
+      try {
+        Class.forName("sun.security.provider.PolicyFile");
+        Class.forName("java.util.ResourceBundle");
+        Class.forName("java.util.Date");
+      } catch (Throwable t) {
+        // NOP
+      }
     }
 
     if (!inst.isRetransformClassesSupported()) {
@@ -105,24 +368,65 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     }
 
     canRewriteBootstrap = true;
-    List<String> args = Arrays.asList(
-        agentArgs == null ? new String[0] : agentArgs.split(","));
+
+    // "invokedynamic" makes allocation sites call the recorder through
+    // probes that cost nothing while no samplers are registered.
+    AllocationClassAdapter.invokeDynamicProbes = args.contains("invokedynamic");
+
+    // "countOnly" makes allocation sites only update the per-site totals,
+    // without passing the new objects anywhere, so that allocations the JIT
+    // would otherwise eliminate stay eliminated.  Samplers are not called
+    // from such sites.  Set on every attach, like "invokedynamic", so that
+    // re-attaching without it goes back to the regular probes.
+    AllocationClassAdapter.countOnlyProbes = args.contains("countOnly");
+    if (AllocationClassAdapter.countOnlyProbes) {
+      AllocationSites.setCountingEnabled(true);
+    }
 
     // When "subclassesAlso" is specified, samplers are also invoked when
     // SubclassOfA.<init> is called while only class A is specified to be
     // instrumented.
     ConstructorInstrumenter.subclassesAlso = args.contains("subclassesAlso");
-    inst.addTransformer(new ConstructorInstrumenter(),
-        inst.isRetransformClassesSupported());
-
-    if (!args.contains("manualOnly")) {
+    if (args.contains("manualOnly")) {
+      ConstructorInstrumenter.install(inst);
+    } else {
       bootstrap(inst);
     }
   }
 
+  // Returns the value of the first "key=value" agent argument with the given
+  // key, or null if there is none.
+  private static String getArgValue(List<String> args, String key) {
+    String prefix = key + "=";
+    for (String arg : args) {
+      if (arg.startsWith(prefix)) {
+        return arg.substring(prefix.length());
+      }
+    }
+    return null;
+  }
+
+  // Returns the values of all "key=value" agent arguments with the given
+  // key.
+  private static List<String> getArgValues(List<String> args, String key) {
+    String prefix = key + "=";
+    List<String> values = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.startsWith(prefix)) {
+        values.add(arg.substring(prefix.length()));
+      }
+    }
+    return values;
+  }
+
   private static void bootstrap(Instrumentation inst) {
-    inst.addTransformer(new AllocationInstrumenter(),
-        inst.isRetransformClassesSupported());
+    AllocationInstrumenter instrumenter = new AllocationInstrumenter();
+    synchronized (AllocationInstrumenter.class) {
+      transformer = instrumenter;
+      instrumentation = inst;
+    }
+    inst.addTransformer(instrumenter, inst.isRetransformClassesSupported());
+    ConstructorInstrumenter.install(inst);
 
     if (!canRewriteBootstrap) {
       return;
@@ -152,11 +456,50 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   @Override public byte[] transform(
       ClassLoader loader, String className, Class<?> classBeingRedefined,
       ProtectionDomain protectionDomain, byte[] origBytes) {
-    if (!canRewriteClass(className, loader)) {
+    if (className == null || !canRewriteClass(className, loader)) {
+      return null;
+    }
+    // Checked before anything is parsed, so that filtered classes cost
+    // next to nothing.
+    if (!classFilter.accepts(className)) {
+      TransformStatistics.classFiltered();
+      return null;
+    }
+    boolean[] methods = AllocationScanner.allocatingMethods(origBytes);
+    if (!AllocationScanner.hasAllocationSites(methods)) {
+      TransformStatistics.classSkipped();
       return null;
     }
 
-    return instrument(origBytes, loader);
+    long start = System.nanoTime();
+    try {
+      Rewrite previous = null;
+      boolean reusable = false;
+      if (classBeingRedefined != null) {
+        previous = rewrites.get(classBeingRedefined);
+        reusable = previous != null ||
+            ConstructorInstrumenter.hasCallbacks(classBeingRedefined);
+      }
+      byte[] result;
+      if (previous != null && Arrays.equals(previous.input, origBytes)) {
+        result = previous.output;
+      } else {
+        result = instrument(origBytes, DEFAULT_RECORDER_CLASS,
+            "recordAllocation", loader, methods);
+        // VerifyingClassAdapter hands back the original bytes when the
+        // class could not be rewritten; there is nothing to restore then.
+        if (result == origBytes) {
+          return null;
+        }
+        if (reusable) {
+          rewrites.put(classBeingRedefined, new Rewrite(origBytes, result));
+        }
+      }
+      instrumentedClasses.add(className);
+      return result;
+    } finally {
+      TransformStatistics.classTransformed(System.nanoTime() - start);
+    }
   }
 
   /**
@@ -175,26 +518,40 @@ public class AllocationInstrumenter implements ClassFileTransformer {
    */
   public static byte[] instrument(byte[] originalBytes, String recorderClass,
       String recorderMethod, ClassLoader loader) {
+    return instrument(originalBytes, recorderClass, recorderMethod, loader,
+        AllocationScanner.allocatingMethods(originalBytes));
+  }
+
+  // methods says which methods to rewrite, as computed by
+  // AllocationScanner#allocatingMethods.
+  private static byte[] instrument(byte[] originalBytes, String recorderClass,
+      String recorderMethod, ClassLoader loader, boolean[] methods) {
     try {
       ClassReader cr = new ClassReader(originalBytes);
       // The verifier in JDK7+ requires accurate stackmaps, so we use
-      // COMPUTE_FRAMES.
+      // COMPUTE_FRAMES.  Methods without allocation sites are not rewritten:
+      // because the writer shares cr's constant pool, ASM copies them, with
+      // their original frames, straight from the original bytes, so frames
+      // are only computed for the methods that change.
       ClassWriter cw =
           new StaticClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
 
       VerifyingClassAdapter vcw =
           new VerifyingClassAdapter(cw, originalBytes, cr.getClassName());
       ClassVisitor adapter =
-          new AllocationClassAdapter(vcw, recorderClass, recorderMethod);
+          new AllocationClassAdapter(vcw, recorderClass, recorderMethod,
+              loader, methods);
 
       cr.accept(adapter, ClassReader.SKIP_FRAMES);
 
       return vcw.toByteArray();
     } catch (RuntimeException e) {
       logger.log(Level.WARNING, "Failed to instrument class.", e);
+      TransformStatistics.classFailed();
       throw e;
     } catch (Error e) {
       logger.log(Level.WARNING, "Failed to instrument class.", e);
+      TransformStatistics.classFailed();
       throw e;
     }
   }
@@ -211,7 +568,7 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   public static byte[] instrument(byte[] originalBytes, ClassLoader loader) {
     return instrument(
         originalBytes,
-        "com/google/monitoring/runtime/instrumentation/AllocationRecorder",
+        DEFAULT_RECORDER_CLASS,
         "recordAllocation",
         loader);
   }
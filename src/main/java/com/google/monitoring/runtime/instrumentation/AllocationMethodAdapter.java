@@ -16,6 +16,7 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -50,6 +51,24 @@ class AllocationMethodAdapter extends MethodVisitor {
   public static final String RECORDER_SIGNATURE =
       "(ILjava/lang/String;Ljava/lang/Object;)V";
 
+  /**
+   * Like RECORDER_SIGNATURE, but the descriptor of the type being allocated
+   * is replaced by its {@link TypeRegistry} ID, an int.  This is used instead
+   * of RECORDER_SIGNATURE with the stock recorder, {@link AllocationRecorder}.
+   */
+  public static final String TYPE_ID_RECORDER_SIGNATURE =
+      "(IILjava/lang/Object;)V";
+
+  /**
+   * Like RECORDER_SIGNATURE, but the type being allocated is given as a
+   * <code>Class</code>, so that the recorder can look up its descriptor
+   * rather than have the instrumented code compute it on every allocation.
+   * This is used instead of RECORDER_SIGNATURE with the stock recorder when
+   * the type is only known at runtime.
+   */
+  public static final String CLASS_COUNT_RECORDER_SIGNATURE =
+      "(ILjava/lang/Class;Ljava/lang/Object;)V";
+
   /**
    * Like RECORDER_SIGNATURE, but for a method that extracts all of
    * the information dynamically from a class.
@@ -57,6 +76,32 @@ class AllocationMethodAdapter extends MethodVisitor {
   public static final String CLASS_RECORDER_SIG =
       "(Ljava/lang/Class;Ljava/lang/Object;)V";
 
+  /**
+   * The signature of the probes of count-only instrumentation (see
+   * {@link AllocationRecorder#countAllocation(int, Class, int)}): the count,
+   * as in RECORDER_SIGNATURE except that a multi-dimensional array is given
+   * the length of its outer array, and the class of the new object, but not
+   * the object itself.
+   */
+  public static final String COUNT_RECORDER_SIGNATURE =
+      "(ILjava/lang/Class;)V";
+
+  // With the stock recorder, every recorder signature above takes one more
+  // argument: the AllocationSites ID of the allocation site, an int.
+
+  // The array descriptor of each NEWARRAY operand.
+  private static final String primitiveArrayDescriptors = "[Z[C[F[D[B[S[I[J";
+
+  // The internal name of the class holding the inline sampling countdowns.
+  private static final String COUNTDOWN_CLASS =
+      AllocationInstrumenter.DEFAULT_RECORDER_CLASS;
+
+  // The bootstrap method of invokedynamic recorder probes.
+  private static final Handle PROBE_BOOTSTRAP = new Handle(
+      Opcodes.H_INVOKESTATIC,
+      "com/google/monitoring/runtime/instrumentation/RecorderCallSites",
+      "bootstrap", RecorderCallSites.BOOTSTRAP_SIGNATURE);
+
   // A helper struct for describing the scope of temporary local variables we
   // create as part of the instrumentation.
   private static class VariableScope {
@@ -96,6 +141,36 @@ class AllocationMethodAdapter extends MethodVisitor {
   private final String recorderClass;
   private final String recorderMethod;
 
+  // Where this method lives, for the AllocationSites registry.
+  private final String className;
+  private final String methodName;
+  private final String methodDesc;
+
+  // The source line of the instructions being visited, or -1 if unknown.
+  private int currentLine = -1;
+
+  // The number of allocation sites visited so far in this method, which
+  // tells apart sites on the same line.
+  private int sitesVisited = 0;
+
+  // Whether recorder calls are guarded by an inline per-site countdown; see
+  // AllocationRecorder#setInlineSamplingInterval.
+  private final boolean inlineSampling;
+
+  // Whether the recorder is invoked through invokedynamic probes.
+  private final boolean invokeDynamic;
+
+  // Whether to emit count-only probes, which are not given the new object;
+  // see AllocationRecorder#countAllocation.  Only used with the stock
+  // recorder.
+  private final boolean countOnly;
+
+  // Whether we are instrumenting for the stock recorder.  If so, statically
+  // known types are passed to it as type IDs (TYPE_ID_RECORDER_SIGNATURE),
+  // and types only known at runtime as Class objects
+  // (CLASS_COUNT_RECORDER_SIGNATURE), rather than as descriptors.
+  private final boolean stockRecorder;
+
   /**
    * The LocalVariablesSorter used in this adapter.  Lame that it's public but
    * the ASM architecture requires setting it from the outside after this
@@ -110,9 +185,60 @@ class AllocationMethodAdapter extends MethodVisitor {
    */
   public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
                          String recorderMethod) {
+    this(mv, recorderClass, recorderMethod, false);
+  }
+
+  /**
+   * Like {@link #AllocationMethodAdapter(MethodVisitor, String, String)},
+   * but optionally invokes the recorder through invokedynamic probes that
+   * are linked by {@link RecorderCallSites}.
+   */
+  public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
+      String recorderMethod, boolean invokeDynamic) {
+    this(mv, recorderClass, recorderMethod, invokeDynamic,
+        "<unknown>", "<unknown>", "()V");
+  }
+
+  /**
+   * Like {@link #AllocationMethodAdapter(MethodVisitor, String, String,
+   * boolean)}, naming the method being visited, so that the allocation
+   * sites registered with {@link AllocationSites} can be traced back to it.
+   */
+  public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
+      String recorderMethod, boolean invokeDynamic, String className,
+      String methodName, String methodDesc) {
+    this(mv, recorderClass, recorderMethod, invokeDynamic, className,
+        methodName, methodDesc, false);
+  }
+
+  /**
+   * Like {@link #AllocationMethodAdapter(MethodVisitor, String, String,
+   * boolean, String, String, String)}, optionally emitting count-only
+   * probes, which never pass the new object to the recorder.  Count-only
+   * probes load class constants, so they need a version 49 (Java 5) class
+   * file, and are only emitted for the stock recorder.
+   */
+  public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
+      String recorderMethod, boolean invokeDynamic, String className,
+      String methodName, String methodDesc, boolean countOnly) {
     super(Opcodes.ASM5, mv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.className = className;
+    this.methodName = methodName;
+    this.methodDesc = methodDesc;
+    this.inlineSampling = AllocationRecorder.getInlineSamplingInterval() > 0;
+    this.invokeDynamic = invokeDynamic;
+    this.stockRecorder =
+        AllocationInstrumenter.DEFAULT_RECORDER_CLASS.equals(recorderClass) &&
+        "recordAllocation".equals(recorderMethod);
+    this.countOnly = countOnly && stockRecorder;
+  }
+
+  @Override
+  public void visitLineNumber(int line, Label start) {
+    currentLine = line;
+    super.visitLineNumber(line, start);
   }
 
   /**
@@ -127,7 +253,9 @@ class AllocationMethodAdapter extends MethodVisitor {
       if (operand >= 4 && operand <= 11) {
         super.visitInsn(Opcodes.DUP); // -> stack: ... count count
         super.visitIntInsn(opcode, operand); // -> stack: ... count aref
-        invokeRecordAllocation(primitiveTypeNames[operand]);
+        invokeRecordAllocation(primitiveTypeNames[operand],
+            primitiveArrayDescriptors.substring(
+                2 * (operand - 4), 2 * (operand - 3)));
         // -> stack: ... aref
       } else {
         AllocationInstrumenter.logger.severe("NEWARRAY called with an invalid operand " +
@@ -139,12 +267,18 @@ class AllocationMethodAdapter extends MethodVisitor {
     }
   }
 
-  // Helper method to compute class name as a String and push it on the stack.
+  // Helper method to push the type of a runtime class on the stack, in the
+  // form the recorder takes it (see typeOfClassDescriptor()).  The stock
+  // recorder takes the class itself and caches its name; other recorders
+  // take the name of the class, which is expensive to compute.
   // pre: stack: ... class
-  // post: stack: ... class className
-  private void pushClassNameOnStack() {
+  // post: stack: ... class type
+  private void pushTypeOfClassOnStack() {
     super.visitInsn(Opcodes.DUP);
     // -> stack: ... class class
+    if (stockRecorder) {
+      return;
+    }
     super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class",
         "getName", "()Ljava/lang/String;", false);
     // -> stack: ... class classNameDotted
@@ -157,6 +291,17 @@ class AllocationMethodAdapter extends MethodVisitor {
     // -> stack: ... class className
   }
 
+  // The descriptor of the value pushed by pushTypeOfClassOnStack().
+  private String typeOfClassDescriptor() {
+    return stockRecorder ? "Ljava/lang/Class;" : "Ljava/lang/String;";
+  }
+
+  // The signature of the recorder method that takes the value pushed by
+  // pushTypeOfClassOnStack().
+  private String typeOfClassRecorderSignature() {
+    return stockRecorder ? CLASS_COUNT_RECORDER_SIGNATURE : RECORDER_SIGNATURE;
+  }
+
   // Helper method to compute the product of an integer array and push it on
   // the stack.
   // pre: stack: ... intArray
@@ -245,11 +390,11 @@ class AllocationMethodAdapter extends MethodVisitor {
         int countIndex = newLocal("I", beginScopeLabel, endScopeLabel);
         super.visitVarInsn(Opcodes.ISTORE, countIndex);
         // -> stack: ... class
-        pushClassNameOnStack();
-        // -> stack: ... class className
-        int typeNameIndex =
-          newLocal("Ljava/lang/String;", beginScopeLabel, endScopeLabel);
-        super.visitVarInsn(Opcodes.ASTORE, typeNameIndex);
+        pushTypeOfClassOnStack();
+        // -> stack: ... class type
+        int typeIndex =
+          newLocal(typeOfClassDescriptor(), beginScopeLabel, endScopeLabel);
+        super.visitVarInsn(Opcodes.ASTORE, typeIndex);
         // -> stack: ... class
         super.visitVarInsn(Opcodes.ILOAD, countIndex);
         // -> stack: ... class count
@@ -261,16 +406,34 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj newobj count
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj count newobj
-        super.visitVarInsn(Opcodes.ALOAD, typeNameIndex);
+        super.visitVarInsn(Opcodes.ALOAD, typeIndex);
         super.visitLabel(endScopeLabel);
-        // -> stack: ... newobj count newobj className
+        // -> stack: ... newobj count newobj type
         super.visitInsn(Opcodes.SWAP);
-        // -> stack: ... newobj count className newobj
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-            recorderMethod, RECORDER_SIGNATURE, false);
+        // -> stack: ... newobj count type newobj
+        invokeRecorder(typeOfClassRecorderSignature());
         // -> stack: ... newobj
         return;
       } else if (signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;")){
+        if (countOnly) {
+          // As for MULTIANEWARRAY, only the outer array is counted; its class
+          // is only known at runtime.
+          super.visitMethodInsn(opcode, owner, name, signature, itf);
+          // -> stack: ... newobj
+          super.visitInsn(Opcodes.DUP);
+          super.visitInsn(Opcodes.DUP);
+          // -> stack: ... newobj newobj newobj
+          super.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "getLength",
+              "(Ljava/lang/Object;)I", false);
+          // -> stack: ... newobj newobj length
+          super.visitInsn(Opcodes.SWAP);
+          super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object",
+              "getClass", "()Ljava/lang/Class;", false);
+          // -> stack: ... newobj length class
+          invokeRecorder("countAllocation", COUNT_RECORDER_SIGNATURE);
+          // -> stack: ... newobj
+          return;
+        }
         Label beginScopeLabel = new Label();
         Label endScopeLabel = new Label();
         super.visitLabel(beginScopeLabel);
@@ -285,11 +448,11 @@ class AllocationMethodAdapter extends MethodVisitor {
 
         super.visitVarInsn(Opcodes.ASTORE, dimsArrayIndex);
         // -> stack: ... class
-        pushClassNameOnStack();
-        // -> stack: ... class className
-        int typeNameIndex =
-          newLocal("Ljava/lang/String;", beginScopeLabel, endScopeLabel);
-        super.visitVarInsn(Opcodes.ASTORE, typeNameIndex);
+        pushTypeOfClassOnStack();
+        // -> stack: ... class type
+        int typeIndex =
+          newLocal(typeOfClassDescriptor(), beginScopeLabel, endScopeLabel);
+        super.visitVarInsn(Opcodes.ASTORE, typeIndex);
         // -> stack: ... class
         super.visitVarInsn(Opcodes.ALOAD, dimsArrayIndex);
         // -> stack: ... class dimsArray
@@ -302,13 +465,12 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj newobj product
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj product newobj
-        super.visitVarInsn(Opcodes.ALOAD, typeNameIndex);
+        super.visitVarInsn(Opcodes.ALOAD, typeIndex);
         super.visitLabel(endScopeLabel);
-        // -> stack: ... newobj product newobj className
+        // -> stack: ... newobj product newobj type
         super.visitInsn(Opcodes.SWAP);
-        // -> stack: ... newobj product className newobj
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-            recorderMethod, RECORDER_SIGNATURE, false);
+        // -> stack: ... newobj product type newobj
+        invokeRecorder(typeOfClassRecorderSignature());
         // -> stack: ... newobj
         return;
       }
@@ -329,7 +491,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... newobj
           super.visitTypeInsn(Opcodes.CHECKCAST, owner);
           // -> stack: ... arrayref
-          calculateArrayLengthAndDispatch(owner.substring(i), i);
+          calculateArrayLengthAndDispatch(owner.substring(i), owner, i);
         } else {
           // -> stack: ... newobj
           super.visitInsn(Opcodes.DUP);
@@ -340,7 +502,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... newobj length
           super.visitInsn(Opcodes.SWAP);
           // -> stack: ... length newobj
-          invokeRecordAllocation(owner.substring(i));
+          invokeRecordAllocation(owner.substring(i), owner);
         }
         return;
       } else if ("newInstance".equals(name)) {
@@ -352,8 +514,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... Class newobj
           super.visitInsn(Opcodes.DUP_X1);
           // -> stack: ... newobj Class newobj
-          super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-                                recorderMethod, CLASS_RECORDER_SIG, false);
+          invokeRecorder(CLASS_RECORDER_SIG);
           // -> stack: ... newobj
           return;
         } else if ("java/lang/reflect/Constructor".equals(owner) &&
@@ -373,6 +534,15 @@ class AllocationMethodAdapter extends MethodVisitor {
         // to <init> than calls to NEW; hence outstandingAllocs.
         --outstandingAllocs;
 
+        if (countOnly) {
+          super.visitMethodInsn(opcode, owner, name, signature, itf);
+          super.visitLdcInsn(-1);
+          super.visitLdcInsn(Type.getObjectType(owner));
+          // -> stack: ... -1 class
+          invokeRecorder("countAllocation", COUNT_RECORDER_SIGNATURE);
+          return;
+        }
+
         // Most of the time (i.e. in bytecode generated by javac) it is the case
         // that following an <init> call the top of the stack has a reference ot
         // the newly-initialized object.  But nothing in the JVM Spec requires
@@ -383,7 +553,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         super.visitMethodInsn(opcode, owner, name, signature, itf);
         super.visitLdcInsn(-1);
         super.visitInsn(Opcodes.SWAP);
-        invokeRecordAllocation(owner);
+        invokeRecordAllocation(owner, owner);
         super.visitInsn(Opcodes.POP);
         return;
       }
@@ -410,8 +580,7 @@ class AllocationMethodAdapter extends MethodVisitor {
     // -> stack: ... newobj newobj Class
     super.visitInsn(Opcodes.SWAP);
     // -> stack: ... newobj Class newobj
-    super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass, recorderMethod,
-                          CLASS_RECORDER_SIG, false);
+    invokeRecorder(CLASS_RECORDER_SIG);
     // -> stack: ... newobj
   }
 
@@ -464,7 +633,8 @@ class AllocationMethodAdapter extends MethodVisitor {
     } else if (opcode == Opcodes.ANEWARRAY) {
       super.visitInsn(Opcodes.DUP);
       super.visitTypeInsn(opcode, typeName);
-      invokeRecordAllocation(typeName);
+      invokeRecordAllocation(typeName, typeName.startsWith("[") ?
+          "[" + typeName : "[L" + typeName + ";");
     } else {
       super.visitTypeInsn(opcode, typeName);
     }
@@ -503,14 +673,117 @@ class AllocationMethodAdapter extends MethodVisitor {
     return newLocal(type, type.getDescriptor(), begin, end);
   }
 
+  // Helper method to invoke the recorder method with the given signature,
+  // whose arguments are already on the stack.  Each call registers a new
+  // allocation site, which the stock recorder is passed.  In inline sampling
+  // mode, the call is guarded by a countdown that belongs to this allocation
+  // site, and when the countdown has not run out the arguments are simply
+  // discarded:
+  //
+  //   if (--siteCountdowns[slot] <= 0) {
+  //     resetSiteCountdown(slot);
+  //     recorder(args...);
+  //   }
+  //
+  // That keeps the common, unsampled path down to a handful of bytecodes
+  // that the JIT can compile inline.
+  //
+  // For count-only probes, the new object, which is the last argument of
+  // every recorder signature, is dropped, and the matching count-only probe
+  // is called instead.
+  // pre: stack: ... args
+  // post: stack: ...
+  private void invokeRecorder(String signature) {
+    if (countOnly) {
+      super.visitInsn(Opcodes.POP);
+      // The only recorder signature with a count and a Class is used for
+      // Array.newInstance(Class, int), which is passed the component type.
+      String method = CLASS_COUNT_RECORDER_SIGNATURE.equals(signature) ?
+          "countArrayAllocation" : "countAllocation";
+      invokeRecorder(method,
+          signature.replace("Ljava/lang/Object;)", ")"));
+      return;
+    }
+    invokeRecorder(recorderMethod, signature);
+  }
+
+  // Like invokeRecorder(String), calling the given recorder method.
+  private void invokeRecorder(String method, String signature) {
+    int site = AllocationSites.register(
+        className, methodName, methodDesc, currentLine, sitesVisited++);
+    if (!inlineSampling) {
+      callRecorder(method, signature, site);
+      return;
+    }
+    int slot = AllocationRecorder.countdownSlot(site);
+    Label fire = new Label();
+    Label done = new Label();
+    super.visitFieldInsn(Opcodes.GETSTATIC, COUNTDOWN_CLASS,
+        "siteCountdowns", "[I");
+    super.visitLdcInsn(slot);
+    // -> stack: ... args countdowns slot
+    super.visitInsn(Opcodes.DUP2);
+    super.visitInsn(Opcodes.IALOAD);
+    super.visitInsn(Opcodes.ICONST_1);
+    super.visitInsn(Opcodes.ISUB);
+    // -> stack: ... args countdowns slot remaining
+    super.visitInsn(Opcodes.DUP_X2);
+    super.visitInsn(Opcodes.IASTORE);
+    // -> stack: ... args remaining
+    super.visitJumpInsn(Opcodes.IFLE, fire);
+    // -> stack: ... args
+    Type[] argTypes = Type.getArgumentTypes(signature);
+    for (int i = argTypes.length - 1; i >= 0; --i) {
+      super.visitInsn(
+          argTypes[i].getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+    }
+    super.visitJumpInsn(Opcodes.GOTO, done);
+    super.visitLabel(fire);
+    // -> stack: ... args
+    super.visitLdcInsn(slot);
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, COUNTDOWN_CLASS,
+        "resetSiteCountdown", "(I)V", false);
+    callRecorder(method, signature, site);
+    super.visitLabel(done);
+    // -> stack: ...
+  }
+
+  // Emits the actual call to the recorder method.
+  // pre: stack: ... args
+  // post: stack: ...
+  private void callRecorder(String method, String signature, int site) {
+    if (stockRecorder) {
+      super.visitLdcInsn(site);
+      // -> stack: ... args site
+      signature = signature.substring(0, signature.length() - 2) + "I)V";
+    }
+    if (invokeDynamic) {
+      super.visitInvokeDynamicInsn(method, signature, PROBE_BOOTSTRAP);
+    } else {
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
+          method, signature, false);
+    }
+  }
+
   private static final Pattern namePattern =
       Pattern.compile("^\\[*L([^;]+);$");
 
   // Helper method to actually invoke the recorder function for an allocation
-  // event.
+  // event.  allocatedType is the internal name of the class of the new
+  // object, for count-only probes.
   // pre: stack: ... count newobj
   // post: stack: ... newobj
-  private void invokeRecordAllocation(String typeName) {
+  private void invokeRecordAllocation(String typeName, String allocatedType) {
+    if (countOnly) {
+      // stack: ... count newobj
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... newobj count
+      super.visitLdcInsn(Type.getObjectType(allocatedType));
+      // -> stack: ... newobj count class
+      invokeRecorder("countAllocation", COUNT_RECORDER_SIGNATURE);
+      // -> stack: ... newobj
+      return;
+    }
     Matcher matcher = namePattern.matcher(typeName);
     if (matcher.find()) {
       typeName = matcher.group(1);
@@ -518,12 +791,16 @@ class AllocationMethodAdapter extends MethodVisitor {
     // stack: ... count newobj
     super.visitInsn(Opcodes.DUP_X1);
     // -> stack: ... newobj count newobj
-    super.visitLdcInsn(typeName);
-    // -> stack: ... newobj count newobj typename
+    if (stockRecorder) {
+      super.visitLdcInsn(TypeRegistry.idOf(typeName));
+    } else {
+      super.visitLdcInsn(typeName);
+    }
+    // -> stack: ... newobj count newobj type
     super.visitInsn(Opcodes.SWAP);
-    // -> stack: ... newobj count typename newobj
-    super.visitMethodInsn(Opcodes.INVOKESTATIC,
-        recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+    // -> stack: ... newobj count type newobj
+    invokeRecorder(
+        stockRecorder ? TYPE_ID_RECORDER_SIGNATURE : RECORDER_SIGNATURE);
     // -> stack: ... newobj
   }
 
@@ -538,10 +815,26 @@ class AllocationMethodAdapter extends MethodVisitor {
     // stack: ... dim1 dim2 dim3 ... dimN
     super.visitMultiANewArrayInsn(typeName, dimCount);
     // -> stack: ... aref
-    calculateArrayLengthAndDispatch(typeName, dimCount);
+    calculateArrayLengthAndDispatch(typeName, typeName, dimCount);
   }
 
-  void calculateArrayLengthAndDispatch(String typeName, int dimCount) {
+  void calculateArrayLengthAndDispatch(String typeName, String allocatedType,
+      int dimCount) {
+    if (countOnly) {
+      // Count-only probes size a multi-dimensional array by its outer array,
+      // as AllocationRecorder#getObjectSize does, so they are passed its
+      // length rather than the product of the dimensions.
+      // stack: ... aref
+      super.visitInsn(Opcodes.DUP);
+      super.visitInsn(Opcodes.ARRAYLENGTH);
+      // -> stack: ... aref length
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... length aref
+      invokeRecordAllocation(typeName, allocatedType);
+      // -> stack: ... aref
+      return;
+    }
+
     // Since the dimensions of the array are not known at instrumentation
     // time, we take the created multi-dimensional array and peel off nesting
     // levels from the left.  For each nesting layer we probe the array length
@@ -616,6 +909,6 @@ class AllocationMethodAdapter extends MethodVisitor {
     super.visitInsn(Opcodes.SWAP); // -> stack: ... origaref product aref0
     super.visitInsn(Opcodes.POP); // -> stack: ... origaref product
     super.visitInsn(Opcodes.SWAP); // -> stack: ... product origaref
-    invokeRecordAllocation(typeName);
+    invokeRecordAllocation(typeName, allocatedType);
   }
 }
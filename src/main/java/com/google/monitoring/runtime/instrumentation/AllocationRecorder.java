@@ -17,14 +17,10 @@
 package com.google.monitoring.runtime.instrumentation;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-
-import com.google.common.collect.ForwardingMap;
-import com.google.common.collect.MapMaker;
 
 /**
  * The logic for recording allocations, called from bytecode rewritten by
@@ -67,11 +63,57 @@ public class AllocationRecorder {
   // Mostly because, yes, arrays are faster than collections.
   private static volatile Sampler [] additionalSamplers;
 
-  // Protects mutations of additionalSamplers.  Reads are okay because
+  private static volatile WeightedSampler[] weightedSamplers;
+
+  private static volatile TypeIdSampler[] typeIdSamplers;
+
+  private static volatile BatchSampler[] batchSamplers;
+
+  // Protects mutations of additionalSamplers, weightedSamplers,
+  // typeIdSamplers and batchSamplers.  Reads are okay because
   // the field is volatile, so anyone who reads additionalSamplers
   // will get a consistent view of it.
   private static final Object samplerLock = new Object();
 
+  // Mean number of bytes between samples; 0 disables sampling.
+  private static volatile long samplingInterval = 0;
+
+  // Number of countdown slots available for inline sampling; a power of two.
+  private static final int COUNTDOWN_SLOTS = 1 << 15;
+
+  /**
+   * The per-site countdowns used by inline sampling (see
+   * {@link #setInlineSamplingInterval(int)}).  This is read and written
+   * directly by instrumented bytecode, which is why it is public; it is not
+   * part of the API.  Updates are deliberately unsynchronized: a lost
+   * decrement only shifts the next sample by one allocation.
+   */
+  public static final int[] siteCountdowns = new int[COUNTDOWN_SLOTS];
+
+  // Mean number of allocations between samples at each instrumented site
+  // when inline sampling is enabled; 0 means that it is disabled.
+  private static volatile int inlineSamplingInterval = 0;
+
+  // Whether sampled allocations are queued for the dispatcher thread instead
+  // of being passed to the samplers on the allocating thread.
+  private static volatile boolean asyncDispatch = false;
+
+  // Whether queued events keep a weak reference to the allocated object.
+  private static volatile boolean asyncObjectReferences = false;
+
+  // Maximum number of frames captured for each sampled allocation; 0 means
+  // that stacks are not captured.
+  private static volatile int stackDepth = 0;
+
+  // Whether allocations are recorded at all; see setRecordingEnabled.
+  private static volatile boolean recordingEnabled = true;
+
+  // Counters of the recorder's own activity, indexed by the constants
+  // below.
+  private static final StripedCounters statistics = new StripedCounters(2);
+  private static final int ALLOCATIONS_SEEN = 0;
+  private static final int ALLOCATIONS_SAMPLED = 1;
+
   // List of packages that can add samplers.
   private static final List<String> classNames = new ArrayList<String>();
 
@@ -79,78 +121,88 @@ public class AllocationRecorder {
     classNames.add("com.google.monitoring.runtime.");
   }
 
-  // Used for reentrancy checks
-  public static final ThreadLocal<Boolean> recordingAllocation = new ThreadLocal<Boolean>();
-
-  // Stores the object sizes for the last ~100000 encountered classes
-  private static final ForwardingMap<Class<?>, Long> classSizesMap =
-    new ForwardingMap<Class<?>, Long>() {
-      private final ConcurrentMap<Class<?>, Long> map = new MapMaker()
-          .weakKeys()
-          .makeMap();
-
-      @Override public Map<Class<?>, Long> delegate() {
-        return map;
-      }
+  /**
+   * Formerly used for reentrancy checks; the recorder now keeps that state
+   * in the thread's {@link RecorderContext}.  Setting this to
+   * <code>Boolean.TRUE</code> on a thread still keeps the recorder from
+   * recording that thread's allocations, but
+   * {@link #muteCurrentThread()} does so more cheaply.
+   */
+  @Deprecated
+  public static final ThreadLocal<Boolean> recordingAllocation =
+      new ThreadLocal<Boolean>() {
+        @Override public void set(Boolean value) {
+          recordingAllocationUsed = true;
+          super.set(value);
+        }
+      };
 
-      // The approximate maximum size of the map
-      private static final int MAX_SIZE = 100000;
+  // Set once anyone sets recordingAllocation, so that the recorder only
+  // looks the thread local up when it may be set.
+  private static volatile boolean recordingAllocationUsed = false;
 
-      // The approximate current size of the map; since this is not an AtomicInteger
-      // and since we do not synchronize the updates to this field, it will only be
-      // an approximate size of the map; it's good enough for our purposes though,
-      // and not synchronizing the updates saves us some time
-      private int approximateSize = 0;
+  // Whether the deprecated recordingAllocation flag is set on this thread.
+  @SuppressWarnings("deprecation")
+  private static boolean isRecordingAllocationSet() {
+    return recordingAllocationUsed &&
+        recordingAllocation.get() == Boolean.TRUE;
+  }
 
-      @Override
-      public Long put(Class<?> key, Long value) {
-        // if we have too many elements, delete about 10% of them
-        // this is expensive, but needs to be done to keep the map bounded
-        // we also need to randomize the elements we delete: if we remove the same
-        // elements all the time, we might end up adding them back to the map
-        // immediately after, and then remove them again, then add them back, etc.
-        // which will cause this expensive code to be executed too often
-        if (approximateSize >= MAX_SIZE) {
-          for (Iterator<Class<?>> it = keySet().iterator(); it.hasNext(); ) {
-            it.next();
-            if (Math.random() < 0.1) {
-              it.remove();
-            }
-          }
+  /**
+   * Adds a {@link Sampler} that will get run <b>every time an allocation is
+   * performed from Java code</b>, or, if a sampling interval has been set
+   * with {@link #setSamplingInterval(long)}, every time an allocation is
+   * sampled.  Use this with <b>extreme</b> judiciousness!
+   *
+   * @param sampler  The sampler to add.
+   */
+  public static void addSampler(Sampler sampler) {
+    synchronized (samplerLock) {
+      additionalSamplers = withSampler(additionalSamplers, sampler, Sampler.class);
+      listenersChanged();
+    }
+  }
 
-          // get the exact size; another expensive call, but we need to correct
-          // approximateSize every once in a while, or the difference between
-          // approximateSize and the actual size might become significant over time;
-          // the other solution is synchronizing every time we update approximateSize,
-          // which seems even more expensive
-          approximateSize = size();
-        }
+  /**
+   * Adds a {@link WeightedSampler}.  It is invoked under the same conditions
+   * as samplers added with {@link #addSampler(Sampler)}.
+   *
+   * @param sampler  The sampler to add.
+   */
+  public static void addSampler(WeightedSampler sampler) {
+    synchronized (samplerLock) {
+      weightedSamplers =
+          withSampler(weightedSamplers, sampler, WeightedSampler.class);
+      listenersChanged();
+    }
+  }
 
-        approximateSize++;
-        return super.put(key, value);
+  /**
+   * Adds a {@link TypeIdSampler}.  It is invoked under the same conditions
+   * as samplers added with {@link #addSampler(Sampler)}.
+   *
+   * @param sampler  The sampler to add.
+   */
+  public static void addSampler(TypeIdSampler sampler) {
+    synchronized (samplerLock) {
+      typeIdSamplers =
+          withSampler(typeIdSamplers, sampler, TypeIdSampler.class);
+      listenersChanged();
     }
-  };
+  }
 
   /**
-   * Adds a {@link Sampler} that will get run <b>every time an allocation is
-   * performed from Java code</b>.  Use this with <b>extreme</b> judiciousness!
+   * Adds a {@link BatchSampler}.  It is passed the same allocations as
+   * samplers added with {@link #addSampler(Sampler)}, but in batches, on the
+   * background dispatcher thread.
    *
    * @param sampler  The sampler to add.
    */
-  public static void addSampler(Sampler sampler) {
+  public static void addSampler(BatchSampler sampler) {
+    AsyncDispatcher.start();
     synchronized (samplerLock) {
-      Sampler[] samplers = additionalSamplers;
-      /* create a new list of samplers from the old, adding this sampler */
-      if (samplers != null) {
-        Sampler [] newSamplers = new Sampler[samplers.length + 1];
-        System.arraycopy(samplers, 0, newSamplers, 0, samplers.length);
-        newSamplers[samplers.length] = sampler;
-        additionalSamplers = newSamplers;
-      } else {
-        Sampler[] newSamplers = new Sampler[1];
-        newSamplers[0] = sampler;
-        additionalSamplers = newSamplers;
-      }
+      batchSamplers = withSampler(batchSamplers, sampler, BatchSampler.class);
+      listenersChanged();
     }
   }
 
@@ -161,53 +213,563 @@ public class AllocationRecorder {
    */
   public static void removeSampler(Sampler sampler) {
     synchronized (samplerLock) {
-      Sampler[] samplers = additionalSamplers;
-      int samplerCount = samplers.length;
-      for (Sampler s : samplers) {
-        if (s.equals(sampler)) {
-          samplerCount--;
-        }
+      additionalSamplers =
+          withoutSampler(additionalSamplers, sampler, Sampler.class);
+      listenersChanged();
+    }
+  }
+
+  /**
+   * Removes the given {@link WeightedSampler}.
+   *
+   * @param sampler  The sampler to remove.
+   */
+  public static void removeSampler(WeightedSampler sampler) {
+    synchronized (samplerLock) {
+      weightedSamplers =
+          withoutSampler(weightedSamplers, sampler, WeightedSampler.class);
+      listenersChanged();
+    }
+  }
+
+  /**
+   * Removes the given {@link TypeIdSampler}.
+   *
+   * @param sampler  The sampler to remove.
+   */
+  public static void removeSampler(TypeIdSampler sampler) {
+    synchronized (samplerLock) {
+      typeIdSamplers =
+          withoutSampler(typeIdSamplers, sampler, TypeIdSampler.class);
+      listenersChanged();
+    }
+  }
+
+  /**
+   * Removes the given {@link BatchSampler}.
+   *
+   * @param sampler  The sampler to remove.
+   */
+  public static void removeSampler(BatchSampler sampler) {
+    synchronized (samplerLock) {
+      batchSamplers =
+          withoutSampler(batchSamplers, sampler, BatchSampler.class);
+      listenersChanged();
+    }
+  }
+
+  static BatchSampler[] getBatchSamplers() {
+    return batchSamplers;
+  }
+
+  /**
+   * Called whenever the set of samplers changes, or site counting or live
+   * heap tracking is turned on or off.
+   */
+  static void listenersChanged() {
+    synchronized (samplerLock) {
+      // invokedynamic probes only need to call into the recorder while there
+      // is someone to report to.
+      RecorderCallSites.setEnabled(recordingEnabled &&
+          (additionalSamplers != null || weightedSamplers != null ||
+           typeIdSamplers != null || batchSamplers != null ||
+           AllocationSites.isCountingEnabled() || LiveHeap.isEnabled()));
+    }
+  }
+
+  /**
+   * Turns the recording of allocations on or off globally.  While it is
+   * off, instrumented allocation sites return from the recorder right away
+   * (or, with <code>invokedynamic</code> probes, do not call it), and
+   * samplers, site counters and live heap tracking see nothing.  Recording
+   * is on by default.
+   *
+   * @param enabled whether to record allocations.
+   */
+  public static void setRecordingEnabled(boolean enabled) {
+    recordingEnabled = enabled;
+    listenersChanged();
+  }
+
+  /**
+   * Returns whether allocations are being recorded.
+   *
+   * @return false if recording has been turned off with
+   *     {@link #setRecordingEnabled(boolean)}.
+   */
+  public static boolean isRecordingEnabled() {
+    return recordingEnabled;
+  }
+
+  /**
+   * Returns the number of allocations that have reached the recorder from
+   * instrumented code while a sampler, the site counters or {@link LiveHeap}
+   * was listening, other than those on muted threads or made while
+   * recording was off.
+   *
+   * @return the number of allocations seen.
+   */
+  public static long getAllocationCount() {
+    return statistics.get(ALLOCATIONS_SEEN);
+  }
+
+  /**
+   * Returns the number of allocations that passed sampling and were
+   * recorded: passed to samplers, added to the site counters, or tracked by
+   * {@link LiveHeap}.  Without sampling, this is every allocation seen
+   * while anything was listening.
+   *
+   * @return the number of allocations sampled.
+   */
+  public static long getSampleCount() {
+    return statistics.get(ALLOCATIONS_SAMPLED);
+  }
+
+  // Returns a copy of samplers with sampler appended.  samplers may be null.
+  @SuppressWarnings("unchecked")
+  private static <T> T[] withSampler(T[] samplers, T sampler, Class<T> type) {
+    int length = (samplers == null) ? 0 : samplers.length;
+    T[] newSamplers = (T[]) Array.newInstance(type, length + 1);
+    if (samplers != null) {
+      System.arraycopy(samplers, 0, newSamplers, 0, length);
+    }
+    newSamplers[length] = sampler;
+    return newSamplers;
+  }
+
+  // Returns a copy of samplers without any sampler equal to the given one, or
+  // null if no samplers are left.
+  @SuppressWarnings("unchecked")
+  private static <T> T[] withoutSampler(T[] samplers, T sampler,
+      Class<T> type) {
+    if (samplers == null) {
+      return null;
+    }
+    int samplerCount = samplers.length;
+    for (T s : samplers) {
+      if (s.equals(sampler)) {
+        samplerCount--;
       }
-      Sampler[] newSamplers = new Sampler[samplerCount];
-      int i = 0;
-      for (Sampler s : samplers) {
-        if (!s.equals(sampler)) {
-          newSamplers[i++] = s;
-        }
+    }
+    if (samplerCount == 0) {
+      return null;
+    }
+    T[] newSamplers = (T[]) Array.newInstance(type, samplerCount);
+    int i = 0;
+    for (T s : samplers) {
+      if (!s.equals(sampler)) {
+        newSamplers[i++] = s;
+      }
+    }
+    return newSamplers;
+  }
+
+  /**
+   * Sets the mean number of bytes a thread allocates between two sampled
+   * allocations.  Each thread keeps a randomized countdown of bytes, drawn
+   * from an exponential distribution with the given mean; samplers are only
+   * invoked for the allocation that crosses zero, together with a weight
+   * (see {@link WeightedSampler}) that makes the samples an unbiased
+   * estimate of all allocations.  This is the same scheme that TLAB-based
+   * heap profilers use, and unlike sampling every Nth allocation, it does not
+   * favor small objects.  Changing the interval makes each thread draw a new
+   * countdown on its next allocation.
+   *
+   * <p>The default, 0, disables sampling: every allocation is passed to the
+   * samplers.  This can also be set with the <code>samplingInterval=</code>
+   * agent argument.
+   *
+   * @param meanBytes the mean sampling interval in bytes, or 0 to record
+   *     every allocation.
+   * @throws IllegalArgumentException if meanBytes is negative.
+   */
+  public static void setSamplingInterval(long meanBytes) {
+    if (meanBytes < 0) {
+      throw new IllegalArgumentException(
+          "Sampling interval must not be negative: " + meanBytes);
+    }
+    samplingInterval = meanBytes;
+  }
+
+  /**
+   * Returns the mean sampling interval in bytes; 0 means that every
+   * allocation is recorded.
+   *
+   * @return the mean sampling interval in bytes.
+   */
+  public static long getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Turns on inline sampling, under which each instrumented allocation site
+   * only calls into the recorder about once every <code>interval</code>
+   * allocations.  The check is a countdown emitted directly into the
+   * instrumented method, so unsampled allocations never leave compiled code.
+   * Weights passed to a {@link WeightedSampler} account for the skipped
+   * allocations.  If a byte sampling interval is also set, it applies to the
+   * allocations that get through the inline check.
+   *
+   * <p>The instrumentation is decided when a class is rewritten, so this is
+   * only set from the <code>inlineSampling=</code> agent argument, before any
+   * class is instrumented.
+   *
+   * @param interval the mean number of allocations between samples at each
+   *     site, or 0 to call the recorder on every allocation.
+   */
+  static void setInlineSamplingInterval(int interval) {
+    if (interval < 0) {
+      throw new IllegalArgumentException(
+          "Inline sampling interval must not be negative: " + interval);
+    }
+    inlineSamplingInterval = interval;
+    if (interval > 0) {
+      RecorderContext context = RecorderContext.forCurrentThread();
+      for (int i = 0; i < siteCountdowns.length; i++) {
+        siteCountdowns[i] = nextCountdown(context, interval);
       }
-      additionalSamplers = newSamplers;
     }
   }
 
+  static int getInlineSamplingInterval() {
+    return inlineSamplingInterval;
+  }
+
+  /**
+   * Returns the countdown slot for the given allocation site number.  Sites
+   * are spread a cache line (16 ints) apart so that threads allocating at
+   * different sites do not write to the same line; once every line is in
+   * use, further sites take the next int within each line.
+   */
+  static int countdownSlot(int site) {
+    return ((site << 4) | ((site >>> 11) & 15)) & (COUNTDOWN_SLOTS - 1);
+  }
+
+  /**
+   * Restarts the countdown of the given slot after it has run out.  This is
+   * called by instrumented bytecode; it is not part of the API.
+   *
+   * @param slot the countdown slot of the allocation site.
+   */
+  public static void resetSiteCountdown(int slot) {
+    int interval = inlineSamplingInterval;
+    siteCountdowns[slot] = (interval > 0) ?
+        nextCountdown(RecorderContext.forCurrentThread(), interval) : 1;
+  }
+
+  // Draws a countdown uniformly from [1, 2 * interval - 1], so that sites
+  // do not fire in lockstep but still sample once every interval
+  // allocations on average.
+  private static int nextCountdown(RecorderContext context, int interval) {
+    return 1 + (int) ((context.nextRandom() >>> 1) % (2L * interval - 1));
+  }
+
+  /**
+   * Switches between synchronous and asynchronous dispatch.  By default,
+   * samplers run on the allocating thread, inside the allocating method.  In
+   * asynchronous mode, the allocating thread only appends the event (type,
+   * count, size, weight and a timestamp) to a bounded per-thread ring buffer,
+   * without locking or allocating, and a single background thread passes
+   * queued events to the samplers.  That keeps sampler cost and lock
+   * contention off application threads, at the price of some latency.
+   *
+   * <p>In asynchronous mode, samplers run on the dispatcher thread, and the
+   * object passed to them is null unless object references have been
+   * requested with {@link #setAsyncObjectReferences(boolean)}.  When a
+   * thread allocates faster than the dispatcher keeps up, events that do not
+   * fit in its buffer are dropped and counted (see
+   * {@link #getDroppedEventCount()}).  This can also be turned on with the
+   * <code>async</code> agent argument.
+   *
+   * @param enabled true to dispatch asynchronously.
+   */
+  public static void setAsyncDispatch(boolean enabled) {
+    if (enabled) {
+      AsyncDispatcher.start();
+    }
+    asyncDispatch = enabled;
+  }
+
+  /**
+   * Returns whether samplers are invoked asynchronously.
+   *
+   * @return true if allocations are dispatched asynchronously.
+   */
+  public static boolean isAsyncDispatch() {
+    return asyncDispatch;
+  }
+
+  /**
+   * Sets whether events queued for asynchronous dispatch hold a weak
+   * reference to the allocated object, so that samplers get the object if it
+   * is still reachable by the time the event is dispatched.  This costs one
+   * small allocation per sampled event, and is off by default.
+   *
+   * @param enabled true to pass objects to asynchronously invoked samplers.
+   */
+  public static void setAsyncObjectReferences(boolean enabled) {
+    asyncObjectReferences = enabled;
+  }
+
+  /**
+   * Returns the number of events dropped so far because a thread's buffer
+   * was full in asynchronous mode.
+   *
+   * @return the number of dropped events.
+   */
+  public static long getDroppedEventCount() {
+    return AsyncDispatcher.droppedEvents();
+  }
+
+  /**
+   * Sets the number of frames of the allocating thread's stack that are
+   * captured for each allocation passed to the samplers.  Stacks are only
+   * captured for sampled allocations, just before the samplers are invoked,
+   * and are interned in {@link CallStacks}.  A sampler running on the
+   * allocating thread gets the stack ID from
+   * {@link RecorderContext#getStackId()}; a {@link BatchSampler} gets it
+   * from {@link AllocationBatch#stackIds()}.
+   *
+   * <p>The default, 0, captures no stacks.  This can also be set with the
+   * <code>stackDepth=</code> agent argument.
+   *
+   * @param depth the maximum number of innermost frames to capture, or 0.
+   * @throws IllegalArgumentException if depth is negative.
+   */
+  public static void setStackDepth(int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException(
+          "Stack depth must not be negative: " + depth);
+    }
+    stackDepth = depth;
+  }
+
+  /**
+   * Returns the maximum number of frames captured per sampled allocation;
+   * 0 means that no stacks are captured.
+   *
+   * @return the stack depth.
+   */
+  public static int getStackDepth() {
+    return stackDepth;
+  }
+
+  /**
+   * Stops recording allocations performed by the calling thread, until a
+   * matching call to {@link #unmuteCurrentThread()}.  This is intended for
+   * threads that are part of the profiling machinery, such as threads that
+   * export the data gathered by a {@link Sampler}.
+   */
+  public static void muteCurrentThread() {
+    RecorderContext.forCurrentThread().mute();
+  }
+
+  /**
+   * Undoes one previous call to {@link #muteCurrentThread()}.
+   */
+  public static void unmuteCurrentThread() {
+    RecorderContext.forCurrentThread().unmute();
+  }
+
   /**
    * Returns the size of the given object. If the object is not an array, we
-   * check the cache first, and update it as necessary.
+   * check the cache first, and update it as necessary.  The cache lives in
+   * the {@link TypeInfo} of the class, so a lookup never contends with other
+   * threads, nothing has to be evicted, and entries go away when the class
+   * is unloaded.  Arrays are sized arithmetically (see {@link ArraySizes})
+   * when their layout is known.
+   *
+   * <p>For a multi-dimensional array, count is the product of the dimensions
+   * (see AllocationMethodAdapter#calculateArrayLengthAndDispatch), but the
+   * size is that of the outermost array, as with getObjectSize: the recorder
+   * cannot tell a multianewarray from a shallow clone().
    *
    * @param obj the object.
-   * @param isArray indicates if the given object is an array.
+   * @param count the count the allocation was recorded with.
    * @param instr the instrumentation object to use for finding the object size
    * @return the size of the given object.
    */
-  private static long getObjectSize(Object obj, boolean isArray, Instrumentation instr) {
-    if (isArray) {
-      return instr.getObjectSize(obj);
+  private static long getObjectSize(Object obj, int count, Instrumentation instr) {
+    TypeInfo info = TypeInfo.of(obj.getClass());
+    if (count >= 0) {
+      if (info.arrayElementSize < 0) {
+        return instr.getObjectSize(obj);
+      }
+      int length = info.oneDimensionalArray ? count : Array.getLength(obj);
+      return ArraySizes.sizeOf(
+          info.arrayBaseOffset, info.arrayElementSize, length);
     }
 
-    Class<?> clazz = obj.getClass();
-    Long classSize = classSizesMap.get(clazz);
-    if (classSize == null) {
+    long classSize = info.instanceSize;
+    if (classSize < 0) {
       classSize = instr.getObjectSize(obj);
-      classSizesMap.put(clazz, classSize);
+      info.instanceSize = classSize;
     }
 
     return classSize;
   }
 
+  /**
+   * Counts an allocation without being given the new object; this is the
+   * probe of count-only instrumentation (the agent's <code>countOnly</code>
+   * argument).  The allocation is added to the
+   * per-site totals of {@link AllocationSites}, and samplers are not
+   * called.  Because the object is not passed anywhere, the JIT can still
+   * eliminate allocations that do not escape.
+   *
+   * <p>Arrays are sized like {@link #getObjectSize} sizes them: a
+   * multi-dimensional array counts as its outer array only.
+   *
+   * @param count the array length (for a multi-dimensional array, the
+   *     length of the outer array), or -1 if the object is not an array.
+   * @param cls the class of the new object.
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void countAllocation(int count, Class<?> cls, int site) {
+    RecorderContext context = countingContext();
+    if (context == null) {
+      return;
+    }
+    // Working out a size for the first time may allocate, through
+    // reflection, which must neither be counted nor come back here.
+    context.recording = true;
+    try {
+      long size;
+      if (count >= 0) {
+        size = ArraySizes.sizeOf(cls.getComponentType(), count);
+      } else {
+        // Instances without a count come from NEW, whose class is a constant
+        // of the site, so the size is kept per site rather than looked up by
+        // class.
+        size = AllocationSites.getInstanceSize(site);
+        if (size < 0) {
+          size = ArraySizes.estimateInstanceSize(cls);
+          AllocationSites.setInstanceSize(site, size);
+        }
+      }
+      countAt(context, site, size);
+    } finally {
+      context.recording = false;
+    }
+  }
+
+  /**
+   * Like {@link #countAllocation(int, Class, int)}, for an object that is
+   * not an array, and whose class may be different at every call (through
+   * reflection or <code>clone()</code>).
+   *
+   * @param cls the class of the new object.
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void countAllocation(Class<?> cls, int site) {
+    RecorderContext context = countingContext();
+    if (context == null) {
+      return;
+    }
+    context.recording = true;
+    try {
+      countAt(context, site, TypeInfo.of(cls).instanceSizeOf(cls));
+    } finally {
+      context.recording = false;
+    }
+  }
+
+  /**
+   * Like {@link #countAllocation(int, Class, int)}, for a one-dimensional
+   * array created with <code>java.lang.reflect.Array.newInstance()</code>,
+   * where the component type, not the array class, is at hand.
+   *
+   * @param count the array length.
+   * @param componentType the component type passed to newInstance().
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void countArrayAllocation(int count, Class<?> componentType,
+      int site) {
+    RecorderContext context = countingContext();
+    if (context == null) {
+      return;
+    }
+    context.recording = true;
+    try {
+      countAt(context, site, ArraySizes.sizeOf(componentType, count));
+    } finally {
+      context.recording = false;
+    }
+  }
+
+  // The context of the calling thread if a count-only probe is to count the
+  // allocation it reports, and null otherwise.
+  private static RecorderContext countingContext() {
+    if (!recordingEnabled || !AllocationSites.isCountingEnabled()) {
+      return null;
+    }
+    RecorderContext context = RecorderContext.forCurrentThread();
+    if (context.isSuppressed() || isRecordingAllocationSet()) {
+      return null;
+    }
+    return context;
+  }
+
+  // Adds an allocation of the given size to the totals of the given site,
+  // weighted by the inline sampling interval, if any.
+  private static void countAt(RecorderContext context, int site, long size) {
+    statistics.add(context, ALLOCATIONS_SEEN, 1);
+    statistics.add(context, ALLOCATIONS_SAMPLED, 1);
+    int inlineInterval = inlineSamplingInterval;
+    long weight = (inlineInterval > 0) ? inlineInterval : 1;
+    AllocationSites.add(site, context, weight, size * weight);
+  }
+
+  /**
+   * Records the allocation of an object whose class is only known at
+   * runtime.  The descriptor of the class is computed once and cached.
+   *
+   * @param cls the class of the new object.
+   * @param newObj the new <code>Object</code> whose allocation is being
+   *   recorded.
+   */
   public static void recordAllocation(Class<?> cls, Object newObj) {
-    // The use of replace makes calls to this method relatively ridiculously
-    // expensive.
-    String typename = cls.getName().replace('.', '/');
-    recordAllocation(-1, typename, newObj);
+    record(-1, -1, null, cls, newObj, -1);
+  }
+
+  /**
+   * Like {@link #recordAllocation(Class, Object)}, for an allocation at a
+   * known site.
+   *
+   * @param cls the class of the new object.
+   * @param newObj the new <code>Object</code> whose allocation is being
+   *   recorded.
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void recordAllocation(Class<?> cls, Object newObj, int site) {
+    record(-1, -1, null, cls, newObj, site);
+  }
+
+  /**
+   * Records the allocation of an array whose component type is only known
+   * at runtime, as with {@link java.lang.reflect.Array#newInstance}.  The
+   * descriptor of the component type is computed once and cached.
+   *
+   * @param count the count of how many instances are being allocated.
+   * @param cls the component type of the new array.
+   * @param newObj the new array whose allocation is being recorded.
+   */
+  public static void recordAllocation(int count, Class<?> cls, Object newObj) {
+    record(count, -1, null, cls, newObj, -1);
+  }
+
+  /**
+   * Like {@link #recordAllocation(int, Class, Object)}, for an allocation at
+   * a known site.
+   *
+   * @param count the count of how many instances are being allocated.
+   * @param cls the component type of the new array.
+   * @param newObj the new array whose allocation is being recorded.
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void recordAllocation(int count, Class<?> cls, Object newObj,
+      int site) {
+    record(count, -1, null, cls, newObj, site);
   }
 
   /**
@@ -223,38 +785,227 @@ public class AllocationRecorder {
    *   recorded.
    */
   public static void recordAllocation(int count, String desc, Object newObj) {
-    if (recordingAllocation.get() == Boolean.TRUE) {
+    record(count, -1, desc, null, newObj, -1);
+  }
+
+  /**
+   * Records the allocation.  This is what bytecode instrumented for this
+   * recorder invokes when the allocated type is known statically; the type
+   * ID is assigned when the class is instrumented.
+   *
+   * @param count the count of how many instances are being
+   *   allocated, if an array is being allocated.  If an array is not being
+   *   allocated, then this value will be -1.
+   * @param typeId the {@link TypeRegistry} ID of the class/primitive type
+   *   being allocated.
+   * @param newObj the new <code>Object</code> whose allocation is being
+   *   recorded.
+   */
+  public static void recordAllocation(int count, int typeId, Object newObj) {
+    record(count, typeId, null, null, newObj, -1);
+  }
+
+  /**
+   * Like {@link #recordAllocation(int, int, Object)}, for an allocation at a
+   * known site.  This is what bytecode instrumented for this recorder
+   * invokes; both IDs are assigned when the class is instrumented.
+   *
+   * @param count the count of how many instances are being
+   *   allocated, if an array is being allocated.  If an array is not being
+   *   allocated, then this value will be -1.
+   * @param typeId the {@link TypeRegistry} ID of the class/primitive type
+   *   being allocated.
+   * @param newObj the new <code>Object</code> whose allocation is being
+   *   recorded.
+   * @param site the {@link AllocationSites} ID of the allocation site.
+   */
+  public static void recordAllocation(int count, int typeId, Object newObj,
+      int site) {
+    record(count, typeId, null, null, newObj, site);
+  }
+
+  // The common implementation of the recordAllocation methods.  The
+  // allocated type is given as exactly one of a type ID, a descriptor or a
+  // class (the others being -1 or null).  A class is looked up once we know
+  // that samplers are listening; a type ID or descriptor is only converted
+  // to the other form if a sampler needs it.  site is -1 if the allocation
+  // site is not known.
+  private static void record(int count, int typeId, String desc,
+      Class<?> cls, Object newObj, int site) {
+    if (!recordingEnabled) {
+      return;
+    }
+    RecorderContext context = RecorderContext.forCurrentThread();
+    if (context.isSuppressed() || isRecordingAllocationSet()) {
       return;
-    } else {
-      recordingAllocation.set(Boolean.TRUE);
-    }
-
-    // NB: This could be smaller if the defaultSampler were merged with the
-    // optional samplers.  However, you don't need the optional samplers in
-    // the common case, so I thought I'd save some space.
-
-    // Copy value into local variable to prevent NPE that occurs when
-    // instrumentation field is set to null by this class's shutdown hook
-    // after another thread passed the null check but has yet to call
-    // instrumentation.getObjectSize()
-    Instrumentation instr = instrumentation;
-    if (instr != null) {
-      // calling getObjectSize() could be expensive,
-      // so make sure we do it only once per object
-      long objectSize = -1;
-
-      Sampler[] samplers = additionalSamplers;
-      if (samplers != null) {
-        if (objectSize < 0) {
-          objectSize = getObjectSize(newObj, (count >= 0), instr);
+    }
+    context.recording = true;
+    try {
+      // NB: This could be smaller if the defaultSampler were merged with the
+      // optional samplers.  However, you don't need the optional samplers in
+      // the common case, so I thought I'd save some space.
+
+      // Copy value into local variable to prevent NPE that occurs when
+      // instrumentation field is set to null by this class's shutdown hook
+      // after another thread passed the null check but has yet to call
+      // instrumentation.getObjectSize()
+      Instrumentation instr = instrumentation;
+      if (instr != null) {
+        Sampler[] samplers = additionalSamplers;
+        WeightedSampler[] weighted = weightedSamplers;
+        TypeIdSampler[] byTypeId = typeIdSamplers;
+        BatchSampler[] batched = batchSamplers;
+        boolean hasSamplers = samplers != null || weighted != null ||
+            byTypeId != null || batched != null;
+        boolean countSite = site >= 0 && AllocationSites.isCountingEnabled();
+        boolean trackLive = LiveHeap.isEnabled();
+        if (!hasSamplers && !countSite && !trackLive) {
+          return;
+        }
+        // Only counted once something is listening, so that an idle agent
+        // does not do an atomic add on every allocation.
+        statistics.add(context, ALLOCATIONS_SEEN, 1);
+        // The type ID of a class is only looked up if a consumer needs it.
+        TypeInfo info = null;
+        if (cls != null) {
+          info = TypeInfo.of(cls);
+          desc = info.descriptor;
+        }
+
+        // calling getObjectSize() could be expensive,
+        // so make sure we do it only once per object
+        long objectSize = getObjectSize(newObj, count, instr);
+        int inlineInterval = inlineSamplingInterval;
+        double weight = (inlineInterval > 0) ? inlineInterval : 1;
+
+        long interval = samplingInterval;
+        if (interval > 0) {
+          long remaining = context.bytesUntilSample;
+          if (context.countdownInterval != interval) {
+            // First allocation on this thread since sampling was enabled or
+            // the interval was changed.
+            remaining = context.nextSampleInterval(interval);
+            context.countdownInterval = interval;
+          }
+          remaining -= objectSize;
+          if (remaining > 0) {
+            context.bytesUntilSample = remaining;
+            return;
+          }
+          context.bytesUntilSample = context.nextSampleInterval(interval);
+          // An allocation of this size crosses a sample point with
+          // probability 1 - e^(-size/interval).
+          if (objectSize > 0) {
+            weight /= -Math.expm1(-(double) objectSize / interval);
+          }
         }
-        for (Sampler sampler : samplers) {
-          sampler.sampleAllocation(count, desc, newObj, objectSize);
+
+        statistics.add(context, ALLOCATIONS_SAMPLED, 1);
+        if (countSite) {
+          AllocationSites.add(site, context, context.roundRandomly(weight),
+              (long) (objectSize * weight));
+        }
+        if (trackLive) {
+          if (typeId < 0) {
+            typeId = typeIdOf(info, desc);
+          }
+          LiveHeap.track(newObj, typeId, site, context.roundRandomly(weight),
+              (long) (objectSize * weight));
+        }
+        if (!hasSamplers) {
+          return;
+        }
+
+        int depth = stackDepth;
+        int stackId = (depth > 0) ? CallStacks.capture(depth, context) : -1;
+
+        boolean async = asyncDispatch;
+        if (async || batched != null) {
+          if (typeId < 0) {
+            typeId = typeIdOf(info, desc);
+          }
+          Object ref = (async && asyncObjectReferences) ?
+              new WeakReference<Object>(newObj) : null;
+          EventRing ring = context.ring();
+          long timestamp = System.nanoTime();
+          if (!ring.offer(typeId, site, stackId, count, objectSize, weight,
+              timestamp, ref, async)) {
+            // Retry on a larger ring, if there may be one.
+            ring = context.growRing();
+            if (!ring.offer(typeId, site, stackId, count, objectSize, weight,
+                timestamp, ref, async)) {
+              ring.countDrop();
+            }
+          }
+          if (async) {
+            return;
+          }
+        }
+        if (samplers != null || weighted != null || byTypeId != null) {
+          if (byTypeId != null && typeId < 0) {
+            typeId = typeIdOf(info, desc);
+          }
+          context.stackId = stackId;
+          dispatch(samplers, weighted, byTypeId,
+              count, typeId, desc, newObj, objectSize, weight);
         }
       }
+    } finally {
+      // Reset the flag even if a sampler throws; otherwise this thread
+      // would silently stop recording for good.
+      context.recording = false;
+      context.stackId = -1;
     }
+  }
+
+  // The type ID of an allocation recorded by class (info non-null) or by
+  // descriptor.
+  private static int typeIdOf(TypeInfo info, String desc) {
+    return (info != null) ? info.typeId() : TypeRegistry.idOf(desc);
+  }
 
-    recordingAllocation.set(Boolean.FALSE);
+  /**
+   * Passes an allocation on to the currently registered samplers.  This is
+   * how the {@link AsyncDispatcher} thread delivers queued events.
+   */
+  static void dispatch(int count, int typeId, Object newObj, long size,
+      double weight) {
+    Sampler[] samplers = additionalSamplers;
+    WeightedSampler[] weighted = weightedSamplers;
+    TypeIdSampler[] byTypeId = typeIdSamplers;
+    if (samplers != null || weighted != null || byTypeId != null) {
+      dispatch(samplers, weighted, byTypeId,
+          count, typeId, null, newObj, size, weight);
+    }
+  }
+
+  // Invokes the given samplers (any of which may be null).  The allocated
+  // type is given as a type ID, a descriptor or both; the other form is
+  // resolved only if a sampler needs it.
+  private static void dispatch(Sampler[] samplers, WeightedSampler[] weighted,
+      TypeIdSampler[] byTypeId, int count, int typeId, String desc,
+      Object newObj, long size, double weight) {
+    if (desc == null && (samplers != null || weighted != null)) {
+      desc = TypeRegistry.descriptorOf(typeId);
+    }
+    if (samplers != null) {
+      for (Sampler sampler : samplers) {
+        sampler.sampleAllocation(count, desc, newObj, size);
+      }
+    }
+    if (weighted != null) {
+      for (WeightedSampler sampler : weighted) {
+        sampler.sampleAllocation(count, desc, newObj, size, weight);
+      }
+    }
+    if (byTypeId != null) {
+      if (typeId < 0) {
+        typeId = TypeRegistry.idOf(desc);
+      }
+      for (TypeIdSampler sampler : byTypeId) {
+        sampler.sampleAllocation(typeId, count, newObj, size, weight);
+      }
+    }
   }
 
   /**
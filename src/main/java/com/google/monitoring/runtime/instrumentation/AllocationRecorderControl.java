@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The implementation of {@link AllocationRecorderMXBean}.  All instances
+ * share the recorder's global state, as well as the built-in
+ * {@link StackProfile} and event log that they turn on and off.
+ *
+ * <p>None of the attributes add work to the allocation path: the counters
+ * are kept by the recorder and {@link TransformStatistics} whether or not
+ * the bean is registered, in striped or otherwise uncontended form, and are
+ * only summed when read.
+ */
+public final class AllocationRecorderControl implements AllocationRecorderMXBean {
+  /** The name under which {@link #register()} registers the bean. */
+  public static final String OBJECT_NAME =
+      "com.google.monitoring.runtime.instrumentation:type=AllocationRecorder";
+
+  // The built-in samplers; guarded by the class lock.
+  private static StackProfile stackProfile;
+  private static EventLogWriter eventLog;
+  private static String eventLogDirectory;
+
+  /**
+   * Registers an instance with the platform MBean server, unless one is
+   * registered already.
+   *
+   * @throws JMException if the bean cannot be registered.
+   */
+  public static synchronized void register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if (!server.isRegistered(name)) {
+      server.registerMBean(new AllocationRecorderControl(), name);
+    }
+  }
+
+  @Override public boolean isRecordingEnabled() {
+    return AllocationRecorder.isRecordingEnabled();
+  }
+
+  @Override public void setRecordingEnabled(boolean enabled) {
+    AllocationRecorder.setRecordingEnabled(enabled);
+  }
+
+  @Override public long getSamplingInterval() {
+    return AllocationRecorder.getSamplingInterval();
+  }
+
+  @Override public void setSamplingInterval(long meanBytes) {
+    AllocationRecorder.setSamplingInterval(meanBytes);
+  }
+
+  @Override public int getStackDepth() {
+    return AllocationRecorder.getStackDepth();
+  }
+
+  @Override public void setStackDepth(int depth) {
+    AllocationRecorder.setStackDepth(depth);
+  }
+
+  @Override public boolean isSiteCountingEnabled() {
+    return AllocationSites.isCountingEnabled();
+  }
+
+  @Override public void setSiteCountingEnabled(boolean enabled) {
+    AllocationSites.setCountingEnabled(enabled);
+  }
+
+  @Override public boolean isLiveHeapEnabled() {
+    return LiveHeap.isEnabled();
+  }
+
+  @Override public void setLiveHeapEnabled(boolean enabled) {
+    LiveHeap.setEnabled(enabled);
+  }
+
+  @Override public boolean isStackProfileEnabled() {
+    synchronized (AllocationRecorderControl.class) {
+      return stackProfile != null;
+    }
+  }
+
+  @Override public void setStackProfileEnabled(boolean enabled) {
+    synchronized (AllocationRecorderControl.class) {
+      if (enabled && stackProfile == null) {
+        stackProfile = new StackProfile();
+        AllocationRecorder.addSampler(stackProfile);
+      } else if (!enabled && stackProfile != null) {
+        AllocationRecorder.removeSampler(stackProfile);
+        stackProfile = null;
+      }
+    }
+  }
+
+  @Override public void startEventLog(String directory) throws IOException {
+    startBuiltInEventLog(directory);
+  }
+
+  /**
+   * Starts the built-in event log; shared with the agent's
+   * <code>eventLog</code> argument, so that the bean can stop a log started
+   * from the command line.  The current log is stopped and closed before
+   * the new one is opened, so the two never write at the same time.
+   */
+  static synchronized void startBuiltInEventLog(String directory)
+      throws IOException {
+    stopBuiltInEventLog();
+    EventLogWriter writer = new EventLogWriter(new File(directory),
+        "allocations", EventLogWriter.DEFAULT_SEGMENT_BYTES, 0);
+    eventLog = writer;
+    eventLogDirectory = directory;
+    AllocationRecorder.addSampler(writer);
+  }
+
+  /**
+   * Starts the built-in event log in the given directory, unless it is
+   * already being written there; used when the agent is attached again.
+   */
+  static synchronized void continueBuiltInEventLog(String directory)
+      throws IOException {
+    if (eventLog == null || !directory.equals(eventLogDirectory)) {
+      startBuiltInEventLog(directory);
+    }
+  }
+
+  private static synchronized void stopBuiltInEventLog() {
+    if (eventLog != null) {
+      AllocationRecorder.removeSampler(eventLog);
+      eventLog.close();
+      eventLog = null;
+      eventLogDirectory = null;
+    }
+  }
+
+  @Override public void stopEventLog() {
+    stopBuiltInEventLog();
+  }
+
+  @Override public String getEventLogDirectory() {
+    synchronized (AllocationRecorderControl.class) {
+      return eventLogDirectory;
+    }
+  }
+
+  @Override public void writeStackProfile(String file) throws IOException {
+    StackProfile profile;
+    synchronized (AllocationRecorderControl.class) {
+      profile = stackProfile;
+    }
+    if (profile == null) {
+      throw new IllegalStateException("The stack profile is not enabled");
+    }
+    PprofExporter.writeStackProfile(profile, new File(file));
+  }
+
+  @Override public void writeSiteProfile(String file) throws IOException {
+    PprofExporter.writeSiteProfile(new File(file));
+  }
+
+  @Override public long getAllocationCount() {
+    return AllocationRecorder.getAllocationCount();
+  }
+
+  @Override public long getSampleCount() {
+    return AllocationRecorder.getSampleCount();
+  }
+
+  @Override public long getDroppedEventCount() {
+    return AllocationRecorder.getDroppedEventCount();
+  }
+
+  @Override public int getTrackedObjectCount() {
+    return LiveHeap.getTrackedCount();
+  }
+
+  @Override public long getTransformedClassCount() {
+    return TransformStatistics.getTransformedCount();
+  }
+
+  @Override public long getTransformNanos() {
+    return TransformStatistics.getTransformNanos();
+  }
+
+  @Override public long getFilteredClassCount() {
+    return TransformStatistics.getFilteredCount();
+  }
+
+  @Override public long getSkippedClassCount() {
+    return TransformStatistics.getSkippedCount();
+  }
+
+  @Override public long getFailedClassCount() {
+    return TransformStatistics.getFailedCount();
+  }
+
+  @Override public long getHierarchyCacheHits() {
+    return TransformStatistics.getHierarchyCacheHits();
+  }
+
+  @Override public long getHierarchyCacheMisses() {
+    return TransformStatistics.getHierarchyCacheMisses();
+  }
+
+  @Override public double getHierarchyCacheHitRate() {
+    long hits = TransformStatistics.getHierarchyCacheHits();
+    long lookups = hits + TransformStatistics.getHierarchyCacheMisses();
+    return (lookups == 0) ? 0 : (double) hits / lookups;
+  }
+
+  @Override public long getHierarchyResourceReads() {
+    return TransformStatistics.getHierarchyResourceReads();
+  }
+}
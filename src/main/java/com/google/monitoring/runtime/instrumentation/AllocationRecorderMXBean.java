@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+
+/**
+ * The management interface of the allocation recorder, registered under
+ * the name {@value AllocationRecorderControl#OBJECT_NAME} by
+ * {@link AllocationRecorderControl#register()} or the agent's
+ * <code>jmx</code> argument.  It lets a JMX console such as JConsole turn
+ * recording and the built-in samplers on and off, change the sampling rate,
+ * write profiles, and watch the agent's own counters.
+ */
+public interface AllocationRecorderMXBean {
+  /** See {@link AllocationRecorder#isRecordingEnabled()}. */
+  boolean isRecordingEnabled();
+
+  /** See {@link AllocationRecorder#setRecordingEnabled(boolean)}. */
+  void setRecordingEnabled(boolean enabled);
+
+  /** See {@link AllocationRecorder#getSamplingInterval()}. */
+  long getSamplingInterval();
+
+  /** See {@link AllocationRecorder#setSamplingInterval(long)}. */
+  void setSamplingInterval(long meanBytes);
+
+  /** See {@link AllocationRecorder#getStackDepth()}. */
+  int getStackDepth();
+
+  /** See {@link AllocationRecorder#setStackDepth(int)}. */
+  void setStackDepth(int depth);
+
+  /** See {@link AllocationSites#isCountingEnabled()}. */
+  boolean isSiteCountingEnabled();
+
+  /** See {@link AllocationSites#setCountingEnabled(boolean)}. */
+  void setSiteCountingEnabled(boolean enabled);
+
+  /** See {@link LiveHeap#isEnabled()}. */
+  boolean isLiveHeapEnabled();
+
+  /** See {@link LiveHeap#setEnabled(boolean)}. */
+  void setLiveHeapEnabled(boolean enabled);
+
+  /**
+   * Returns whether the built-in {@link StackProfile} is registered as a
+   * sampler.
+   */
+  boolean isStackProfileEnabled();
+
+  /**
+   * Registers or removes the built-in {@link StackProfile}.  Removing it
+   * also discards what it has collected.
+   */
+  void setStackProfileEnabled(boolean enabled);
+
+  /**
+   * Starts logging every recorded allocation to segment files in the given
+   * directory with an {@link EventLogWriter}, replacing the current event
+   * log, if any.  The current log is stopped first, even if the new one
+   * then cannot be started.
+   *
+   * @param directory the directory to write the segment files to.
+   * @throws IOException if the first segment cannot be created.
+   */
+  void startEventLog(String directory) throws IOException;
+
+  /**
+   * Removes and closes the built-in event log, if there is one.
+   */
+  void stopEventLog();
+
+  /**
+   * Returns the directory the built-in event log is writing to, or null if
+   * no event log is being written.
+   */
+  String getEventLogDirectory();
+
+  /**
+   * Writes the totals of the built-in {@link StackProfile} to the given
+   * file in pprof format; see {@link PprofExporter}.
+   *
+   * @throws IllegalStateException if the stack profile is not enabled.
+   */
+  void writeStackProfile(String file) throws IOException;
+
+  /**
+   * Writes the per-site totals to the given file in pprof format; see
+   * {@link PprofExporter}.
+   */
+  void writeSiteProfile(String file) throws IOException;
+
+  /** See {@link AllocationRecorder#getAllocationCount()}. */
+  long getAllocationCount();
+
+  /** See {@link AllocationRecorder#getSampleCount()}. */
+  long getSampleCount();
+
+  /** See {@link AllocationRecorder#getDroppedEventCount()}. */
+  long getDroppedEventCount();
+
+  /** See {@link LiveHeap#getTrackedCount()}. */
+  int getTrackedObjectCount();
+
+  /** See {@link TransformStatistics#getTransformedCount()}. */
+  long getTransformedClassCount();
+
+  /** See {@link TransformStatistics#getTransformNanos()}. */
+  long getTransformNanos();
+
+  /** See {@link TransformStatistics#getFilteredCount()}. */
+  long getFilteredClassCount();
+
+  /** See {@link TransformStatistics#getSkippedCount()}. */
+  long getSkippedClassCount();
+
+  /** See {@link TransformStatistics#getFailedCount()}. */
+  long getFailedClassCount();
+
+  /** See {@link TransformStatistics#getHierarchyCacheHits()}. */
+  long getHierarchyCacheHits();
+
+  /** See {@link TransformStatistics#getHierarchyCacheMisses()}. */
+  long getHierarchyCacheMisses();
+
+  /**
+   * Returns the fraction of class hierarchy lookups that were answered
+   * from the cache, or 0 if there have been none.
+   */
+  double getHierarchyCacheHitRate();
+
+  /** See {@link TransformStatistics#getHierarchyResourceReads()}. */
+  long getHierarchyResourceReads();
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A quick check, made on the raw bytes of a class file, of whether the class
+ * contains anything that {@link AllocationMethodAdapter} would rewrite.
+ * Interfaces, annotations, enums and plain data classes often contain no
+ * allocations at all, and can then be left alone without running them
+ * through ASM.
+ *
+ * <p>The check reads the constant pool and walks the instructions of each
+ * method, but builds nothing beyond a few arrays indexed by constant pool
+ * entry and by method.  It is conservative: anything it does not understand
+ * counts as an allocation site.  Its per-method results also let methods
+ * without allocation sites be copied through unchanged when the rest of the
+ * class is rewritten (see {@link AllocationClassAdapter}).
+ */
+final class AllocationScanner {
+  // Constant pool tags.
+  private static final int UTF8 = 1;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int METHODREF = 10;
+  private static final int INTERFACE_METHODREF = 11;
+
+  // The length of each instruction by opcode, or 0 if it is variable or the
+  // opcode is unknown.
+  private static final byte[] INSTRUCTION_LENGTHS = new byte[256];
+
+  static {
+    fill(0x00, 0xC9, 1);
+    fill(0x10, 0x10, 2); // bipush
+    fill(0x11, 0x11, 3); // sipush
+    fill(0x12, 0x12, 2); // ldc
+    fill(0x13, 0x14, 3); // ldc_w, ldc2_w
+    fill(0x15, 0x19, 2); // iload .. aload
+    fill(0x36, 0x3A, 2); // istore .. astore
+    fill(0x84, 0x84, 3); // iinc
+    fill(0x99, 0xA8, 3); // ifeq .. jsr
+    fill(0xA9, 0xA9, 2); // ret
+    fill(0xAA, 0xAB, 0); // tableswitch, lookupswitch
+    fill(0xB2, 0xB8, 3); // getstatic .. invokestatic
+    fill(0xB9, 0xBA, 5); // invokeinterface, invokedynamic
+    fill(0xBB, 0xBB, 3); // new
+    fill(0xBC, 0xBC, 2); // newarray
+    fill(0xBD, 0xBD, 3); // anewarray
+    fill(0xC0, 0xC1, 3); // checkcast, instanceof
+    fill(0xC4, 0xC4, 0); // wide
+    fill(0xC5, 0xC5, 4); // multianewarray
+    fill(0xC6, 0xC7, 3); // ifnull, ifnonnull
+    fill(0xC8, 0xC9, 5); // goto_w, jsr_w
+  }
+
+  private static void fill(int from, int to, int length) {
+    for (int i = from; i <= to; i++) {
+      INSTRUCTION_LENGTHS[i] = (byte) length;
+    }
+  }
+
+  private AllocationScanner() { }
+
+  /**
+   * Returns whether the given class file may contain allocation sites.
+   *
+   * @param b the class file.
+   * @return false only if the class certainly contains no allocation sites.
+   */
+  static boolean hasAllocationSites(byte[] b) {
+    return hasAllocationSites(allocatingMethods(b));
+  }
+
+  /**
+   * Returns whether any of the given methods may contain allocation sites.
+   *
+   * @param methods the result of {@link #allocatingMethods(byte[])}.
+   * @return false only if the class certainly contains no allocation sites.
+   */
+  static boolean hasAllocationSites(boolean[] methods) {
+    if (methods == null) {
+      return true;
+    }
+    for (boolean allocates : methods) {
+      if (allocates) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the methods of the given class file that may contain allocation
+   * sites.
+   *
+   * @param b the class file.
+   * @return an array with an element for each method, in the order they
+   *     appear in the class file, which is false only if the method
+   *     certainly contains no allocation sites; or null if the class file
+   *     could not be scanned.
+   */
+  static boolean[] allocatingMethods(byte[] b) {
+    try {
+      return scan(b);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // A malformed class; let ASM report it.
+      return null;
+    }
+  }
+
+  private static boolean[] scan(byte[] b) {
+    int count = u2(b, 8);
+    int[] offsets = new int[count];
+    int p = 10;
+    for (int i = 1; i < count; i++) {
+      offsets[i] = p;
+      int tag = b[p];
+      switch (tag) {
+        case UTF8:
+          p += 3 + u2(b, p + 1);
+          break;
+        case LONG:
+        case DOUBLE:
+          p += 9;
+          i++;
+          break;
+        case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+          p += 5;
+          break;
+        case 15:
+          p += 4;
+          break;
+        case 7: case 8: case 16: case 19: case 20:
+          p += 3;
+          break;
+        default:
+          return null;
+      }
+    }
+
+    // Calls to clone() and the reflective newInstance() methods are
+    // rewritten, so any call to a method with one of those names counts.
+    boolean[] rewrittenCalls = new boolean[count];
+    for (int i = 1; i < count; i++) {
+      int tag = b[offsets[i]];
+      if (tag == METHODREF || tag == INTERFACE_METHODREF) {
+        int nameAndType = offsets[u2(b, offsets[i] + 3)];
+        int name = offsets[u2(b, nameAndType + 1)];
+        rewrittenCalls[i] = utf8Equals(b, name, "clone") ||
+            utf8Equals(b, name, "newInstance");
+      }
+    }
+
+    // Skip the access flags, this and super class, and interfaces.
+    p += 6;
+    p += 2 + 2 * u2(b, p);
+    // Skip the fields.
+    int fields = u2(b, p);
+    p += 2;
+    for (int i = 0; i < fields; i++) {
+      p = skipAttributes(b, p + 6);
+    }
+    boolean[] methods = new boolean[u2(b, p)];
+    p += 2;
+    for (int i = 0; i < methods.length; i++) {
+      int attributes = u2(b, p + 6);
+      p += 8;
+      for (int j = 0; j < attributes; j++) {
+        int length = u4(b, p + 2);
+        if (utf8Equals(b, offsets[u2(b, p)], "Code") &&
+            codeAllocates(b, p + 14, u4(b, p + 10), rewrittenCalls)) {
+          methods[i] = true;
+        }
+        p += 6 + length;
+      }
+    }
+    return methods;
+  }
+
+  private static int skipAttributes(byte[] b, int p) {
+    int attributes = u2(b, p);
+    p += 2;
+    for (int i = 0; i < attributes; i++) {
+      p += 6 + u4(b, p + 2);
+    }
+    return p;
+  }
+
+  // Returns whether the bytecode starting at start contains an allocating
+  // instruction or a call to one of the methods marked in rewrittenCalls.
+  private static boolean codeAllocates(byte[] b, int start, int length,
+      boolean[] rewrittenCalls) {
+    int end = start + length;
+    int p = start;
+    while (p < end) {
+      int opcode = b[p] & 0xFF;
+      switch (opcode) {
+        case 0xBB: // new
+        case 0xBC: // newarray
+        case 0xBD: // anewarray
+        case 0xC5: // multianewarray
+          return true;
+        case 0xB6: // invokevirtual
+        case 0xB7: // invokespecial
+        case 0xB8: // invokestatic
+        case 0xB9: // invokeinterface
+          if (rewrittenCalls[u2(b, p + 1)]) {
+            return true;
+          }
+          p += INSTRUCTION_LENGTHS[opcode];
+          break;
+        case 0xAA: { // tableswitch
+          int q = p + 4 - ((p - start) & 3);
+          p = q + 12 + 4 * (u4(b, q + 8) - u4(b, q + 4) + 1);
+          break;
+        }
+        case 0xAB: { // lookupswitch
+          int q = p + 4 - ((p - start) & 3);
+          p = q + 8 + 8 * u4(b, q + 4);
+          break;
+        }
+        case 0xC4: // wide
+          p += ((b[p + 1] & 0xFF) == 0x84) ? 6 : 4;
+          break;
+        default:
+          int n = INSTRUCTION_LENGTHS[opcode];
+          if (n == 0) {
+            return true;
+          }
+          p += n;
+      }
+    }
+    return false;
+  }
+
+  private static boolean utf8Equals(byte[] b, int offset, String s) {
+    if (b[offset] != UTF8 || u2(b, offset + 1) != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (b[offset + 3 + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int u2(byte[] b, int p) {
+    return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+  }
+
+  private static int u4(byte[] b, int p) {
+    return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) |
+        ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+  }
+}
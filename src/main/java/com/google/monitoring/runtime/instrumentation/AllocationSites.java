@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The registry of instrumented allocation sites.  Every allocating bytecode
+ * that {@link AllocationMethodAdapter} instruments is given a site ID when
+ * its class is transformed, identifying the class, method and source line
+ * it belongs to, and the ID is passed to the stock recorder as a constant.
+ * Like type IDs, site IDs are dense, start at 0, and are only meaningful
+ * within a single run of the JVM.  A site keeps its ID when its class is
+ * transformed again (on retransformation, or when the agent is attached
+ * again), so registering sites does not leak; the same code loaded by two
+ * class loaders shares its sites.
+ *
+ * <p>When site counting is enabled (see {@link #setCountingEnabled}), the
+ * recorder adds the number and size of the objects allocated at each site to
+ * per-site counters.  The counters are striped: each thread updates one of
+ * several copies, each in its own arrays, so that threads allocating at the
+ * same site seldom contend for a cache line.  They are only allocated once
+ * counting is first enabled.  Updating them does not
+ * allocate, and {@link #snapshot()} sums the stripes up without ever looking
+ * at a stack.  Under sampling, the counters hold the weighted estimates
+ * (see {@link WeightedSampler}) rather than the raw sample counts.
+ */
+public final class AllocationSites {
+  // Number of counter stripes; a power of two.
+  private static final int STRIPES = stripeCount();
+
+  // Sites per counter chunk, and the corresponding shift.
+  private static final int CHUNK_SHIFT = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  // Longs at either end of a counter array that keep its counters off the
+  // cache lines of whatever is allocated next to it.
+  private static final int PADDING = 8;
+
+  // Site attributes, indexed by site ID.  Replaced by larger copies as
+  // needed; an entry is always written before its ID is published.
+  private static volatile String[] classNames = new String[CHUNK_SIZE];
+  private static volatile String[] methodNames = new String[CHUNK_SIZE];
+  private static volatile String[] methodDescriptors = new String[CHUNK_SIZE];
+  private static volatile int[] lineNumbers = new int[CHUNK_SIZE];
+
+  // The instance size of the class allocated at each count-only site that
+  // allocates with NEW, or -1 if not known yet; see AllocationRecorder's
+  // countAllocation.  Written without the lock: an entry written to an
+  // array that is being replaced is lost, and simply computed again.
+  private static volatile long[] instanceSizes = unknownSizes(CHUNK_SIZE);
+
+  // counters[chunk][stripe] holds the count and byte counters of the sites
+  // of the chunk, interleaved, after PADDING unused longs.  Null until
+  // counting is first enabled; from then on, a chunk is created before the
+  // first of its sites is published.
+  private static volatile AtomicLongArray[][] counters;
+
+  // The IDs of the registered sites, by siteKey(); guarded by lock.
+  private static final Map<String, Integer> ids =
+      new HashMap<String, Integer>();
+
+  // Number of sites registered so far.
+  private static volatile int size = 0;
+
+  private static volatile boolean countingEnabled = false;
+
+  // Protects registration of new sites.
+  private static final Object lock = new Object();
+
+  private AllocationSites() { }
+
+  // One stripe per processor, up to 64, rounded up to a power of two.
+  static int stripeCount() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  private static AtomicLongArray[] newChunk() {
+    AtomicLongArray[] chunk = new AtomicLongArray[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      chunk[i] = new AtomicLongArray(2 * CHUNK_SIZE + 2 * PADDING);
+    }
+    return chunk;
+  }
+
+  /**
+   * Registers an allocation site, or returns the ID it was registered with
+   * before.  This is called when a class is instrumented.
+   *
+   * @param className the internal name of the class containing the site.
+   * @param methodName the name of the method containing the site.
+   * @param methodDescriptor the descriptor of that method.
+   * @param lineNumber the source line of the site, or -1 if unknown.
+   * @param index the number of sites before this one in the method.
+   * @return the ID of the site.
+   */
+  static int register(String className, String methodName,
+      String methodDescriptor, int lineNumber, int index) {
+    String key = className + '.' + methodName + methodDescriptor + ':' +
+        lineNumber + '#' + index;
+    synchronized (lock) {
+      Integer existing = ids.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      int id = size;
+      if (id == classNames.length) {
+        int length = id * 2;
+        classNames = grow(classNames, new String[length]);
+        methodNames = grow(methodNames, new String[length]);
+        methodDescriptors = grow(methodDescriptors, new String[length]);
+        int[] lines = new int[length];
+        System.arraycopy(lineNumbers, 0, lines, 0, id);
+        lineNumbers = lines;
+        long[] sizes = unknownSizes(length);
+        System.arraycopy(instanceSizes, 0, sizes, 0, id);
+        instanceSizes = sizes;
+      }
+      if (counters != null) {
+        growCounters(id + 1);
+      }
+      classNames[id] = className;
+      methodNames[id] = methodName;
+      methodDescriptors[id] = methodDescriptor;
+      lineNumbers[id] = lineNumber;
+      size = id + 1;
+      ids.put(key, id);
+      return id;
+    }
+  }
+
+  // Makes sure that there are counters for the given number of sites.
+  // Called with lock held.
+  private static void growCounters(int sites) {
+    AtomicLongArray[][] current = counters;
+    int have = (current == null) ? 0 : current.length;
+    int chunks = Math.max(1, (sites + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+    if (chunks <= have) {
+      return;
+    }
+    AtomicLongArray[][] grown = new AtomicLongArray[chunks][];
+    if (current != null) {
+      System.arraycopy(current, 0, grown, 0, have);
+    }
+    for (int i = have; i < chunks; i++) {
+      grown[i] = newChunk();
+    }
+    counters = grown;
+  }
+
+  private static String[] grow(String[] from, String[] to) {
+    System.arraycopy(from, 0, to, 0, from.length);
+    return to;
+  }
+
+  private static long[] unknownSizes(int length) {
+    long[] sizes = new long[length];
+    Arrays.fill(sizes, -1);
+    return sizes;
+  }
+
+  /**
+   * Returns the number of sites registered so far.  Valid site IDs range
+   * from 0 to one less than this.
+   *
+   * @return the number of registered sites.
+   */
+  public static int size() {
+    return size;
+  }
+
+  /**
+   * Returns the internal name of the class containing the given site.
+   *
+   * @param site a site ID.
+   * @return the class name, with '/' as the package separator.
+   * @throws IllegalArgumentException if no such site has been registered.
+   */
+  public static String getClassName(int site) {
+    checkSite(site);
+    return classNames[site];
+  }
+
+  /**
+   * Returns the name of the method containing the given site.
+   *
+   * @param site a site ID.
+   * @return the method name.
+   * @throws IllegalArgumentException if no such site has been registered.
+   */
+  public static String getMethodName(int site) {
+    checkSite(site);
+    return methodNames[site];
+  }
+
+  /**
+   * Returns the descriptor of the method containing the given site.
+   *
+   * @param site a site ID.
+   * @return the method descriptor.
+   * @throws IllegalArgumentException if no such site has been registered.
+   */
+  public static String getMethodDescriptor(int site) {
+    checkSite(site);
+    return methodDescriptors[site];
+  }
+
+  /**
+   * Returns the source line of the given site.
+   *
+   * @param site a site ID.
+   * @return the line number, or -1 if the class has no line numbers.
+   * @throws IllegalArgumentException if no such site has been registered.
+   */
+  public static int getLineNumber(int site) {
+    checkSite(site);
+    return lineNumbers[site];
+  }
+
+  /**
+   * Returns a readable description of the given site, such as
+   * <code>com/example/Foo.bar(I)V:42</code>.
+   *
+   * @param site a site ID.
+   * @return a description of the site.
+   * @throws IllegalArgumentException if no such site has been registered.
+   */
+  public static String describe(int site) {
+    checkSite(site);
+    return classNames[site] + "." + methodNames[site] +
+        methodDescriptors[site] + ":" + lineNumbers[site];
+  }
+
+  private static void checkSite(int site) {
+    if (site < 0 || site >= size) {
+      throw new IllegalArgumentException("Unknown allocation site: " + site);
+    }
+  }
+
+  /**
+   * Turns the per-site counters on or off.  They are off by default, and
+   * can also be turned on with the <code>siteCounters</code> agent argument.
+   * While they are on, the recorder is invoked even if no sampler is
+   * registered.
+   *
+   * @param enabled whether to count allocations per site.
+   */
+  public static void setCountingEnabled(boolean enabled) {
+    if (enabled) {
+      synchronized (lock) {
+        growCounters(size);
+      }
+    }
+    countingEnabled = enabled;
+    AllocationRecorder.listenersChanged();
+  }
+
+  /**
+   * Returns whether the per-site counters are on.
+   *
+   * @return true if allocations are counted per site.
+   */
+  public static boolean isCountingEnabled() {
+    return countingEnabled;
+  }
+
+  /**
+   * Adds an allocation to the counters of a site.  Called by the recorder.
+   *
+   * @param site the site ID.
+   * @param context the context of the allocating thread, which selects the
+   *     stripe.
+   * @param count the (estimated) number of allocations.
+   * @param bytes the (estimated) number of bytes allocated.
+   */
+  static void add(int site, RecorderContext context, long count, long bytes) {
+    AtomicLongArray stripe =
+        counters[site >>> CHUNK_SHIFT][context.stripe & (STRIPES - 1)];
+    int index = PADDING + 2 * (site & (CHUNK_SIZE - 1));
+    stripe.addAndGet(index, count);
+    stripe.addAndGet(index + 1, bytes);
+  }
+
+  /**
+   * Returns the instance size cached for the given site by
+   * {@link #setInstanceSize}, or -1 if there is none.  Only meaningful for
+   * sites that always allocate instances of the same class.
+   */
+  static long getInstanceSize(int site) {
+    return instanceSizes[site];
+  }
+
+  /**
+   * Caches the size of the instances allocated at the given site.
+   */
+  static void setInstanceSize(int site, long size) {
+    instanceSizes[site] = size;
+  }
+
+  /**
+   * Returns the totals of the per-site counters, summed over all threads.
+   * The counters keep changing while they are read, so the snapshot is not
+   * an atomic view of all sites, but each total includes everything counted
+   * before this method was called.
+   *
+   * @return the per-site totals.
+   */
+  public static Snapshot snapshot() {
+    // Counters are created before the sites they count are published, so
+    // reading size first guarantees that they cover all of its sites.
+    int sites = size;
+    AtomicLongArray[][] chunks = counters;
+    long[] counts = new long[sites];
+    long[] bytes = new long[sites];
+    if (chunks == null) {
+      return new Snapshot(counts, bytes);
+    }
+    for (int site = 0; site < sites; site++) {
+      int index = PADDING + 2 * (site & (CHUNK_SIZE - 1));
+      for (AtomicLongArray stripe : chunks[site >>> CHUNK_SHIFT]) {
+        counts[site] += stripe.get(index);
+        bytes[site] += stripe.get(index + 1);
+      }
+    }
+    return new Snapshot(counts, bytes);
+  }
+
+  /**
+   * Per-site allocation totals, as returned by {@link #snapshot()}.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long[] bytes;
+
+    Snapshot(long[] counts, long[] bytes) {
+      this.counts = counts;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of sites covered by this snapshot.
+     *
+     * @return one more than the highest site ID in this snapshot.
+     */
+    public int size() {
+      return counts.length;
+    }
+
+    /**
+     * Returns the number of allocations counted at the given site.
+     *
+     * @param site a site ID less than {@link #size()}.
+     * @return the allocation count.
+     */
+    public long getCount(int site) {
+      return counts[site];
+    }
+
+    /**
+     * Returns the number of bytes counted at the given site.
+     *
+     * @param site a site ID less than {@link #size()}.
+     * @return the allocated bytes.
+     */
+    public long getBytes(int site) {
+      return bytes[site];
+    }
+  }
+}
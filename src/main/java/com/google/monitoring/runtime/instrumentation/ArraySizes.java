@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+
+/**
+ * Computes the sizes of arrays arithmetically, so that the recorder does not
+ * have to call {@link Instrumentation#getObjectSize} (a JNI transition) for
+ * every array it sees.  The size of an array is
+ *
+ * <pre>
+ *   align(baseOffset + length * elementSize)
+ * </pre>
+ *
+ * where the base offset (the header, including the length field and any
+ * padding) depends on the element type, and the alignment is the JVM's
+ * object alignment.  All of these depend on JVM flags such as compressed
+ * oops and class pointers and the object alignment, so instead of guessing,
+ * {@link #calibrate} measures them once, using
+ * <code>getObjectSize</code> on a few arrays, when the agent starts.
+ */
+final class ArraySizes {
+  // The component types we know the layout of; everything that is not a
+  // primitive is laid out like Object.
+  private static final Class<?>[] components = {
+    boolean.class, byte.class, char.class, short.class,
+    int.class, float.class, long.class, double.class, Object.class
+  };
+
+  // Indexed like components.  Only written by calibrate(), before any
+  // allocation is recorded; -1 means unknown.
+  private static final long[] baseOffsets = new long[components.length];
+  private static final long[] elementSizes = new long[components.length];
+
+  // The object alignment minus one.
+  private static long alignmentMask;
+
+  static {
+    for (int i = 0; i < components.length; i++) {
+      baseOffsets[i] = -1;
+      elementSizes[i] = -1;
+    }
+  }
+
+  private ArraySizes() { }
+
+  /**
+   * Measures the array layout of the running JVM.  If the measurements do
+   * not fit the model, the affected array types keep being measured with
+   * getObjectSize.
+   *
+   * @param inst the instrumentation object to measure arrays with.
+   */
+  static void calibrate(Instrumentation inst) {
+    try {
+      long alignment = measureAlignment(inst);
+      if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+        return;
+      }
+      alignmentMask = alignment - 1;
+      for (int i = 0; i < components.length; i++) {
+        calibrate(inst, i);
+      }
+    } catch (RuntimeException e) {
+      AllocationInstrumenter.logger.log(Level.WARNING,
+          "Could not calibrate array sizes; measuring every array instead.", e);
+    }
+  }
+
+  // The alignment is the smallest step between the sizes of byte arrays of
+  // consecutive lengths.  Object alignment is at most 256 bytes in HotSpot,
+  // so we are sure to see a couple of steps.
+  private static long measureAlignment(Instrumentation inst) {
+    long alignment = Long.MAX_VALUE;
+    long previous = inst.getObjectSize(new byte[0]);
+    for (int length = 1; length <= 1024; length++) {
+      long size = inst.getObjectSize(new byte[length]);
+      if (size != previous) {
+        alignment = Math.min(alignment, size - previous);
+        previous = size;
+      }
+    }
+    return (alignment == Long.MAX_VALUE) ? -1 : alignment;
+  }
+
+  private static void calibrate(Instrumentation inst, int index) {
+    Class<?> component = components[index];
+    long alignment = alignmentMask + 1;
+    long emptySize = sizeOf(inst, component, 0);
+    // alignment is a power of two and so is the element size, so the
+    // difference below is not affected by rounding.
+    long elementSize =
+        (sizeOf(inst, component, (int) alignment) - emptySize) / alignment;
+    if (elementSize <= 0) {
+      return;
+    }
+    // Elements fit in the padding of an empty array up to some length;
+    // the base offset follows from that.  Any base offset consistent with
+    // the padding we see gives the same sizes.
+    int padded = 0;
+    while (sizeOf(inst, component, padded + 1) == emptySize) {
+      padded++;
+    }
+    long baseOffset = emptySize - padded * elementSize;
+
+    // Check the model before trusting it.
+    int[] lengths = { 1, 2, 3, 5, 7, 13, 100, 255, 1000, 4097 };
+    for (int length : lengths) {
+      if (sizeOf(inst, component, length) !=
+          align(baseOffset + length * elementSize)) {
+        AllocationInstrumenter.logger.warning("Unexpected layout of " +
+            component.getName() + " arrays; measuring them instead.");
+        return;
+      }
+    }
+    baseOffsets[index] = baseOffset;
+    elementSizes[index] = elementSize;
+  }
+
+  private static long sizeOf(Instrumentation inst, Class<?> component,
+      int length) {
+    return inst.getObjectSize(Array.newInstance(component, length));
+  }
+
+  private static long align(long size) {
+    return (size + alignmentMask) & ~alignmentMask;
+  }
+
+  /**
+   * Returns the base offset of arrays with the given component type, or -1
+   * if it is unknown.
+   */
+  static long baseOffset(Class<?> component) {
+    return baseOffsets[indexOf(component)];
+  }
+
+  /**
+   * Returns the element size of arrays with the given component type, or -1
+   * if it is unknown.
+   */
+  static long elementSize(Class<?> component) {
+    return elementSizes[indexOf(component)];
+  }
+
+  private static int indexOf(Class<?> component) {
+    if (component.isPrimitive()) {
+      for (int i = 0; i < components.length - 1; i++) {
+        if (components[i] == component) {
+          return i;
+        }
+      }
+    }
+    return components.length - 1;
+  }
+
+  /**
+   * Returns the size of the object header of the running JVM, or -1 if it
+   * is unknown.  The header is followed by the length field of an array,
+   * and by nothing else in an <code>int[]</code>.
+   */
+  static long headerSize() {
+    long intBase = baseOffset(int.class);
+    return (intBase < 0) ? -1 : intBase - 4;
+  }
+
+  /**
+   * Returns the size of a reference of the running JVM, or -1 if it is
+   * unknown.
+   */
+  static long referenceSize() {
+    return elementSize(Object.class);
+  }
+
+  /**
+   * Rounds the given size up to the JVM's object alignment.
+   */
+  static long alignSize(long size) {
+    return align(size);
+  }
+
+  /**
+   * Estimates the size of an instance of the given class from its fields:
+   * the header plus the sizes of all instance fields, aligned.  The JVM
+   * packs fields closely, so this is usually exact, and otherwise a few
+   * bytes short.
+   *
+   * @param cls a class that is not an array class.
+   * @return the estimated size, or 0 if the layout is unknown.
+   */
+  static long estimateInstanceSize(Class<?> cls) {
+    long header = headerSize();
+    long reference = referenceSize();
+    if (header < 0 || reference < 0 || cls.isArray()) {
+      return 0;
+    }
+    long size = header;
+    for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers())) {
+          Class<?> type = field.getType();
+          size += type.isPrimitive() ? elementSize(type) : reference;
+        }
+      }
+    }
+    return align(size);
+  }
+
+  /**
+   * Returns the size of an array with the given component type and length,
+   * or 0 if the layout is unknown.
+   */
+  static long sizeOf(Class<?> component, int length) {
+    long element = elementSize(component);
+    return (element < 0) ? 0 : sizeOf(baseOffset(component), element, length);
+  }
+
+  /**
+   * Returns the size of an array with the given layout and length.
+   *
+   * @param baseOffset the base offset of the array type.
+   * @param elementSize the element size of the array type.
+   * @param length the length of the array.
+   * @return the size of the array, in bytes.
+   */
+  static long sizeOf(long baseOffset, long elementSize, int length) {
+    return align(baseOffset + length * elementSize);
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.Reference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Drains the per-thread {@link EventRing}s and passes the queued events on
+ * to the samplers, on a single daemon thread.  Events are collected into an
+ * {@link AllocationBatch}, which is handed to the {@link BatchSampler}s as a
+ * whole and then replayed to the per-event samplers.  See
+ * {@link AllocationRecorder#setAsyncDispatch(boolean)}.
+ */
+final class AsyncDispatcher implements Runnable {
+  // Number of events a thread's ring holds at first, and at most; powers of
+  // two.  A ring that fills up is replaced by one twice its size (see
+  // grow), so only threads that queue events in bursts pay for a large ring:
+  // at about 50 bytes per event, 12 KB for a new ring and 200 KB at the
+  // maximum.
+  private static final int INITIAL_RING_CAPACITY = 256;
+  private static final int MAX_RING_CAPACITY = 4096;
+
+  // How long the dispatcher sleeps when it finds nothing to do: starting at
+  // the minimum right after it found events, and doubling up to the maximum
+  // while there are none, so that bursts are picked up quickly but an idle
+  // process is not woken up all the time.
+  private static final long MIN_IDLE_MILLIS = 1;
+  private static final long MAX_IDLE_MILLIS = 16;
+
+  // All rings that may still hold events.  Threads add their ring when they
+  // first queue an event; the dispatcher removes rings whose thread has
+  // terminated once they are empty.
+  private static final ConcurrentLinkedQueue<EventRing> rings =
+      new ConcurrentLinkedQueue<EventRing>();
+
+  // Events dropped by rings that have since been removed.
+  private static final AtomicLong retiredDrops = new AtomicLong();
+
+  // The running dispatcher thread, or null once stop() has been called.
+  // Only written under the class lock.
+  private static volatile Thread thread;
+
+  // Held while draining, so that a dispatcher started right after stop()
+  // never drains the rings at the same time as the one that is stopping.
+  private static final Object drainLock = new Object();
+
+  // Number of events passed to the samplers at once.
+  private static final int BATCH_SIZE = 1024;
+
+  // Reused for every batch; only touched by the dispatcher thread.
+  private final AllocationBatch batch = new AllocationBatch(BATCH_SIZE);
+
+  // The dispatcher thread's context, through which per-event samplers get
+  // the stack ID of the event they are passed.
+  private RecorderContext context;
+
+  private AsyncDispatcher() {
+  }
+
+  /**
+   * Starts the dispatcher thread, unless it is already running.
+   */
+  static synchronized void start() {
+    if (thread == null) {
+      Thread t = new Thread(new AsyncDispatcher(),
+          "AllocationRecorder-dispatcher");
+      t.setDaemon(true);
+      thread = t;
+      t.start();
+    }
+  }
+
+  /**
+   * Stops the dispatcher thread, if it is running.  The thread notices
+   * within one idle period, dispatches what is queued at that point and
+   * exits; events queued afterwards stay in the rings until
+   * {@link #start()} is called again.  The thread is not interrupted, as
+   * that would close any file channel a sampler is using.
+   */
+  static synchronized void stop() {
+    thread = null;
+  }
+
+  /**
+   * Creates a ring for the given thread and registers it for draining.
+   */
+  static EventRing register(Thread owner) {
+    EventRing ring = new EventRing(owner, INITIAL_RING_CAPACITY);
+    rings.add(ring);
+    return ring;
+  }
+
+  /**
+   * Replaces the given full ring with a registered ring of twice its size,
+   * unless it is as large as rings get.  The old ring is drained and removed
+   * as if its thread had terminated.  Only to be called by the ring's owner.
+   *
+   * @return the new ring, or the given one if it cannot grow.
+   */
+  static EventRing grow(EventRing full) {
+    if (full.capacity() >= MAX_RING_CAPACITY) {
+      return full;
+    }
+    EventRing ring = new EventRing(Thread.currentThread(),
+        full.capacity() * 2);
+    rings.add(ring);
+    full.retire();
+    return ring;
+  }
+
+  /**
+   * Returns the number of events dropped by all rings so far.
+   */
+  static long droppedEvents() {
+    long dropped = retiredDrops.get();
+    for (EventRing ring : rings) {
+      dropped += ring.dropped();
+    }
+    return dropped;
+  }
+
+  @Override
+  public void run() {
+    // Whatever the samplers allocate here is not the application's doing.
+    context = RecorderContext.forCurrentThread();
+    context.mute();
+    Thread self = Thread.currentThread();
+    long idleMillis = MIN_IDLE_MILLIS;
+    while (thread == self) {
+      if (drainAll() != 0) {
+        idleMillis = MIN_IDLE_MILLIS;
+        continue;
+      }
+      try {
+        Thread.sleep(idleMillis);
+      } catch (InterruptedException e) {
+        // Nobody is supposed to interrupt this thread; keep going.
+      }
+      idleMillis = Math.min(idleMillis * 2, MAX_IDLE_MILLIS);
+    }
+    drainAll();
+  }
+
+  // Dispatches everything queued so far, and returns the number of events
+  // dispatched.
+  private long drainAll() {
+    synchronized (drainLock) {
+      long drained = 0;
+      for (Iterator<EventRing> it = rings.iterator(); it.hasNext(); ) {
+        EventRing ring = it.next();
+        // Check for termination before draining, so that no event published
+        // by the thread can be left behind when the ring is removed.
+        boolean orphaned = ring.isOrphaned();
+        drained += drain(ring);
+        if (orphaned) {
+          retiredDrops.addAndGet(ring.dropped());
+          it.remove();
+        }
+      }
+      flush();
+      return drained;
+    }
+  }
+
+  // Moves the events queued in the given ring into the batch, flushing the
+  // batch whenever it fills up.
+  private long drain(EventRing ring) {
+    AllocationBatch b = batch;
+    long head = ring.head();
+    long tail = ring.tail();
+    for (long s = head; s < tail; s++) {
+      if (b.length == b.typeIds.length) {
+        flush();
+      }
+      int i = ring.index(s);
+      int j = b.length++;
+      b.typeIds[j] = ring.typeIds[i];
+      b.siteIds[j] = ring.siteIds[i];
+      b.stackIds[j] = ring.stackIds[i];
+      b.counts[j] = ring.counts[i];
+      b.sizes[j] = ring.sizes[i];
+      b.timestamps[j] = ring.timestamps[i];
+      b.weights[j] = ring.weights[i];
+      b.threadIds[j] = ring.threadId;
+      b.deferred[j] = ring.deferred[i];
+      Object ref = ring.objects[i];
+      b.objects[j] = (ref == null) ? null : ((Reference<?>) ref).get();
+    }
+    ring.release(tail);
+    return tail - head;
+  }
+
+  // Passes the batch to the batch samplers, and the deferred events in it to
+  // the per-event samplers, then empties it.
+  private void flush() {
+    AllocationBatch b = batch;
+    int length = b.length;
+    if (length == 0) {
+      return;
+    }
+    BatchSampler[] batchSamplers = AllocationRecorder.getBatchSamplers();
+    if (batchSamplers != null) {
+      for (BatchSampler sampler : batchSamplers) {
+        try {
+          sampler.sampleAllocations(b);
+        } catch (Throwable t) {
+          logSamplerFailure(t);
+        }
+      }
+    }
+    for (int j = 0; j < length; j++) {
+      if (b.deferred[j]) {
+        context.stackId = b.stackIds[j];
+        try {
+          AllocationRecorder.dispatch(b.counts[j], b.typeIds[j],
+              b.objects[j], b.sizes[j], b.weights[j]);
+        } catch (Throwable t) {
+          logSamplerFailure(t);
+        }
+      }
+      b.objects[j] = null;
+    }
+    context.stackId = -1;
+    b.length = 0;
+  }
+
+  // A failing sampler must not stop dispatching for everyone else.
+  private static void logSamplerFailure(Throwable t) {
+    AllocationInstrumenter.logger.log(Level.WARNING,
+        "Sampler threw while dispatching allocations", t);
+  }
+}
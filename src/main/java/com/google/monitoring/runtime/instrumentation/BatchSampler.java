@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A sampler that receives allocations in batches rather than one call per
+ * allocation, so that aggregating them is a tight loop over primitive
+ * arrays.  Batch samplers are always invoked on the background dispatcher
+ * thread (see {@link AllocationRecorder#setAsyncDispatch(boolean)}), whether
+ * or not the other samplers are; registering one starts that thread.
+ *
+ * <p>The dispatcher thread is muted, so batch samplers may allocate freely.
+ */
+public interface BatchSampler {
+  /**
+   * Records a batch of allocations.  The batch, and the arrays it hands
+   * out, are reused for the next batch, so they must not be retained after
+   * this method returns.
+   *
+   * @param batch the allocations, in the order each thread performed them.
+   */
+  public void sampleAllocations(AllocationBatch batch);
+}
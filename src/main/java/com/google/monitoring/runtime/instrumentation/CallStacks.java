@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Interns the call stacks captured for sampled allocations (see
+ * {@link AllocationRecorder#setStackDepth(int)}), so that a stack that has
+ * been seen before is represented by a single int, its stack ID, instead of
+ * a fresh array of frames.
+ *
+ * <p>Stacks are kept in a trie whose root's children are allocating frames
+ * and whose deeper levels are their callers, so that stacks share storage
+ * for the innermost frames they have in common.  A stack ID is the ID of the
+ * trie node of the stack's outermost captured frame; its frames are found by
+ * walking {@link #getParent(int) parents} back to the root.  Frames are
+ * hash-consed into a frame table, so each distinct frame is stored once.
+ *
+ * <p>The trie holds at most {@link #MAX_NODES} nodes and the frame table at
+ * most {@link #MAX_FRAMES} frames; a frame is only added to the table along
+ * with the first node that refers to it.  Neither nodes nor frames are ever
+ * evicted, so stack and frame IDs stay valid for the life of the JVM.  Once
+ * either table is full, a stack that is not already interned is truncated to
+ * its longest interned part, which always starts at the allocating frame,
+ * and the truncation is counted (see {@link #getTruncatedCount()}).
+ *
+ * <p>Stacks are captured with <code>java.lang.StackWalker</code> where it
+ * exists, which only materializes the frames that are kept, and with a
+ * <code>Throwable</code> on older JVMs.
+ */
+public final class CallStacks {
+  /**
+   * The maximum number of trie nodes, that is, of distinct stack prefixes
+   * that are kept.
+   */
+  public static final int MAX_NODES = 1 << 20;
+
+  /**
+   * The maximum number of distinct frames that are kept.
+   */
+  public static final int MAX_FRAMES = 1 << 18;
+
+  private static final ConcurrentHashMap<StackTraceElement, Integer> frameIds =
+      new ConcurrentHashMap<StackTraceElement, Integer>();
+
+  // Indexed by frame ID.  Replaced by a larger copy as needed; an entry is
+  // always written before its ID is published.
+  private static volatile StackTraceElement[] frames =
+      new StackTraceElement[1024];
+
+  // The frame and parent node of each trie node, indexed by node ID.  The
+  // parent of a root child is -1.
+  private static volatile int[] nodeFrames = new int[1024];
+  private static volatile int[] nodeParents = new int[1024];
+
+  private static volatile int frameCount = 0;
+  private static volatile int nodeCount = 0;
+
+  // Maps (parent node, frame) to the child node; see Children.
+  private static volatile Children children = new Children(2048);
+
+  private static final AtomicLong truncated = new AtomicLong();
+
+  // Protects additions to all of the above.
+  private static final Object lock = new Object();
+
+  // The StackWalker machinery, looked up reflectively so that the agent
+  // still runs on Java 7 and 8.  All null if StackWalker is not available.
+  // The handles take and return Object, so that they can be called with
+  // invokeExact; being static and final, they are inlined by the JIT.
+  private static final Object walker;
+  // A Function that passes the stream of frames to collectFrames.
+  private static final Object frameCollector;
+  // StackWalker.walk(Function).
+  private static final MethodHandle walk;
+  // Stream.iterator().
+  private static final MethodHandle streamIterator;
+  // StackWalker.StackFrame.getClassName().
+  private static final MethodHandle frameClassName;
+  // StackWalker.StackFrame.toStackTraceElement().
+  private static final MethodHandle frameElement;
+
+  static {
+    Object stackWalker = null;
+    Object collector = null;
+    MethodHandle walkHandle = null;
+    MethodHandle iteratorHandle = null;
+    MethodHandle classNameHandle = null;
+    MethodHandle elementHandle = null;
+    try {
+      Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+      Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+      Class<?> functionClass = Class.forName("java.util.function.Function");
+      Class<?> streamClass = Class.forName("java.util.stream.BaseStream");
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType apply = MethodType.methodType(Object.class, Object.class);
+
+      walkHandle = lookup.findVirtual(walkerClass, "walk",
+          MethodType.methodType(Object.class, functionClass))
+          .asType(MethodType.methodType(
+              Object.class, Object.class, Object.class));
+      iteratorHandle = lookup.findVirtual(streamClass, "iterator",
+          MethodType.methodType(Iterator.class))
+          .asType(MethodType.methodType(Iterator.class, Object.class));
+      classNameHandle = lookup.findVirtual(frameClass, "getClassName",
+          MethodType.methodType(String.class))
+          .asType(MethodType.methodType(String.class, Object.class));
+      elementHandle = lookup.findVirtual(frameClass, "toStackTraceElement",
+          MethodType.methodType(StackTraceElement.class))
+          .asType(MethodType.methodType(StackTraceElement.class, Object.class));
+
+      // The equivalent of the lambda CallStacks::collectFrames.
+      MethodHandle metafactory = lookup.findStatic(
+          Class.forName("java.lang.invoke.LambdaMetafactory"), "metafactory",
+          MethodType.methodType(CallSite.class, MethodHandles.Lookup.class,
+              String.class, MethodType.class, MethodType.class,
+              MethodHandle.class, MethodType.class));
+      CallSite site = (CallSite) metafactory.invokeWithArguments(lookup,
+          "apply", MethodType.methodType(functionClass), apply,
+          lookup.findStatic(CallStacks.class, "collectFrames", apply), apply);
+      collector = site.getTarget().invoke();
+      stackWalker = walkerClass.getMethod("getInstance").invoke(null);
+    } catch (Throwable e) {
+      // Not available (before Java 9); fall back to Throwable.
+      stackWalker = null;
+    }
+    if (stackWalker == null) {
+      collector = null;
+      walkHandle = null;
+      iteratorHandle = null;
+      classNameHandle = null;
+      elementHandle = null;
+    }
+    walker = stackWalker;
+    frameCollector = collector;
+    walk = walkHandle;
+    streamIterator = iteratorHandle;
+    frameClassName = classNameHandle;
+    frameElement = elementHandle;
+  }
+
+  private CallStacks() { }
+
+  // An open-addressing hash table from (parent + 1) << 32 | (frame + 1),
+  // which is never 0, to node ID.  It is read without locking: a node ID is
+  // stored before its key, so a reader that finds a key finds its node.  A
+  // full table is replaced, under the lock, by a larger copy.
+  private static final class Children {
+    final AtomicLongArray keys;
+    final AtomicIntegerArray nodes;
+    final int mask;
+    int size;
+
+    Children(int capacity) {
+      keys = new AtomicLongArray(capacity);
+      nodes = new AtomicIntegerArray(capacity);
+      mask = capacity - 1;
+    }
+
+    int get(long key) {
+      for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+        long k = keys.get(i);
+        if (k == key) {
+          return nodes.get(i);
+        }
+        if (k == 0) {
+          return -1;
+        }
+      }
+    }
+
+    // Only called with the lock held, and with room to spare.
+    void put(long key, int node) {
+      int i = hash(key) & mask;
+      while (keys.get(i) != 0) {
+        i = (i + 1) & mask;
+      }
+      nodes.set(i, node);
+      keys.set(i, key);
+      size++;
+    }
+
+    private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32);
+    }
+  }
+
+  private static long childKey(int parent, int frame) {
+    return ((long) (parent + 1) << 32) | (frame + 1);
+  }
+
+  /**
+   * Captures the stack of the calling thread, leaving out the frames of the
+   * recorder itself, and interns at most the given number of its innermost
+   * frames.
+   *
+   * @param maxDepth the maximum number of frames to keep.
+   * @param context the context of the calling thread.
+   * @return the stack ID, or -1 if there were no frames to keep.
+   */
+  static int capture(int maxDepth, RecorderContext context) {
+    if (walker != null) {
+      StackTraceElement[] scratch = context.frameScratch;
+      if (scratch == null || scratch.length < maxDepth) {
+        scratch = new StackTraceElement[maxDepth];
+        context.frameScratch = scratch;
+      }
+      context.framesWanted = maxDepth;
+      int count = -1;
+      try {
+        Object result = (Object) walk.invokeExact(walker, frameCollector);
+        count = (Integer) result;
+      } catch (Throwable e) {
+        // Fall through to the Throwable below.
+      }
+      if (count >= 0) {
+        return intern(scratch, 0, count);
+      }
+    }
+    StackTraceElement[] trace = new Throwable().getStackTrace();
+    int start = 0;
+    while (start < trace.length &&
+        isRecorderClass(trace[start].getClassName())) {
+      start++;
+    }
+    return intern(trace, start, Math.min(trace.length, start + maxDepth));
+  }
+
+  /**
+   * Returns true if stacks are captured with StackWalker rather than with a
+   * Throwable.
+   */
+  static boolean usesStackWalker() {
+    return walker != null;
+  }
+
+  // Called by StackWalker.walk, through frameCollector, on the capturing
+  // thread.  Copies the innermost frames that do not belong to the recorder
+  // into the thread's scratch array and returns how many it copied.
+  private static Object collectFrames(Object frames) throws Throwable {
+    RecorderContext context = RecorderContext.forCurrentThread();
+    StackTraceElement[] scratch = context.frameScratch;
+    int wanted = context.framesWanted;
+    Iterator<?> it = (Iterator<?>) streamIterator.invokeExact(frames);
+    int count = 0;
+    boolean skipping = true;
+    while (count < wanted && it.hasNext()) {
+      Object frame = it.next();
+      String className = (String) frameClassName.invokeExact(frame);
+      if (skipping) {
+        if (isRecorderClass(className)) {
+          continue;
+        }
+        skipping = false;
+      }
+      scratch[count++] = (StackTraceElement) frameElement.invokeExact(frame);
+    }
+    return count;
+  }
+
+  // Whether the class belongs to the agent or to the invokedynamic
+  // machinery between an instrumented method and the recorder.
+  private static boolean isRecorderClass(String className) {
+    return className.startsWith(
+        "com.google.monitoring.runtime.instrumentation.") ||
+        className.startsWith("java.lang.invoke.");
+  }
+
+  /**
+   * Interns the given frames, innermost first.
+   *
+   * @return the stack ID, or -1 if the range is empty.
+   */
+  static int intern(StackTraceElement[] trace, int start, int end) {
+    int node = -1;
+    Children table = children;
+    int i = start;
+    // Follow the part of the stack that is already interned without taking
+    // the lock.
+    for (; i < end; i++) {
+      Integer frame = frameIds.get(trace[i]);
+      if (frame == null) {
+        break;
+      }
+      int child = table.get(childKey(node, frame));
+      if (child < 0) {
+        break;
+      }
+      node = child;
+    }
+    if (i == end) {
+      return node;
+    }
+    synchronized (lock) {
+      for (; i < end; i++) {
+        Integer known = frameIds.get(trace[i]);
+        int child = (known == null) ? -1 : children.get(childKey(node, known));
+        if (child < 0) {
+          // Check for room in both tables before adding to either, so that
+          // nothing is interned for a stack that is then truncated.
+          if (nodeCount == MAX_NODES ||
+              (known == null && frameCount == MAX_FRAMES)) {
+            truncated.incrementAndGet();
+            break;
+          }
+          int frame = (known == null) ? addFrame(trace[i]) : known;
+          child = addNode(node, frame, childKey(node, frame));
+        }
+        node = child;
+      }
+    }
+    return node;
+  }
+
+  // Called with the lock held, and with room in the frame table.
+  private static int addFrame(StackTraceElement element) {
+    int newId = frameCount;
+    StackTraceElement[] current = frames;
+    if (newId == current.length) {
+      StackTraceElement[] grown = new StackTraceElement[newId * 2];
+      System.arraycopy(current, 0, grown, 0, newId);
+      current = grown;
+      frames = grown;
+    }
+    current[newId] = element;
+    frameCount = newId + 1;
+    frameIds.put(element, newId);
+    return newId;
+  }
+
+  // Called with the lock held, and with room in the trie.  Returns the new
+  // node.
+  private static int addNode(int parent, int frame, long key) {
+    int id = nodeCount;
+    if (id == nodeFrames.length) {
+      int[] grownFrames = new int[id * 2];
+      int[] grownParents = new int[id * 2];
+      System.arraycopy(nodeFrames, 0, grownFrames, 0, id);
+      System.arraycopy(nodeParents, 0, grownParents, 0, id);
+      nodeFrames = grownFrames;
+      nodeParents = grownParents;
+    }
+    nodeFrames[id] = frame;
+    nodeParents[id] = parent;
+    nodeCount = id + 1;
+
+    Children table = children;
+    // Keep the table at most half full.
+    if (2 * (table.size + 1) > table.mask + 1) {
+      Children grown = new Children(2 * (table.mask + 1));
+      for (int i = 0; i <= table.mask; i++) {
+        long k = table.keys.get(i);
+        if (k != 0) {
+          grown.put(k, table.nodes.get(i));
+        }
+      }
+      table = grown;
+      children = grown;
+    }
+    table.put(key, id);
+    return id;
+  }
+
+  /**
+   * Returns the number of stack IDs (trie nodes) assigned so far.
+   *
+   * @return one more than the highest stack ID.
+   */
+  public static int size() {
+    return nodeCount;
+  }
+
+  /**
+   * Returns the frame ID of the outermost frame of the given stack.
+   *
+   * @param stackId a stack ID.
+   * @return the frame ID; see {@link #getFrameElement(int)}.
+   * @throws IllegalArgumentException if there is no such stack.
+   */
+  public static int getFrame(int stackId) {
+    checkStack(stackId);
+    return nodeFrames[stackId];
+  }
+
+  /**
+   * Returns the stack ID of the given stack without its outermost frame.
+   *
+   * @param stackId a stack ID.
+   * @return the stack ID of the parent, or -1 if the stack has a single
+   *     frame.
+   * @throws IllegalArgumentException if there is no such stack.
+   */
+  public static int getParent(int stackId) {
+    checkStack(stackId);
+    return nodeParents[stackId];
+  }
+
+  /**
+   * Returns the number of distinct frames seen so far.
+   *
+   * @return one more than the highest frame ID.
+   */
+  public static int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Returns the frame with the given frame ID.
+   *
+   * @param frameId a frame ID.
+   * @return the frame.
+   * @throws IllegalArgumentException if there is no such frame.
+   */
+  public static StackTraceElement getFrameElement(int frameId) {
+    if (frameId < 0 || frameId >= frameCount) {
+      throw new IllegalArgumentException("Unknown frame: " + frameId);
+    }
+    return frames[frameId];
+  }
+
+  /**
+   * Returns the frames of the given stack, innermost (allocating) frame
+   * first.
+   *
+   * @param stackId a stack ID.
+   * @return a new array holding the frames of the stack.
+   * @throws IllegalArgumentException if there is no such stack.
+   */
+  public static StackTraceElement[] getStack(int stackId) {
+    checkStack(stackId);
+    int[] parents = nodeParents;
+    int[] nodeFrame = nodeFrames;
+    int depth = 0;
+    for (int n = stackId; n >= 0; n = parents[n]) {
+      depth++;
+    }
+    StackTraceElement[] stack = new StackTraceElement[depth];
+    StackTraceElement[] frameTable = frames;
+    for (int n = stackId; n >= 0; n = parents[n]) {
+      stack[--depth] = frameTable[nodeFrame[n]];
+    }
+    return stack;
+  }
+
+  /**
+   * Returns the number of stacks that were truncated because the trie or the
+   * frame table was full.
+   *
+   * @return the number of truncated stacks.
+   */
+  public static long getTruncatedCount() {
+    return truncated.get();
+  }
+
+  private static void checkStack(int stackId) {
+    if (stackId < 0 || stackId >= nodeCount) {
+      throw new IllegalArgumentException("Unknown stack: " + stackId);
+    }
+  }
+}
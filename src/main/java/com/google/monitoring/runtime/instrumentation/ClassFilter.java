@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which classes {@link AllocationInstrumenter} rewrites, from lists
+ * of include and exclude patterns.  A class is rewritten if it matches an
+ * include pattern (or there are none) and no exclude pattern.
+ *
+ * <p>Patterns are globs over class names, with either '.' or '/' as the
+ * package separator: <code>*</code> matches any part of a name within one
+ * package, <code>**</code> matches anything, including further packages,
+ * and <code>?</code> matches one character other than a separator.  For
+ * example, <code>com.example.**</code> matches every class in
+ * <code>com.example</code> and its subpackages, and
+ * <code>com.example.Foo*</code> matches <code>Foo</code> and its nested
+ * classes.
+ *
+ * <p>The patterns are compiled into a trie of their literal prefixes (the
+ * part before the first wildcard), so a class name is checked in a single
+ * pass over its characters, however many patterns there are; only the
+ * patterns whose prefix the name starts with are matched as globs.
+ */
+final class ClassFilter {
+  /** A filter that accepts every class. */
+  static final ClassFilter ACCEPT_ALL = new ClassFilter(
+      null, new Node());
+
+  // A trie node.  children[i] is the child for the character labels[i].
+  private static final class Node {
+    char[] labels = new char[0];
+    Node[] children = new Node[0];
+    // The wildcard parts of the patterns whose literal prefix ends here.
+    String[] suffixes;
+
+    Node child(char c) {
+      char[] l = labels;
+      for (int i = 0; i < l.length; i++) {
+        if (l[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node addChild(char c) {
+      Node child = child(c);
+      if (child == null) {
+        child = new Node();
+        int n = labels.length;
+        labels = Arrays.copyOf(labels, n + 1);
+        children = Arrays.copyOf(children, n + 1);
+        labels[n] = c;
+        children[n] = child;
+      }
+      return child;
+    }
+  }
+
+  // Null if every class is included.
+  private final Node includes;
+  private final Node excludes;
+
+  private ClassFilter(Node includes, Node excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * Compiles the given patterns.
+   *
+   * @param includes the include patterns; if empty, every class not
+   *     excluded is accepted.
+   * @param excludes the exclude patterns.
+   * @return the compiled filter.
+   */
+  static ClassFilter compile(List<String> includes, List<String> excludes) {
+    if (includes.isEmpty() && excludes.isEmpty()) {
+      return ACCEPT_ALL;
+    }
+    return new ClassFilter(includes.isEmpty() ? null : trie(includes),
+        trie(excludes));
+  }
+
+  private static Node trie(List<String> patterns) {
+    Node root = new Node();
+    for (String pattern : patterns) {
+      String p = pattern.trim().replace('.', '/');
+      int wildcard = p.length();
+      for (int i = 0; i < p.length(); i++) {
+        char c = p.charAt(i);
+        if (c == '*' || c == '?') {
+          wildcard = i;
+          break;
+        }
+      }
+      Node node = root;
+      for (int i = 0; i < wildcard; i++) {
+        node = node.addChild(p.charAt(i));
+      }
+      String suffix = p.substring(wildcard);
+      node.suffixes = (node.suffixes == null) ? new String[] { suffix } :
+          append(node.suffixes, suffix);
+    }
+    return root;
+  }
+
+  private static String[] append(String[] array, String s) {
+    String[] result = Arrays.copyOf(array, array.length + 1);
+    result[array.length] = s;
+    return result;
+  }
+
+  /**
+   * Returns whether the class with the given internal name is to be
+   * rewritten.
+   *
+   * @param className the internal name of the class, with '/' separators.
+   * @return true if the class passes the filter.
+   */
+  boolean accepts(String className) {
+    return (includes == null || matches(includes, className)) &&
+        !matches(excludes, className);
+  }
+
+  private static boolean matches(Node root, String name) {
+    Node node = root;
+    for (int i = 0; ; i++) {
+      String[] suffixes = node.suffixes;
+      if (suffixes != null) {
+        for (String suffix : suffixes) {
+          if (glob(suffix, 0, name, i)) {
+            return true;
+          }
+        }
+      }
+      if (i == name.length()) {
+        return false;
+      }
+      node = node.child(name.charAt(i));
+      if (node == null) {
+        return false;
+      }
+    }
+  }
+
+  // Matches the pattern from index pi against the name from index si.
+  private static boolean glob(String p, int pi, String s, int si) {
+    while (pi < p.length()) {
+      char c = p.charAt(pi);
+      if (c == '*') {
+        boolean deep = pi + 1 < p.length() && p.charAt(pi + 1) == '*';
+        int next = pi + (deep ? 2 : 1);
+        if (next == p.length()) {
+          return deep || s.indexOf('/', si) < 0;
+        }
+        for (int k = si; k <= s.length(); k++) {
+          if (glob(p, next, s, k)) {
+            return true;
+          }
+          if (!deep && k < s.length() && s.charAt(k) == '/') {
+            return false;
+          }
+        }
+        return false;
+      }
+      if (si == s.length() || s.charAt(si) == '/' && c != '/' ||
+          c != '?' && c != s.charAt(si)) {
+        return false;
+      }
+      pi++;
+      si++;
+    }
+    return si == s.length();
+  }
+
+  /**
+   * Reads patterns from a configuration file.  Each line is either
+   * <code>include PATTERN</code> or <code>exclude PATTERN</code>; blank
+   * lines and lines starting with '#' are ignored.
+   *
+   * @param file the file to read.
+   * @param includes receives the include patterns.
+   * @param excludes receives the exclude patterns.
+   * @throws IOException if the file cannot be read or has a malformed line.
+   */
+  static void readConfig(File file, List<String> includes,
+      List<String> excludes) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = in.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split("\\s+", 2);
+        if (parts.length == 2 && parts[0].equals("include")) {
+          includes.add(parts[1]);
+        } else if (parts.length == 2 && parts[0].equals("exclude")) {
+          excludes.add(parts[1]);
+        } else {
+          throw new IOException(file + ":" + lineNumber +
+              ": expected \"include PATTERN\" or \"exclude PATTERN\"");
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -41,7 +41,8 @@ public interface ConstructorCallback<T> {
    *     we're recording.  The object is not fully constructed; any
    *     references to this object that are stored in this callback are
    *     subject to the memory model constraints related to such
-   *     objects.
+   *     objects.  Objects this callback constructs are not passed to
+   *     any <code>ConstructorCallback</code>.
    */
   public void sample(T newObj);
 }
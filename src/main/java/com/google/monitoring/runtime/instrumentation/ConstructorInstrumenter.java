@@ -27,9 +27,14 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,9 +70,75 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
    */
   static boolean subclassesAlso;
 
+  /**
+   * Incremented, under samplerPutAtomicityLock, whenever the samplers
+   * registered for any class change, which makes every cached Resolution
+   * stale.
+   */
+  private static volatile int generation;
+
+  /**
+   * The samplers to call when an instance of a class is constructed, as
+   * resolved from samplerMap at the given generation.
+   */
+  private static final class Resolution {
+    final int generation;
+    final ConstructorCallback<?>[] samplers;
+
+    Resolution(int generation, ConstructorCallback<?>[] samplers) {
+      this.generation = generation;
+      this.samplers = samplers;
+    }
+  }
+
+  private static final ConstructorCallback<?>[] NO_SAMPLERS =
+      new ConstructorCallback<?>[0];
+
+  // Holds the latest Resolution for each constructed class, so that
+  // invokeSamplers does not have to search samplerMap, and with
+  // subclassesAlso walk the superclasses, on every construction.
+  private static final ClassValue<AtomicReference<Resolution>> resolutions =
+      new ClassValue<AtomicReference<Resolution>>() {
+        @Override protected AtomicReference<Resolution> computeValue(
+            Class<?> type) {
+          return new AtomicReference<Resolution>();
+        }
+      };
+
+  // The installed transformer, or null before install() is first called.
+  // Guarded by samplerPutAtomicityLock.
+  private static ConstructorInstrumenter installed;
+
   // Only for package access (specifically, AllocationInstrumenter)
   ConstructorInstrumenter() { }
 
+  /**
+   * Adds the transformer to inst, or, if it was added before, moves it to
+   * the end of the transformers.  Transformers run in the order they were
+   * added, so calling this after adding the AllocationInstrumenter means
+   * that the latter always gets the class file a class was loaded from,
+   * whatever callbacks are registered.  Holds samplerPutAtomicityLock, so
+   * that no class is retransformed for callbacks while the transformer is
+   * briefly missing.
+   */
+  static void install(Instrumentation inst) {
+    synchronized (samplerPutAtomicityLock) {
+      if (installed == null) {
+        installed = new ConstructorInstrumenter();
+      } else {
+        inst.removeTransformer(installed);
+      }
+      inst.addTransformer(installed, inst.isRetransformClassesSupported());
+    }
+  }
+
+  /**
+   * Returns whether callbacks are registered for the given class itself.
+   */
+  static boolean hasCallbacks(Class<?> c) {
+    return samplerMap.containsKey(c);
+  }
+
   /**
    * Ensures that the given sampler will be invoked every time a constructor
    * for class c is invoked.
@@ -78,25 +149,117 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
    */
   public static void instrumentClass(Class<?> c, ConstructorCallback<?> sampler)
       throws UnmodifiableClassException {
-    // IMPORTANT: Don't forget that other threads may be accessing this
-    // class while this code is running.  Specifically, the class may be
+    instrumentClasses(Collections.<Class<?>, List<ConstructorCallback<?>>>
+        singletonMap(c, Collections.<ConstructorCallback<?>>singletonList(
+            sampler)));
+  }
+
+  /**
+   * Ensures that each of the given samplers will be invoked every time a
+   * constructor for the class it is mapped to is invoked.  The classes that
+   * have no samplers yet are retransformed together, in a single call to
+   * {@link Instrumentation#retransformClasses}, which is much cheaper than
+   * calling {@link #instrumentClass} for each of them.
+   *
+   * <p>If any of the classes cannot be modified, no samplers are added.
+   *
+   * @param samplers the samplers to add, by the class to be tracked.
+   * @throws UnmodifiableClassException if one of the classes cannot be
+   *     modified.
+   */
+  public static void instrumentClasses(
+      Map<Class<?>, ? extends Collection<? extends ConstructorCallback<?>>>
+          samplers)
+      throws UnmodifiableClassException {
+    // IMPORTANT: Don't forget that other threads may be accessing these
+    // classes while this code is running.  Specifically, a class may be
     // executed directly after the retransformClasses is called.  Thus, we need
     // to be careful about what happens after the retransformClasses call.
     synchronized (samplerPutAtomicityLock) {
-      List<ConstructorCallback<?>> list = samplerMap.get(c);
-      if (list == null) {
-        CopyOnWriteArrayList<ConstructorCallback<?>> samplerList =
-            new CopyOnWriteArrayList<ConstructorCallback<?>>();
-        samplerList.add(sampler);
-        samplerMap.put(c, samplerList);
-        Instrumentation inst = AllocationRecorder.getInstrumentation();
-        Class<?>[] cs = new Class<?>[1];
-        cs[0] = c;
-        inst.retransformClasses(c);
+      Instrumentation inst = AllocationRecorder.getInstrumentation();
+      List<Class<?>> newClasses = new ArrayList<Class<?>>();
+      for (Class<?> c : samplers.keySet()) {
+        if (!samplerMap.containsKey(c)) {
+          if (!inst.isModifiableClass(c)) {
+            throw new UnmodifiableClassException(
+                "cannot instrument " + c.getName());
+          }
+          newClasses.add(c);
+        }
+      }
+      for (Map.Entry<Class<?>, ? extends Collection<
+               ? extends ConstructorCallback<?>>> entry :
+           samplers.entrySet()) {
+        List<ConstructorCallback<?>> list = samplerMap.get(entry.getKey());
+        if (list == null) {
+          list = new CopyOnWriteArrayList<ConstructorCallback<?>>();
+          samplerMap.put(entry.getKey(), list);
+        }
+        list.addAll(entry.getValue());
+      }
+      generation++;
+      if (!newClasses.isEmpty()) {
+        try {
+          inst.retransformClasses(
+              newClasses.toArray(new Class<?>[newClasses.size()]));
+        } catch (UnmodifiableClassException e) {
+          undoInstrumentClasses(samplers, newClasses);
+          throw e;
+        } catch (RuntimeException e) {
+          undoInstrumentClasses(samplers, newClasses);
+          throw e;
+        }
+      }
+    }
+  }
+
+  // Takes back what a failed call to instrumentClasses added.
+  private static void undoInstrumentClasses(
+      Map<Class<?>, ? extends Collection<? extends ConstructorCallback<?>>>
+          samplers,
+      List<Class<?>> newClasses) {
+    for (Map.Entry<Class<?>, ? extends Collection<
+             ? extends ConstructorCallback<?>>> entry :
+         samplers.entrySet()) {
+      if (newClasses.contains(entry.getKey())) {
+        samplerMap.remove(entry.getKey());
       } else {
-        list.add(sampler);
+        List<ConstructorCallback<?>> list = samplerMap.get(entry.getKey());
+        for (ConstructorCallback<?> sampler : entry.getValue()) {
+          list.remove(sampler);
+        }
       }
     }
+    generation++;
+  }
+
+  /**
+   * Stops invoking the given sampler when a constructor for class c is
+   * invoked.  Once c has no samplers left, its original constructors are
+   * restored.
+   *
+   * @param c the tracked class.
+   * @param sampler a sampler previously passed to {@link #instrumentClass}
+   *     or {@link #instrumentClasses} for c.
+   * @return true if the sampler was registered for c.
+   * @throws UnmodifiableClassException if c cannot be restored.
+   */
+  public static boolean removeSampler(Class<?> c, ConstructorCallback<?> sampler)
+      throws UnmodifiableClassException {
+    synchronized (samplerPutAtomicityLock) {
+      List<ConstructorCallback<?>> list = samplerMap.get(c);
+      if (list == null || !list.remove(sampler)) {
+        return false;
+      }
+      generation++;
+      if (list.isEmpty()) {
+        // transform() leaves classes that are not in samplerMap alone, so
+        // this restores the constructors as they were before instrumentClass.
+        samplerMap.remove(c);
+        AllocationRecorder.getInstrumentation().retransformClasses(c);
+      }
+      return true;
+    }
   }
 
   /**
@@ -134,7 +297,11 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
       ClassVisitor adapter =
           new ConstructorClassAdapter(vcw, classBeingRedefined);
 
-      cr.accept(adapter, ClassReader.SKIP_FRAMES);
+      // The calls inserted before each return add no branches, so the
+      // existing frames stay valid and are kept; LocalVariablesSorter needs
+      // them expanded.  Nothing recomputes frames after this transformer,
+      // which runs after the AllocationInstrumenter.
+      cr.accept(adapter, ClassReader.EXPAND_FRAMES);
 
       return vcw.toByteArray();
     } catch (RuntimeException e) {
@@ -194,30 +361,53 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
    * Bytecode is rewritten to invoke this method; it calls the sampler for
    * the given class.  Note that, unless the javaagent command line argument
    * "subclassesAlso" is specified, it won't do anything if o is a subclass of
-   * the class that was supposed to be tracked.
+   * the class that was supposed to be tracked.  Objects constructed while
+   * the samplers are looked up or run on this thread are not passed to any
+   * sampler: both may construct JDK objects (the ClassValue behind
+   * resolutions does, for one), and if their classes are instrumented too,
+   * passing them on would recurse without end.
    * @param o the object passed to the samplers.
    */
   @SuppressWarnings("unchecked")
   public static void invokeSamplers(Object o) {
-    Class<?> currentClass = o.getClass();
-    while (currentClass != null) {
-      List<ConstructorCallback<?>> samplers = samplerMap.get(currentClass);
+    RecorderContext context = RecorderContext.forCurrentThread();
+    if (context.invokingCallbacks) {
+      return;
+    }
+    context.invokingCallbacks = true;
+    try {
+      AtomicReference<Resolution> cached = resolutions.get(o.getClass());
+      Resolution resolution = cached.get();
+      int current = generation;
+      if (resolution == null || resolution.generation != current) {
+        resolution = new Resolution(current, resolve(o.getClass()));
+        cached.set(resolution);
+      }
+      for (ConstructorCallback sampler : resolution.samplers) {
+        sampler.sample(o);
+      }
+    } finally {
+      context.invokingCallbacks = false;
+    }
+  }
+
+  /**
+   * Returns the samplers to call when an instance of the given class is
+   * constructed: those registered for the class itself or, if
+   * "subclassesAlso" is specified and there are none, those of its nearest
+   * superclass that has any.
+   */
+  private static ConstructorCallback<?>[] resolve(Class<?> cls) {
+    for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+      List<ConstructorCallback<?>> samplers = samplerMap.get(c);
       if (samplers != null) {
-        for (ConstructorCallback sampler : samplers) {
-          sampler.sample(o);
-        }
-        // Return once the first list of registered samplers are found and invoked.
-        return;
-      } else {
-        // When subclassesAlso is not specified (default), return if no
-        // samplers are registered with the type of the currently-constructed
-        // object.  Otherwise, traverse upward the class hierarchy.
-        if (!subclassesAlso) {
-          return;
-        }
-        currentClass = currentClass.getSuperclass();
+        return samplers.toArray(new ConstructorCallback<?>[samplers.size()]);
+      }
+      if (!subclassesAlso) {
+        break;
       }
     }
+    return NO_SAMPLERS;
   }
 
   /**
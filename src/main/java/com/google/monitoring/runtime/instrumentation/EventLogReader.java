@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the logs written by {@link EventLogWriter} and prints per-type and
+ * per-site allocation summaries.  Segments are mapped and scanned one at a
+ * time, and only the totals are kept, so logs much larger than memory can be
+ * read.  Usage:
+ *
+ * <pre>
+ * java -cp allocation.jar \
+ *     com.google.monitoring.runtime.instrumentation.EventLogReader \
+ *     [-top N] (segment file | directory)...
+ * </pre>
+ *
+ * Directories are searched for segment files, which are read in name order.
+ * Counts and bytes are weighted, so under sampling they are estimates.
+ */
+public final class EventLogReader {
+  // Totals for one type or site.
+  private static final class Total {
+    final String name;
+    long events;
+    double count;
+    double bytes;
+
+    Total(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Map<String, Total> byType = new HashMap<String, Total>();
+  private final Map<String, Total> bySite = new HashMap<String, Total>();
+  private long events;
+  private long firstTimestamp = Long.MAX_VALUE;
+  private long lastTimestamp = Long.MIN_VALUE;
+
+  EventLogReader() { }
+
+  public static void main(String[] args) throws IOException {
+    int top = 20;
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-top") && i + 1 < args.length) {
+        top = Integer.parseInt(args[++i]);
+      } else {
+        File file = new File(args[i]);
+        if (file.isDirectory()) {
+          File[] segments = file.listFiles();
+          if (segments != null) {
+            Arrays.sort(segments);
+            for (File segment : segments) {
+              if (segment.getName().endsWith(EventLogWriter.SUFFIX)) {
+                files.add(segment);
+              }
+            }
+          }
+        } else {
+          files.add(file);
+        }
+      }
+    }
+    if (files.isEmpty()) {
+      System.err.println("Usage: EventLogReader [-top N] " +
+          "(segment file | directory)...");
+      System.exit(2);
+    }
+
+    EventLogReader reader = new EventLogReader();
+    for (File file : files) {
+      reader.readSegment(file);
+    }
+    reader.print(System.out, top);
+  }
+
+  void readSegment(File file) throws IOException {
+    MappedByteBuffer b;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+    if (b.remaining() < 5 || b.getInt() != EventLogWriter.MAGIC) {
+      throw new IOException(file + " is not an allocation event log");
+    }
+    int version = b.get();
+    if (version != EventLogWriter.VERSION) {
+      throw new IOException(file + " has unsupported version " + version);
+    }
+
+    // Definitions only apply within their segment.
+    Map<Integer, String> types = new HashMap<Integer, String>();
+    Map<Integer, String> sites = new HashMap<Integer, String>();
+    long timestamp = 0;
+    while (b.hasRemaining()) {
+      int tag = b.get();
+      if (tag == EventLogWriter.TAG_END) {
+        break;
+      } else if (tag == EventLogWriter.TAG_TYPE) {
+        int id = (int) getVarint(b);
+        types.put(id, getString(b));
+      } else if (tag == EventLogWriter.TAG_SITE) {
+        int id = (int) getVarint(b);
+        String className = getString(b);
+        String methodName = getString(b);
+        String methodDesc = getString(b);
+        long line = getSigned(b);
+        sites.put(id, className + "." + methodName + methodDesc + ":" + line);
+      } else if (tag == EventLogWriter.TAG_EVENT) {
+        timestamp += getSigned(b);
+        int typeId = (int) getVarint(b);
+        int siteId = (int) getSigned(b);
+        getSigned(b);  // The count.
+        long size = getVarint(b);
+        double weight = (getVarint(b) + 256) / 256.0;
+
+        events++;
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        String type = types.get(typeId);
+        add(byType, (type == null) ? "<type " + typeId + ">" : type,
+            size, weight);
+        String site = (siteId < 0) ? "<unknown site>" : sites.get(siteId);
+        add(bySite, (site == null) ? "<site " + siteId + ">" : site,
+            size, weight);
+      } else {
+        throw new IOException(file + " is corrupt at offset " +
+            (b.position() - 1));
+      }
+    }
+  }
+
+  private static void add(Map<String, Total> totals, String name, long size,
+      double weight) {
+    Total total = totals.get(name);
+    if (total == null) {
+      total = new Total(name);
+      totals.put(name, total);
+    }
+    total.events++;
+    total.count += weight;
+    total.bytes += size * weight;
+  }
+
+  void print(PrintStream out, int top) {
+    out.printf("%d events", events);
+    if (events > 0) {
+      out.printf(" over %.3f s", (lastTimestamp - firstTimestamp) / 1e9);
+    }
+    out.println();
+    printTotals(out, "type", byType, top);
+    printTotals(out, "site", bySite, top);
+  }
+
+  private static void printTotals(PrintStream out, String what,
+      Map<String, Total> totals, int top) {
+    List<Total> sorted = new ArrayList<Total>(totals.values());
+    Collections.sort(sorted, new Comparator<Total>() {
+      @Override
+      public int compare(Total a, Total b) {
+        return Double.compare(b.bytes, a.bytes);
+      }
+    });
+    out.println();
+    out.printf("%16s %14s %10s  %s%n", "bytes", "objects", "events",
+        "by " + what);
+    for (Total total : sorted.subList(0, Math.min(top, sorted.size()))) {
+      out.printf("%16.0f %14.0f %10d  %s%n",
+          total.bytes, total.count, total.events, total.name);
+    }
+  }
+
+  private static long getVarint(ByteBuffer b) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int next = b.get();
+      value |= (long) (next & 0x7F) << shift;
+      if ((next & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static long getSigned(ByteBuffer b) {
+    long value = getVarint(b);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static String getString(ByteBuffer b) {
+    byte[] bytes = new byte[(int) getVarint(b)];
+    b.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.logging.Level;
+
+/**
+ * A {@link BatchSampler} that appends every allocation it is passed to a
+ * compact binary log, for postmortem analysis with {@link EventLogReader}.
+ * The log is a series of fixed-size segment files, each memory-mapped in
+ * turn, so writing an event is a handful of stores into the mapping, with
+ * no system call.  Like every batch sampler, the writer runs on the
+ * dispatcher thread, never on an allocating thread.
+ *
+ * <p>Segments are named <code>prefix-NNNNNN.alog</code>.  A writer numbers its
+ * segments on from the highest-numbered segment already in the directory
+ * with the same prefix, so that it continues the log of an earlier run
+ * rather than overwriting it, and it never reuses an existing file.  When a
+ * segment is full, the writer moves on to the next one, deleting the oldest
+ * of its own segments beyond the configured number to keep.  Each segment
+ * is self-contained:
+ * it starts with a header, and defines every type and allocation site
+ * before the first event that refers to it.
+ *
+ * <p>The format of a segment is the magic number <code>ALOG</code> and a
+ * version byte, followed by records, each introduced by a tag byte.  The
+ * rest of the segment is zero, and a zero tag ends it.  All integers are
+ * varints; the signed ones are zigzag-encoded.
+ * <ul>
+ * <li>Type definition (tag 2): type ID, descriptor (length and UTF-8).</li>
+ * <li>Site definition (tag 3): site ID, class name, method name, method
+ * descriptor (each as length and UTF-8), line number (signed).</li>
+ * <li>Event (tag 1): timestamp minus the previous event's timestamp in the
+ * segment (signed), type ID, site ID (signed), count (signed), size, and the
+ * weight in 1/256ths, minus 256.</li>
+ * </ul>
+ */
+public final class EventLogWriter implements BatchSampler, Closeable {
+  static final int MAGIC = 0x414C4F47;  // "ALOG"
+  static final int VERSION = 1;
+  static final int TAG_END = 0;
+  static final int TAG_EVENT = 1;
+  static final int TAG_TYPE = 2;
+  static final int TAG_SITE = 3;
+  static final String SUFFIX = ".alog";
+
+  /** The default size of each segment, in bytes. */
+  public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+  // The largest possible event record: a tag and six varints.
+  private static final int MAX_EVENT_BYTES = 1 + 6 * 10;
+
+  private final File directory;
+  private final String prefix;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // Segments written by this writer so far, oldest first.
+  private final ArrayDeque<File> segments = new ArrayDeque<File>();
+  private int nextSegment;
+
+  private MappedByteBuffer buffer;
+  private long lastTimestamp;
+  private final BitSet typesDefined = new BitSet();
+  private final BitSet sitesDefined = new BitSet();
+  private boolean closed;
+
+  /**
+   * Creates a writer, and its first segment.
+   *
+   * @param directory the directory to write the segments to.
+   * @param prefix the name prefix of the segment files.
+   * @param segmentBytes the size of each segment, at least 64KB.
+   * @param maxSegments the number of most recent segments written by this
+   *     writer to keep, or 0 to keep all of them.
+   * @throws IOException if the first segment cannot be created.
+   */
+  public EventLogWriter(File directory, String prefix, int segmentBytes,
+      int maxSegments) throws IOException {
+    if (segmentBytes < 64 << 10) {
+      throw new IllegalArgumentException(
+          "Segments must be at least 64KB: " + segmentBytes);
+    }
+    this.directory = directory;
+    this.prefix = prefix;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    nextSegment = firstUnusedSequence();
+    nextSegment();
+  }
+
+  // Returns one more than the highest sequence number among the segments in
+  // the directory with this writer's prefix, or 0 if there are none.
+  private int firstUnusedSequence() {
+    String[] names = directory.list();
+    int next = 0;
+    if (names != null) {
+      String start = prefix + "-";
+      for (String name : names) {
+        if (name.startsWith(start) && name.endsWith(SUFFIX)) {
+          try {
+            int sequence = Integer.parseInt(name.substring(
+                start.length(), name.length() - SUFFIX.length()));
+            next = Math.max(next, sequence + 1);
+          } catch (NumberFormatException e) {
+            // Some other prefix that starts with ours.
+          }
+        }
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Returns the name of the segment with the given sequence number.
+   */
+  static String segmentName(String prefix, int sequence) {
+    return String.format("%s-%06d%s", prefix, sequence, SUFFIX);
+  }
+
+  // Closes the current segment, if any, and maps the next one.
+  private void nextSegment() throws IOException {
+    finishSegment();
+    File file;
+    // Skip over segments that have appeared since, e.g. from another writer
+    // with the same prefix; an existing segment is never written to.
+    do {
+      file = new File(directory, segmentName(prefix, nextSegment++));
+    } while (!file.createNewFile());
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      buffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      raf.close();
+    }
+    buffer.putInt(MAGIC);
+    buffer.put((byte) VERSION);
+    lastTimestamp = 0;
+    typesDefined.clear();
+    sitesDefined.clear();
+    segments.addLast(file);
+    while (maxSegments > 0 && segments.size() > maxSegments) {
+      segments.removeFirst().delete();
+    }
+  }
+
+  private void finishSegment() {
+    if (buffer != null) {
+      buffer.force();
+      buffer = null;
+    }
+  }
+
+  @Override
+  public synchronized void sampleAllocations(AllocationBatch batch) {
+    if (closed) {
+      return;
+    }
+    try {
+      int length = batch.length;
+      for (int i = 0; i < length; i++) {
+        append(batch.typeIds[i], batch.siteIds[i], batch.counts[i],
+            batch.sizes[i], batch.weights[i], batch.timestamps[i]);
+      }
+    } catch (IOException e) {
+      AllocationInstrumenter.logger.log(Level.WARNING,
+          "Cannot write allocation event log; closing it", e);
+      close();
+    }
+  }
+
+  private void append(int typeId, int siteId, int count, long size,
+      double weight, long timestamp) throws IOException {
+    if (buffer.remaining() <= MAX_EVENT_BYTES) {
+      nextSegment();
+    }
+    if (!typesDefined.get(typeId) ||
+        (siteId >= 0 && !sitesDefined.get(siteId))) {
+      define(typeId, siteId);
+    }
+    MappedByteBuffer b = buffer;
+    b.put((byte) TAG_EVENT);
+    putSigned(b, timestamp - lastTimestamp);
+    lastTimestamp = timestamp;
+    putVarint(b, typeId);
+    putSigned(b, siteId);
+    putSigned(b, count);
+    putVarint(b, size);
+    putVarint(b, Math.max(0, Math.round(weight * 256) - 256));
+  }
+
+  // Writes the definitions of the given type and site that the current
+  // segment lacks, moving to the next segment first if the definitions and
+  // the event that needs them do not fit.
+  private void define(int typeId, int siteId) throws IOException {
+    byte[] descriptor = utf8(TypeRegistry.descriptorOf(typeId));
+    byte[] className = null;
+    byte[] methodName = null;
+    byte[] methodDesc = null;
+    int needed = 1 + 10 + 5 + descriptor.length + MAX_EVENT_BYTES;
+    if (siteId >= 0) {
+      className = utf8(AllocationSites.getClassName(siteId));
+      methodName = utf8(AllocationSites.getMethodName(siteId));
+      methodDesc = utf8(AllocationSites.getMethodDescriptor(siteId));
+      needed += 1 + 10 + 3 * 5 + className.length + methodName.length +
+          methodDesc.length + 10;
+    }
+    if (buffer.remaining() <= needed) {
+      nextSegment();
+    }
+    MappedByteBuffer b = buffer;
+    if (!typesDefined.get(typeId)) {
+      b.put((byte) TAG_TYPE);
+      putVarint(b, typeId);
+      putString(b, descriptor);
+      typesDefined.set(typeId);
+    }
+    if (siteId >= 0 && !sitesDefined.get(siteId)) {
+      b.put((byte) TAG_SITE);
+      putVarint(b, siteId);
+      putString(b, className);
+      putString(b, methodName);
+      putString(b, methodDesc);
+      putSigned(b, AllocationSites.getLineNumber(siteId));
+      sitesDefined.set(siteId);
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void putString(MappedByteBuffer b, byte[] s) {
+    putVarint(b, s.length);
+    b.put(s);
+  }
+
+  private static void putSigned(MappedByteBuffer b, long value) {
+    putVarint(b, (value << 1) ^ (value >> 63));
+  }
+
+  private static void putVarint(MappedByteBuffer b, long value) {
+    while ((value & ~0x7FL) != 0) {
+      b.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    b.put((byte) value);
+  }
+
+  /**
+   * Flushes the current segment and stops writing.  Events passed to the
+   * writer afterwards are ignored; remove it from the recorder as well.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    finishSegment();
+  }
+}
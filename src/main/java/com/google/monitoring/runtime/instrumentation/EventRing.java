@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A bounded, single-producer single-consumer queue of allocation events.
+ * Each thread that records allocations asynchronously owns one ring and is
+ * its only producer; the {@link AsyncDispatcher} thread is its only
+ * consumer.  Events are stored in parallel primitive arrays, so recording
+ * one does not allocate (apart from the optional weak reference to the new
+ * object), and neither side ever blocks: when the ring is full, the producer
+ * moves on to a larger ring (see {@link AsyncDispatcher#grow(EventRing)}),
+ * or, once rings cannot grow any further, drops the event and counts it.
+ */
+final class EventRing {
+  private static final AtomicLongFieldUpdater<EventRing> tailUpdater =
+      AtomicLongFieldUpdater.newUpdater(EventRing.class, "tail");
+  private static final AtomicLongFieldUpdater<EventRing> headUpdater =
+      AtomicLongFieldUpdater.newUpdater(EventRing.class, "head");
+
+  /** The ID of the thread that produces into this ring. */
+  final long threadId;
+
+  private final WeakReference<Thread> owner;
+  private final int mask;
+
+  // The event columns, indexed by sequence number & mask.
+  final int[] typeIds;
+  final int[] siteIds;
+  final int[] stackIds;
+  final int[] counts;
+  final long[] sizes;
+  final long[] timestamps;
+  final double[] weights;
+  final Object[] objects;
+  final boolean[] deferred;
+
+  // Keep head and tail, which are written by different threads, on
+  // different cache lines.
+  @SuppressWarnings("unused")
+  private long p0, p1, p2, p3, p4, p5, p6;
+
+  // Sequence number of the next event to consume.  Only written by the
+  // consumer.
+  private volatile long head;
+
+  @SuppressWarnings("unused")
+  private long q0, q1, q2, q3, q4, q5, q6;
+
+  // Sequence number of the next event to produce.  Only written by the
+  // producer.
+  private volatile long tail;
+
+  // The producer's last view of head, so that it only reads the contended
+  // field when the ring looks full.
+  private long cachedHead;
+
+  // Number of events dropped because the ring was full.  Only written by the
+  // producer.
+  private volatile long dropped;
+
+  // Set by the producer once it has moved on to another ring, after its
+  // last event in this one.
+  private volatile boolean retired;
+
+  /**
+   * @param owner the thread that will produce into this ring.
+   * @param capacity the number of events the ring holds; a power of two.
+   */
+  EventRing(Thread owner, int capacity) {
+    this.threadId = owner.getId();
+    this.owner = new WeakReference<Thread>(owner);
+    this.mask = capacity - 1;
+    typeIds = new int[capacity];
+    siteIds = new int[capacity];
+    stackIds = new int[capacity];
+    counts = new int[capacity];
+    sizes = new long[capacity];
+    timestamps = new long[capacity];
+    weights = new double[capacity];
+    objects = new Object[capacity];
+    deferred = new boolean[capacity];
+  }
+
+  /**
+   * Appends an event, unless the ring is full.  Only to be called by the
+   * owning thread.
+   *
+   * @param deferred whether the per-event samplers still have to be invoked
+   *     for this event, or only the {@link BatchSampler}s.
+   * @return whether the event was stored; if not, the caller should either
+   *     offer it to a larger ring or {@link #countDrop() drop} it.
+   */
+  boolean offer(int typeId, int siteId, int stackId, int count, long size, double weight,
+      long timestamp, Object object, boolean deferred) {
+    long t = tail;
+    if (t - cachedHead > mask) {
+      cachedHead = head;
+      if (t - cachedHead > mask) {
+        return false;
+      }
+    }
+    int i = (int) t & mask;
+    typeIds[i] = typeId;
+    siteIds[i] = siteId;
+    stackIds[i] = stackId;
+    counts[i] = count;
+    sizes[i] = size;
+    weights[i] = weight;
+    timestamps[i] = timestamp;
+    objects[i] = object;
+    this.deferred[i] = deferred;
+    // Publish the event; the ordered store makes the writes above visible to
+    // the consumer before the new tail.
+    tailUpdater.lazySet(this, t + 1);
+    return true;
+  }
+
+  /**
+   * Returns the sequence number of the next event to consume.  Only to be
+   * called by the consumer.
+   */
+  long head() {
+    return head;
+  }
+
+  /**
+   * Returns the sequence number after the last published event.
+   */
+  long tail() {
+    return tail;
+  }
+
+  /**
+   * Returns the column index of the given sequence number.
+   */
+  int index(long sequence) {
+    return (int) sequence & mask;
+  }
+
+  /**
+   * Hands the slots before the given sequence number back to the producer.
+   * Only to be called by the consumer, after it has read those events.
+   */
+  void release(long newHead) {
+    for (long s = head; s < newHead; s++) {
+      objects[(int) s & mask] = null;
+    }
+    headUpdater.lazySet(this, newHead);
+  }
+
+  /**
+   * Returns the number of events the ring holds.
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Counts an event that was dropped because the ring was full.  Only to be
+   * called by the owning thread.
+   */
+  void countDrop() {
+    dropped = dropped + 1;
+  }
+
+  /**
+   * Returns the number of events dropped because the ring was full.
+   */
+  long dropped() {
+    return dropped;
+  }
+
+  /**
+   * Marks the ring as replaced by another one; nothing more will be produced
+   * into it.  Only to be called by the owning thread.
+   */
+  void retire() {
+    retired = true;
+  }
+
+  /**
+   * Returns whether the owning thread has terminated (or been collected), or
+   * has moved on to another ring, so that nothing more will be produced into
+   * this ring.
+   */
+  boolean isOrphaned() {
+    if (retired) {
+      return true;
+    }
+    Thread thread = owner.get();
+    return thread == null || !thread.isAlive();
+  }
+}
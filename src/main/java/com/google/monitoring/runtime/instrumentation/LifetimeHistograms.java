@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * Histograms of how long tracked objects lived, per type or per allocation
+ * site, as returned by {@link LiveHeap#lifetimesByType()} and
+ * {@link LiveHeap#lifetimesBySite()}.  Lifetimes are bucketed by powers of
+ * two: bucket 0 holds lifetimes under 1ns, and bucket b &gt; 0 those from
+ * 2<sup>b-1</sup> up to 2<sup>b</sup> nanoseconds; the last bucket also
+ * holds everything longer.  Counts are weighted, like the other
+ * {@link LiveHeap} totals.
+ *
+ * <p>An object's death is only noticed when the garbage collector clears its
+ * reference and the {@link LiveHeap} thread processes it, so lifetimes are
+ * measured up to the collection that found the object dead.  Short-lived
+ * objects therefore show up with lifetimes close to the time between young
+ * collections, and objects that survive many collections stand out in the
+ * high buckets.
+ */
+public final class LifetimeHistograms {
+  /** The number of buckets in each histogram. */
+  public static final int BUCKETS = 48;
+
+  private final long[][] histograms;
+
+  LifetimeHistograms(long[][] histograms) {
+    this.histograms = histograms;
+  }
+
+  /**
+   * Returns the bucket of the given lifetime.
+   *
+   * @param nanos a lifetime in nanoseconds.
+   * @return the bucket index.
+   */
+  public static int bucketOf(long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+  }
+
+  /**
+   * Returns the shortest lifetime that falls into the given bucket.
+   *
+   * @param bucket a bucket index.
+   * @return the lower bound of the bucket, in nanoseconds.
+   */
+  public static long bucketLowerBoundNanos(int bucket) {
+    return (bucket == 0) ? 0 : 1L << (bucket - 1);
+  }
+
+  /**
+   * Returns the number of IDs covered.
+   *
+   * @return one more than the highest type or site ID covered.
+   */
+  public int size() {
+    return histograms.length;
+  }
+
+  /**
+   * Returns the histogram of the given type or site.
+   *
+   * @param id a type or site ID less than {@link #size()}.
+   * @return the weighted object count of each bucket; a copy.
+   */
+  public long[] getHistogram(int id) {
+    return histograms[id].clone();
+  }
+
+  /**
+   * Returns the number of collected objects of the given type or site.
+   *
+   * @param id a type or site ID less than {@link #size()}.
+   * @return the total over all buckets.
+   */
+  public long getTotal(int id) {
+    long total = 0;
+    for (long count : histograms[id]) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Returns an upper bound of the lifetime within which the given fraction
+   * of the collected objects of a type or site died; for example,
+   * <code>getPercentileNanos(id, 0.95)</code> answers "95% of these die
+   * within how long?".  The bound is the upper end of the bucket that holds
+   * the percentile.
+   *
+   * @param id a type or site ID less than {@link #size()}.
+   * @param fraction a fraction between 0 and 1.
+   * @return the lifetime bound in nanoseconds, or -1 if no object of that
+   *     type or site has been collected, or Long.MAX_VALUE if the percentile
+   *     falls in the last bucket.
+   */
+  public long getPercentileNanos(int id, double fraction) {
+    long total = getTotal(id);
+    if (total == 0) {
+      return -1;
+    }
+    long[] histogram = histograms[id];
+    double target = fraction * total;
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+      seen += histogram[bucket];
+      if (seen >= target) {
+        return bucketLowerBoundNanos(bucket + 1);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks how much of the heap is held by objects from each allocation site
+ * and of each type, by following sampled objects until they are collected.
+ * When live heap tracking is enabled, the recorder registers a phantom
+ * reference for each sampled allocation, and adds the (weighted) object to
+ * the live totals of its site and type.  A background thread takes the
+ * references of collected objects off a reference queue and subtracts them
+ * again.  Under sampling, the totals are estimates.
+ *
+ * <p>The time from allocation to the processing of the reference is also
+ * recorded, in per-type and per-site {@link LifetimeHistograms}.
+ *
+ * <p>The number of objects tracked at once is capped (see
+ * {@link #setMaxTracked(int)}).  Sampled objects beyond the cap are not
+ * tracked, and are counted in {@link #getUntrackedCount()}; raise the
+ * sampling interval if that count grows.  References are kept in a
+ * concurrent set, so registering and clearing them takes no global lock.
+ */
+public final class LiveHeap {
+  /** The default maximum number of objects tracked at once. */
+  public static final int DEFAULT_MAX_TRACKED = 1 << 16;
+
+  // A phantom reference to a sampled object, with what it accounts for.
+  private static final class TrackedReference
+      extends PhantomReference<Object> {
+    final int typeId;
+    final int site;
+    final long count;
+    final long bytes;
+    final long allocatedAt;
+
+    TrackedReference(Object referent, int typeId, int site, long count,
+        long bytes, long allocatedAt) {
+      super(referent, queue);
+      this.typeId = typeId;
+      this.site = site;
+      this.count = count;
+      this.bytes = bytes;
+      this.allocatedAt = allocatedAt;
+    }
+  }
+
+  private static final ReferenceQueue<Object> queue =
+      new ReferenceQueue<Object>();
+
+  // Keeps the references reachable until they are enqueued.
+  private static final Set<TrackedReference> references =
+      Collections.newSetFromMap(
+          new ConcurrentHashMap<TrackedReference, Boolean>());
+
+  private static final AtomicInteger trackedCount = new AtomicInteger();
+  private static final AtomicLong untrackedCount = new AtomicLong();
+
+  // Live count (column 0) and bytes (column 1) per type and site.
+  private static final Counters byType = new Counters(2);
+  private static final Counters bySite = new Counters(2);
+
+  // Weighted number of collected objects per lifetime bucket, per type and
+  // site.
+  private static final Counters lifetimesByType =
+      new Counters(LifetimeHistograms.BUCKETS);
+  private static final Counters lifetimesBySite =
+      new Counters(LifetimeHistograms.BUCKETS);
+
+  private static volatile boolean enabled = false;
+  private static volatile int maxTracked = DEFAULT_MAX_TRACKED;
+
+  // The running reaper thread, or null once stopReaper() has been called.
+  // Only written under the class lock.
+  private static volatile Thread reaper;
+
+  private LiveHeap() { }
+
+  // A table of counters with a fixed number of columns per ID.  Rows are
+  // kept in chunks that are added as IDs grow and are never copied, so that
+  // no update is lost to a resize.
+  static final class Counters {
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private final int width;
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    Counters(int width) {
+      this.width = width;
+    }
+
+    void add(int id, int column, long delta) {
+      AtomicLongArray[] c = chunks;
+      int chunk = id >>> CHUNK_SHIFT;
+      if (chunk >= c.length) {
+        c = grow(chunk);
+      }
+      c[chunk].addAndGet(width * (id & (CHUNK_SIZE - 1)) + column, delta);
+    }
+
+    long get(int id, int column) {
+      AtomicLongArray[] c = chunks;
+      int chunk = id >>> CHUNK_SHIFT;
+      if (chunk >= c.length) {
+        return 0;
+      }
+      return c[chunk].get(width * (id & (CHUNK_SIZE - 1)) + column);
+    }
+
+    private synchronized AtomicLongArray[] grow(int chunk) {
+      AtomicLongArray[] c = chunks;
+      if (chunk >= c.length) {
+        AtomicLongArray[] grown = new AtomicLongArray[chunk + 1];
+        System.arraycopy(c, 0, grown, 0, c.length);
+        for (int i = c.length; i <= chunk; i++) {
+          grown[i] = new AtomicLongArray(width * CHUNK_SIZE);
+        }
+        chunks = grown;
+        c = grown;
+      }
+      return c;
+    }
+
+    // Returns the given column for IDs 0 to size - 1.
+    long[] column(int size, int column) {
+      long[] values = new long[size];
+      for (int id = 0; id < size; id++) {
+        values[id] = get(id, column);
+      }
+      return values;
+    }
+
+    // Returns the rows for IDs 0 to size - 1.
+    long[][] rows(int size) {
+      long[][] rows = new long[size][width];
+      for (int id = 0; id < size; id++) {
+        for (int column = 0; column < width; column++) {
+          rows[id][column] = get(id, column);
+        }
+      }
+      return rows;
+    }
+  }
+
+  /**
+   * Turns live heap tracking on or off.  It is off by default, and can also
+   * be turned on with the <code>liveHeap</code> agent argument.  Turning it
+   * off stops tracking new objects; objects already tracked are still
+   * subtracted when they are collected.
+   *
+   * @param enable whether to track sampled objects.
+   */
+  public static void setEnabled(boolean enable) {
+    if (enable) {
+      startReaper();
+    }
+    enabled = enable;
+    AllocationRecorder.listenersChanged();
+  }
+
+  /**
+   * Returns whether live heap tracking is on.
+   *
+   * @return true if sampled objects are tracked.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets the maximum number of objects tracked at once.
+   *
+   * @param max the maximum number of outstanding references.
+   * @throws IllegalArgumentException if max is negative.
+   */
+  public static void setMaxTracked(int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException(
+          "Maximum must not be negative: " + max);
+    }
+    maxTracked = max;
+  }
+
+  /**
+   * Returns the number of objects currently tracked.
+   *
+   * @return the number of outstanding references.
+   */
+  public static int getTrackedCount() {
+    return trackedCount.get();
+  }
+
+  /**
+   * Returns the number of sampled objects that were not tracked because the
+   * maximum number of objects was already being tracked.
+   *
+   * @return the number of untracked samples.
+   */
+  public static long getUntrackedCount() {
+    return untrackedCount.get();
+  }
+
+  /**
+   * Starts tracking a sampled object.  Called by the recorder on the
+   * allocating thread.
+   *
+   * @param obj the new object.
+   * @param typeId the type ID of the object.
+   * @param site the site ID of the allocation, or -1.
+   * @param count the number of objects the sample stands for.
+   * @param bytes the number of bytes the sample stands for.
+   */
+  static void track(Object obj, int typeId, int site, long count,
+      long bytes) {
+    if (trackedCount.incrementAndGet() > maxTracked) {
+      trackedCount.decrementAndGet();
+      untrackedCount.incrementAndGet();
+      return;
+    }
+    references.add(new TrackedReference(obj, typeId, site, count, bytes,
+        System.nanoTime()));
+    byType.add(typeId, 0, count);
+    byType.add(typeId, 1, bytes);
+    if (site >= 0) {
+      bySite.add(site, 0, count);
+      bySite.add(site, 1, bytes);
+    }
+  }
+
+  /**
+   * Starts the thread that accounts for collected objects, unless it is
+   * already running.
+   */
+  static synchronized void startReaper() {
+    if (reaper != null) {
+      return;
+    }
+    Thread t = new Thread("AllocationRecorder-live-heap") {
+      @Override
+      public void run() {
+        RecorderContext.forCurrentThread().mute();
+        while (reaper == this) {
+          TrackedReference ref;
+          try {
+            ref = (TrackedReference) queue.remove();
+          } catch (InterruptedException e) {
+            // stopReaper() was called; the loop condition says so.
+            continue;
+          }
+          references.remove(ref);
+          trackedCount.decrementAndGet();
+          int bucket = LifetimeHistograms.bucketOf(
+              System.nanoTime() - ref.allocatedAt);
+          byType.add(ref.typeId, 0, -ref.count);
+          byType.add(ref.typeId, 1, -ref.bytes);
+          lifetimesByType.add(ref.typeId, bucket, ref.count);
+          if (ref.site >= 0) {
+            bySite.add(ref.site, 0, -ref.count);
+            bySite.add(ref.site, 1, -ref.bytes);
+            lifetimesBySite.add(ref.site, bucket, ref.count);
+          }
+        }
+      }
+    };
+    t.setDaemon(true);
+    reaper = t;
+    t.start();
+  }
+
+  /**
+   * Stops the thread started by {@link #startReaper()}, if it is running.
+   * Objects collected while it is stopped are accounted for when it is
+   * started again.
+   */
+  static synchronized void stopReaper() {
+    Thread t = reaper;
+    if (t != null) {
+      reaper = null;
+      t.interrupt();
+    }
+  }
+
+  /**
+   * Returns the estimated live objects and bytes per allocation site,
+   * indexed by {@link AllocationSites} ID.
+   *
+   * @return the live heap by site.
+   */
+  public static Snapshot bySite() {
+    int size = AllocationSites.size();
+    return new Snapshot(bySite.column(size, 0), bySite.column(size, 1));
+  }
+
+  /**
+   * Returns the estimated live objects and bytes per type, indexed by
+   * {@link TypeRegistry} ID.
+   *
+   * @return the live heap by type.
+   */
+  public static Snapshot byType() {
+    int size = TypeRegistry.size();
+    return new Snapshot(byType.column(size, 0), byType.column(size, 1));
+  }
+
+  /**
+   * Returns the lifetimes of the tracked objects that have been collected,
+   * per type, indexed by {@link TypeRegistry} ID.
+   *
+   * @return the lifetime histograms by type.
+   */
+  public static LifetimeHistograms lifetimesByType() {
+    return new LifetimeHistograms(
+        lifetimesByType.rows(TypeRegistry.size()));
+  }
+
+  /**
+   * Returns the lifetimes of the tracked objects that have been collected,
+   * per allocation site, indexed by {@link AllocationSites} ID.
+   *
+   * @return the lifetime histograms by site.
+   */
+  public static LifetimeHistograms lifetimesBySite() {
+    return new LifetimeHistograms(
+        lifetimesBySite.rows(AllocationSites.size()));
+  }
+
+  /**
+   * Live objects and bytes per site or type, as returned by
+   * {@link #bySite()} and {@link #byType()}.  Objects whose collection has
+   * not been processed yet are still counted as live.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long[] bytes;
+
+    Snapshot(long[] counts, long[] bytes) {
+      this.counts = counts;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of IDs covered by this snapshot.
+     *
+     * @return one more than the highest ID in this snapshot.
+     */
+    public int size() {
+      return counts.length;
+    }
+
+    /**
+     * Returns the estimated number of live objects with the given ID.
+     *
+     * @param id a site or type ID less than {@link #size()}.
+     * @return the live object count.
+     */
+    public long getCount(int id) {
+      return counts[id];
+    }
+
+    /**
+     * Returns the estimated number of live bytes with the given ID.
+     *
+     * @param id a site or type ID less than {@link #size()}.
+     * @return the live bytes.
+     */
+    public long getBytes(int id) {
+      return bytes[id];
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exports allocation profiles in the gzipped <code>profile.proto</code>
+ * format read by pprof (<code>go tool pprof</code>).  Profiles have two
+ * sample types, <code>alloc_objects</code> and <code>alloc_space</code>.
+ * Samples are streamed to the output as they are produced.
+ *
+ * <p>The exporting thread is muted while it writes, so the export itself
+ * does not show up in the profile.
+ */
+public final class PprofExporter {
+  private PprofExporter() { }
+
+  /**
+   * Writes the per-site totals kept by {@link AllocationSites} as a profile
+   * with one sample, and one location, per allocation site.  Site counting
+   * must be enabled (see {@link AllocationSites#setCountingEnabled}).
+   *
+   * @param out the stream to write to; it is closed when done.
+   * @throws IOException if writing fails.
+   */
+  public static void writeSiteProfile(OutputStream out) throws IOException {
+    RecorderContext context = RecorderContext.forCurrentThread();
+    context.mute();
+    try {
+      AllocationSites.Snapshot snapshot = AllocationSites.snapshot();
+      ProfileWriter writer = new ProfileWriter(out);
+      long[] location = new long[1];
+      for (int site = 0; site < snapshot.size(); site++) {
+        long count = snapshot.getCount(site);
+        if (count == 0) {
+          continue;
+        }
+        String className = AllocationSites.getClassName(site);
+        location[0] = writer.location(site,
+            className.replace('/', '.') + "." +
+                AllocationSites.getMethodName(site),
+            null, AllocationSites.getLineNumber(site));
+        writer.sample(location, 1, count, snapshot.getBytes(site));
+      }
+      writer.finish();
+    } finally {
+      out.close();
+      context.unmute();
+    }
+  }
+
+  /**
+   * Writes the totals of the given {@link StackProfile} as a profile with
+   * one sample per call stack.
+   *
+   * @param profile the profile to export.
+   * @param out the stream to write to; it is closed when done.
+   * @throws IOException if writing fails.
+   */
+  public static void writeStackProfile(StackProfile profile, OutputStream out)
+      throws IOException {
+    RecorderContext context = RecorderContext.forCurrentThread();
+    context.mute();
+    try {
+      double[][] totals = profile.snapshot();
+      double[] counts = totals[0];
+      double[] bytes = totals[1];
+      ProfileWriter writer = new ProfileWriter(out);
+      long[] locations = new long[16];
+      for (int index = 0; index < counts.length; index++) {
+        if (counts[index] == 0) {
+          continue;
+        }
+        int depth;
+        if (index == 0) {
+          locations[0] = writer.location("<unknown>", "<unknown>", null, 0);
+          depth = 1;
+        } else {
+          StackTraceElement[] stack = CallStacks.getStack(index - 1);
+          if (stack.length > locations.length) {
+            locations = new long[stack.length];
+          }
+          for (int i = 0; i < stack.length; i++) {
+            StackTraceElement frame = stack[i];
+            locations[i] = writer.location(frame,
+                frame.getClassName() + "." + frame.getMethodName(),
+                frame.getFileName(), frame.getLineNumber());
+          }
+          depth = stack.length;
+        }
+        writer.sample(locations, depth,
+            Math.round(counts[index]), Math.round(bytes[index]));
+      }
+      writer.finish();
+    } finally {
+      out.close();
+      context.unmute();
+    }
+  }
+
+  /**
+   * Like {@link #writeSiteProfile(OutputStream)}, writing to a file.
+   *
+   * @param file the file to write.
+   * @throws IOException if writing fails.
+   */
+  public static void writeSiteProfile(File file) throws IOException {
+    writeSiteProfile(new BufferedOutputStream(new FileOutputStream(file)));
+  }
+
+  /**
+   * Like {@link #writeStackProfile(StackProfile, OutputStream)}, writing to
+   * a file.
+   *
+   * @param profile the profile to export.
+   * @param file the file to write.
+   * @throws IOException if writing fails.
+   */
+  public static void writeStackProfile(StackProfile profile, File file)
+      throws IOException {
+    writeStackProfile(profile,
+        new BufferedOutputStream(new FileOutputStream(file)));
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzipped pprof <code>profile.proto</code> with
+ * <code>alloc_objects</code> and <code>alloc_space</code> sample types.
+ * Samples are encoded and written as they are added; only the string,
+ * function and location tables they refer to are kept in memory, and those
+ * are written by {@link #finish()}.  The protobuf encoding is done by hand,
+ * so that the agent does not need the protobuf runtime.
+ */
+final class ProfileWriter {
+  // Field numbers of the messages in profile.proto.
+  private static final int PROFILE_SAMPLE_TYPE = 1;
+  private static final int PROFILE_SAMPLE = 2;
+  private static final int PROFILE_LOCATION = 4;
+  private static final int PROFILE_FUNCTION = 5;
+  private static final int PROFILE_STRING_TABLE = 6;
+  private static final int PROFILE_TIME_NANOS = 9;
+  private static final int VALUE_TYPE_TYPE = 1;
+  private static final int VALUE_TYPE_UNIT = 2;
+  private static final int SAMPLE_LOCATION_ID = 1;
+  private static final int SAMPLE_VALUE = 2;
+  private static final int LOCATION_ID = 1;
+  private static final int LOCATION_LINE = 4;
+  private static final int LINE_FUNCTION_ID = 1;
+  private static final int LINE_LINE = 2;
+  private static final int FUNCTION_ID = 1;
+  private static final int FUNCTION_NAME = 2;
+  private static final int FUNCTION_SYSTEM_NAME = 3;
+  private static final int FUNCTION_FILENAME = 4;
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+
+  private final OutputStream out;
+
+  // Encodes one message at a time, so that its length can be written
+  // before it.
+  private final Encoder message = new Encoder();
+  private final Encoder nested = new Encoder();
+
+  // The string table; index 0 is always the empty string.
+  private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+  private final List<String> strings = new ArrayList<String>();
+
+  // Function IDs by "name\0file", and each function's name and file name
+  // string indices.  IDs start at 1.
+  private final Map<String, Integer> functionIds =
+      new HashMap<String, Integer>();
+  private final List<long[]> functions = new ArrayList<long[]>();
+
+  // Location IDs by caller-chosen key, and each location's function ID and
+  // line.  IDs start at 1.
+  private final Map<Object, Long> locationIds = new HashMap<Object, Long>();
+  private final List<long[]> locations = new ArrayList<long[]>();
+
+  /**
+   * Starts a profile on the given stream, which is closed by
+   * {@link #finish()}.
+   */
+  ProfileWriter(OutputStream out) throws IOException {
+    this.out = new GZIPOutputStream(out, 1 << 16);
+    string("");
+    writeValueType(string("alloc_objects"), string("count"));
+    writeValueType(string("alloc_space"), string("bytes"));
+  }
+
+  private void writeValueType(long type, long unit) throws IOException {
+    message.reset();
+    message.varintField(VALUE_TYPE_TYPE, type);
+    message.varintField(VALUE_TYPE_UNIT, unit);
+    writeMessage(PROFILE_SAMPLE_TYPE, message);
+  }
+
+  /**
+   * Returns the string table index of the given string, adding it if
+   * necessary.
+   */
+  long string(String s) {
+    Integer id = stringIds.get(s);
+    if (id == null) {
+      id = strings.size();
+      strings.add(s);
+      stringIds.put(s, id);
+    }
+    return id;
+  }
+
+  /**
+   * Returns the ID of the location with the given key, creating it, with the
+   * given function, file and line, if it does not exist yet.
+   *
+   * @param key identifies the location; compared with equals().
+   * @param function the fully qualified method name.
+   * @param fileName the source file name, or null if unknown.
+   * @param line the source line, or a non-positive number if unknown.
+   */
+  long location(Object key, String function, String fileName, int line) {
+    Long id = locationIds.get(key);
+    if (id == null) {
+      String file = (fileName == null) ? "" : fileName;
+      String functionKey = function + '\0' + file;
+      Integer functionId = functionIds.get(functionKey);
+      if (functionId == null) {
+        functions.add(new long[] { string(function), string(file) });
+        functionId = functions.size();
+        functionIds.put(functionKey, functionId);
+      }
+      locations.add(new long[] { functionId, Math.max(line, 0) });
+      id = (long) locations.size();
+      locationIds.put(key, id);
+    }
+    return id;
+  }
+
+  /**
+   * Writes a sample.
+   *
+   * @param locationIds the locations of the sample, innermost first.
+   * @param depth the number of locations to use.
+   * @param objects the number of objects allocated.
+   * @param bytes the number of bytes allocated.
+   */
+  void sample(long[] locationIds, int depth, long objects, long bytes)
+      throws IOException {
+    message.reset();
+    nested.reset();
+    for (int i = 0; i < depth; i++) {
+      nested.varint(locationIds[i]);
+    }
+    message.bytesField(SAMPLE_LOCATION_ID, nested);
+    nested.reset();
+    nested.varint(objects);
+    nested.varint(bytes);
+    message.bytesField(SAMPLE_VALUE, nested);
+    writeMessage(PROFILE_SAMPLE, message);
+  }
+
+  /**
+   * Writes the tables and closes the stream.
+   */
+  void finish() throws IOException {
+    try {
+      for (int i = 0; i < locations.size(); i++) {
+        long[] location = locations.get(i);
+        message.reset();
+        message.varintField(LOCATION_ID, i + 1);
+        nested.reset();
+        nested.varintField(LINE_FUNCTION_ID, location[0]);
+        nested.varintField(LINE_LINE, location[1]);
+        message.bytesField(LOCATION_LINE, nested);
+        writeMessage(PROFILE_LOCATION, message);
+      }
+      for (int i = 0; i < functions.size(); i++) {
+        long[] function = functions.get(i);
+        message.reset();
+        message.varintField(FUNCTION_ID, i + 1);
+        message.varintField(FUNCTION_NAME, function[0]);
+        message.varintField(FUNCTION_SYSTEM_NAME, function[0]);
+        message.varintField(FUNCTION_FILENAME, function[1]);
+        writeMessage(PROFILE_FUNCTION, message);
+      }
+      for (String s : strings) {
+        message.reset();
+        message.string(s);
+        writeMessage(PROFILE_STRING_TABLE, message);
+      }
+      message.reset();
+      message.varintField(PROFILE_TIME_NANOS,
+          System.currentTimeMillis() * 1000000L);
+      message.writeTo(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Writes the given message as a length-delimited field of the profile.
+  private void writeMessage(int field, Encoder encoded) throws IOException {
+    nested.reset();
+    nested.tag(field, WIRE_LENGTH_DELIMITED);
+    nested.varint(encoded.length);
+    nested.writeTo(out);
+    encoded.writeTo(out);
+  }
+
+  // A growable buffer of protobuf-encoded bytes.
+  private static final class Encoder {
+    byte[] bytes = new byte[256];
+    int length;
+
+    void reset() {
+      length = 0;
+    }
+
+    private void ensure(int extra) {
+      if (length + extra > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+      }
+    }
+
+    void varint(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void tag(int field, int wireType) {
+      varint((field << 3) | wireType);
+    }
+
+    void varintField(int field, long value) {
+      tag(field, WIRE_VARINT);
+      varint(value);
+    }
+
+    void bytesField(int field, Encoder value) {
+      tag(field, WIRE_LENGTH_DELIMITED);
+      varint(value.length);
+      ensure(value.length);
+      System.arraycopy(value.bytes, 0, bytes, length, value.length);
+      length += value.length;
+    }
+
+    void string(String s) {
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      ensure(utf8.length);
+      System.arraycopy(utf8, 0, bytes, length, utf8.length);
+      length += utf8.length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, length);
+    }
+  }
+}
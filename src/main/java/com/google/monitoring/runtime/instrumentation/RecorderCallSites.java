@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Links the <code>invokedynamic</code> recorder probes emitted by
+ * {@link AllocationMethodAdapter} when the agent is started with the
+ * <code>invokedynamic</code> argument.
+ *
+ * <p>All probes with the same recorder method and signature share one
+ * {@link MutableCallSite}.  While no samplers are registered, its target
+ * discards the arguments and does nothing, so once the JIT inlines it the
+ * probe costs nothing at all.  {@link AllocationRecorder} switches the
+ * target to the real recorder method when the first sampler is added, and
+ * back when the last one is removed; the JIT deoptimizes the methods that
+ * depend on the old target.
+ */
+public final class RecorderCallSites {
+  /**
+   * The descriptor of {@link #bootstrap}.
+   */
+  static final String BOOTSTRAP_SIGNATURE =
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+      + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+  // A probe site together with its two possible targets.
+  private static class Probe {
+    final MutableCallSite site;
+    final MethodHandle recorder;
+    final MethodHandle nop;
+
+    Probe(MethodHandle recorder, MethodHandle nop, boolean enabled) {
+      this.recorder = recorder;
+      this.nop = nop;
+      this.site = new MutableCallSite(enabled ? recorder : nop);
+    }
+  }
+
+  // Protects probes and enabled.
+  private static final Object lock = new Object();
+
+  // Keyed by recorder method name plus descriptor.
+  private static final Map<String, Probe> probes = new HashMap<String, Probe>();
+
+  private static boolean enabled;
+
+  private RecorderCallSites() { }
+
+  /**
+   * The bootstrap method of the recorder probes.  Links the call site to
+   * the {@link AllocationRecorder} method with the given name and type.  This
+   * is called by the JVM; it is not part of the API.
+   *
+   * @param caller the class containing the probe.
+   * @param name the name of the recorder method.
+   * @param type the type of the recorder method.
+   * @return a call site that invokes the shared probe target.
+   * @throws ReflectiveOperationException if there is no such recorder
+   *     method.
+   */
+  public static CallSite bootstrap(MethodHandles.Lookup caller, String name,
+      MethodType type) throws ReflectiveOperationException {
+    String key = name + type.toMethodDescriptorString();
+    Probe probe;
+    synchronized (lock) {
+      probe = probes.get(key);
+      if (probe == null) {
+        MethodHandle recorder = MethodHandles.publicLookup().findStatic(
+            AllocationRecorder.class, name, type);
+        MethodHandle nop = MethodHandles.dropArguments(
+            MethodHandles.lookup().findStatic(RecorderCallSites.class, "nop",
+                MethodType.methodType(void.class)),
+            0, type.parameterList());
+        probe = new Probe(recorder, nop, enabled);
+        probes.put(key, probe);
+      }
+    }
+    return new ConstantCallSite(probe.site.dynamicInvoker());
+  }
+
+  /**
+   * Points every probe at the recorder, or at a no-op.
+   *
+   * @param enable whether probes should call into the recorder.
+   */
+  static void setEnabled(boolean enable) {
+    synchronized (lock) {
+      if (enabled == enable) {
+        return;
+      }
+      enabled = enable;
+      if (probes.isEmpty()) {
+        return;
+      }
+      MutableCallSite[] sites = new MutableCallSite[probes.size()];
+      int i = 0;
+      for (Probe probe : probes.values()) {
+        probe.site.setTarget(enable ? probe.recorder : probe.nop);
+        sites[i++] = probe.site;
+      }
+      MutableCallSite.syncAll(sites);
+    }
+  }
+
+  @SuppressWarnings("unused")  // Target of disabled probes.
+  private static void nop() { }
+}
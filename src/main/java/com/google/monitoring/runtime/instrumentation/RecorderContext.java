@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread state used by {@link AllocationRecorder}.  A context is looked
+ * up once per recorded allocation and carries everything the recorder needs
+ * to know about the current thread as plain fields, so the hot path does not
+ * have to go through several <code>ThreadLocal</code> lookups.
+ *
+ * <p>Samplers run on the allocating thread and may use
+ * {@link #forCurrentThread()} to get at the scratch buffers held here instead
+ * of allocating their own.  Threads that belong to the profiling
+ * infrastructure itself (exporters, sampler worker threads and so on) can
+ * {@link #mute()} themselves so that their allocations are never recorded.
+ *
+ * <p>A context must only ever be used by the thread that owns it.
+ */
+public final class RecorderContext {
+  // The agent's own classes are never rewritten (see
+  // AllocationInstrumenter#canRewriteClass), and java.lang.ThreadLocal is
+  // excluded too, so creating a context cannot recursively trigger the
+  // recorder.
+  private static final ThreadLocal<RecorderContext> contexts =
+      new ThreadLocal<RecorderContext>() {
+        @Override protected RecorderContext initialValue() {
+          return new RecorderContext();
+        }
+      };
+
+  // Source of the per-thread random seeds.
+  private static final AtomicLong seeder = new AtomicLong(System.nanoTime());
+
+  // Source of the per-thread stripe numbers.
+  private static final AtomicInteger nextStripe = new AtomicInteger();
+
+  // Selects the copy of striped counters (see AllocationSites) that this
+  // thread updates.  Assigned round-robin, so that concurrently running
+  // threads are spread evenly.
+  final int stripe = nextStripe.getAndIncrement();
+
+  // Set while the recorder (and therefore the samplers) are running on this
+  // thread; used for reentrancy checks.
+  boolean recording;
+
+  // Set while ConstructorInstrumenter looks up or runs constructor
+  // callbacks on this thread; used for reentrancy checks.
+  boolean invokingCallbacks;
+
+  // The CallStacks ID of the allocation currently being sampled on this
+  // thread, or -1.
+  int stackId = -1;
+
+  // Where CallStacks#capture collects the frames of the stack it is
+  // capturing, and how many it wants.
+  StackTraceElement[] frameScratch;
+  int framesWanted;
+
+  // Number of outstanding calls to mute() on this thread.
+  private int muteDepth;
+
+  // Bytes left to allocate on this thread before the next sample is taken
+  // when sampling by byte interval.
+  long bytesUntilSample;
+
+  // The mean interval that bytesUntilSample was drawn for, or 0 if none has
+  // been drawn yet.  A countdown drawn for another interval is discarded.
+  long countdownInterval;
+
+  // State of this thread's xorshift64* generator; never zero.
+  private long randomState;
+
+  // This thread's queue of events for asynchronous dispatch; created on
+  // first use.
+  private EventRing ring;
+
+  private long[] longScratch;
+  private StringBuilder stringScratch;
+
+  private RecorderContext() {
+    // Scramble a per-thread seed with the SplitMix64 finalizer, so that
+    // threads created at about the same time do not sample in lockstep.
+    long seed = seeder.addAndGet(0x9E3779B97F4A7C15L);
+    seed = (seed ^ (seed >>> 30)) * 0xBF58476D1CE4E5B9L;
+    seed = (seed ^ (seed >>> 27)) * 0x94D049BB133111EBL;
+    seed ^= seed >>> 31;
+    randomState = (seed == 0) ? 1 : seed;
+  }
+
+  /**
+   * Returns the context of the calling thread, creating it if necessary.
+   *
+   * @return the context of the calling thread.
+   */
+  public static RecorderContext forCurrentThread() {
+    return contexts.get();
+  }
+
+  /**
+   * Returns true if allocations on this thread are not to be recorded right
+   * now, either because the recorder is already running on this thread or
+   * because the thread has been muted.
+   */
+  boolean isSuppressed() {
+    return recording || muteDepth != 0;
+  }
+
+  /**
+   * Returns the next value of this thread's pseudo-random sequence.
+   */
+  long nextRandom() {
+    long x = randomState;
+    x ^= x >>> 12;
+    x ^= x << 25;
+    x ^= x >>> 27;
+    randomState = x;
+    return x * 0x2545F4914F6CDD1DL;
+  }
+
+  /**
+   * Returns a pseudo-random double, uniformly distributed in [0, 1).
+   */
+  double nextDouble() {
+    return (nextRandom() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Rounds the given non-negative number up or down at random, with the
+   * probability of rounding up equal to its fractional part, so that the
+   * result is an unbiased integer estimate of it.
+   */
+  long roundRandomly(double value) {
+    long n = (long) value;
+    return (nextDouble() < value - n) ? n + 1 : n;
+  }
+
+  /**
+   * Draws the number of bytes until the next sample from an exponential
+   * distribution with the given mean, so that sample points form a Poisson
+   * process over the bytes allocated by this thread.
+   *
+   * @param meanBytes the mean sampling interval, in bytes.
+   * @return the distance to the next sample point, at least 1.
+   */
+  long nextSampleInterval(long meanBytes) {
+    // A uniform double in (0, 1].
+    double u = ((nextRandom() >>> 11) + 1) * 0x1.0p-53;
+    long interval = (long) (-Math.log(u) * meanBytes);
+    return (interval < 1) ? 1 : interval;
+  }
+
+  /**
+   * Returns the stack of the allocation that the samplers are being invoked
+   * for, if stacks are captured (see
+   * {@link AllocationRecorder#setStackDepth(int)}).  Only meaningful inside
+   * a per-event sampler, on the thread that invokes it.
+   *
+   * @return the {@link CallStacks} ID of the allocating stack, or -1 if no
+   *     stack was captured.
+   */
+  public int getStackId() {
+    return stackId;
+  }
+
+  /**
+   * Returns this thread's event ring, creating and registering it with the
+   * {@link AsyncDispatcher} on first use.
+   */
+  EventRing ring() {
+    EventRing r = ring;
+    if (r == null) {
+      r = AsyncDispatcher.register(Thread.currentThread());
+      ring = r;
+    }
+    return r;
+  }
+
+  /**
+   * Replaces this thread's event ring, which has turned out to be full, with
+   * a larger one if it may still grow.
+   *
+   * @return the ring to use from now on, which may be the same full ring.
+   */
+  EventRing growRing() {
+    EventRing r = AsyncDispatcher.grow(ring);
+    ring = r;
+    return r;
+  }
+
+  /**
+   * Stops recording allocations performed by this thread until a matching
+   * call to {@link #unmute()}.  Calls nest.
+   */
+  public void mute() {
+    muteDepth++;
+  }
+
+  /**
+   * Undoes one previous call to {@link #mute()}.
+   *
+   * @throws IllegalStateException if this thread is not muted.
+   */
+  public void unmute() {
+    if (muteDepth == 0) {
+      throw new IllegalStateException("Thread is not muted");
+    }
+    muteDepth--;
+  }
+
+  /**
+   * Returns whether this thread has been muted with {@link #mute()}.
+   *
+   * @return true iff allocations by this thread are currently not recorded.
+   */
+  public boolean isMuted() {
+    return muteDepth != 0;
+  }
+
+  /**
+   * Returns a per-thread <code>long[]</code> of at least the given length.
+   * The contents are unspecified, and the same array may be handed out again
+   * on the next call, so callers must not hold on to it after their sampler
+   * returns.
+   *
+   * @param minLength the minimum length of the array.
+   * @return a reusable scratch array.
+   */
+  public long[] getLongScratch(int minLength) {
+    long[] scratch = longScratch;
+    if (scratch == null || scratch.length < minLength) {
+      scratch = new long[Math.max(minLength, 16)];
+      longScratch = scratch;
+    }
+    return scratch;
+  }
+
+  /**
+   * Returns an empty per-thread <code>StringBuilder</code>.  The same builder
+   * is handed out again on the next call, so callers must not hold on to it
+   * after their sampler returns.
+   *
+   * @return a reusable, empty StringBuilder.
+   */
+  public StringBuilder getStringScratch() {
+    StringBuilder scratch = stringScratch;
+    if (scratch == null) {
+      scratch = new StringBuilder(64);
+      stringScratch = scratch;
+    } else {
+      scratch.setLength(0);
+    }
+    return scratch;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A {@link BatchSampler} that adds up allocations by call stack (see
+ * {@link AllocationRecorder#setStackDepth(int)}), for export with
+ * {@link PprofExporter#writeStackProfile}.  Counts and bytes are weighted,
+ * so under sampling they estimate all allocations.  Allocations without a
+ * captured stack are added up together.
+ */
+public final class StackProfile implements BatchSampler {
+  // Indexed by stack ID + 1; index 0 holds allocations without a stack.
+  private double[] counts = new double[1024];
+  private double[] bytes = new double[1024];
+
+  @Override
+  public synchronized void sampleAllocations(AllocationBatch batch) {
+    int length = batch.length;
+    int[] stackIds = batch.stackIds;
+    long[] sizes = batch.sizes;
+    double[] weights = batch.weights;
+    for (int i = 0; i < length; i++) {
+      int index = stackIds[i] + 1;
+      if (index >= counts.length) {
+        grow(index);
+      }
+      counts[index] += weights[i];
+      bytes[index] += sizes[i] * weights[i];
+    }
+  }
+
+  private void grow(int index) {
+    int length = Math.max(counts.length * 2, index + 1);
+    double[] grownCounts = new double[length];
+    double[] grownBytes = new double[length];
+    System.arraycopy(counts, 0, grownCounts, 0, counts.length);
+    System.arraycopy(bytes, 0, grownBytes, 0, bytes.length);
+    counts = grownCounts;
+    bytes = grownBytes;
+  }
+
+  /**
+   * Forgets everything added up so far.
+   */
+  public synchronized void reset() {
+    counts = new double[counts.length];
+    bytes = new double[bytes.length];
+  }
+
+  /**
+   * Returns copies of the totals: the counts, then the bytes, each indexed
+   * by stack ID + 1.
+   */
+  synchronized double[][] snapshot() {
+    return new double[][] { counts.clone(), bytes.clone() };
+  }
+}
@@ -41,10 +41,14 @@ package com.google.monitoring.runtime.instrumentation;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A {@link ClassWriter} that looks for static class data in the
@@ -53,10 +57,18 @@ import java.io.IOException;
  * <p>ClassWriter uses class hierarchy information, which it gets by
  * looking at loaded classes, to make some decisions about the best
  * way to write classes.  The problem with this is that it fails if
- * the superclass hasn't been loaded yet.  StaticClassWriter fails
- * over to looking for the class hierarchy information in the
- * ClassLoader's resources (usually the classpath) if the class it
- * needs hasn't been loaded yet.
+ * the superclass hasn't been loaded yet.  StaticClassWriter reads the
+ * class hierarchy information from the ClassLoader's resources
+ * (usually the classpath) instead, and only fails over to the classes
+ * themselves if the class files cannot be found or read.
+ *
+ * <p>The hierarchy information read from class files is cached per
+ * class loader, so that computing frames for many classes does not read
+ * the same superclasses over and over.  The cache is weakly keyed by
+ * class loader, and its entries do not refer to their loader, so it does
+ * not keep loaders alive.  Classes that cannot be found at all are
+ * cached as missing, so they are not looked for again.  Hits, misses and
+ * resource reads are counted in {@link TransformStatistics}.
  *
  * <p>This class was heavily influenced by ASM's
  * org.objectweb.asm.util.ClassWriterComputeFramesTest, which contains
@@ -67,9 +79,25 @@ import java.io.IOException;
  */
 class StaticClassWriter extends ClassWriter {
 
+  /* Hierarchy information by internal class name, per class loader */
+  private static final Map<ClassLoader, ConcurrentMap<String, ClassInfo>>
+      hierarchies = Collections.synchronizedMap(
+          new WeakHashMap<ClassLoader, ConcurrentMap<String, ClassInfo>>());
+
+  /* Hierarchy information for the bootstrap class loader */
+  private static final ConcurrentMap<String, ClassInfo> bootstrapHierarchy =
+      new ConcurrentHashMap<String, ClassInfo>();
+
+  /* Cached for classes that cannot be found */
+  private static final ClassInfo MISSING =
+      new ClassInfo(null, false, null, new String[0]);
+
   /* The classloader that we use to look for the unloaded class */
   private final ClassLoader classLoader;
 
+  /* The cached hierarchy information for classLoader */
+  private final ConcurrentMap<String, ClassInfo> hierarchy;
+
   /**
    * {@inheritDoc}
    * @param classLoader the class loader that loaded this class
@@ -78,6 +106,22 @@ class StaticClassWriter extends ClassWriter {
       ClassReader classReader, int flags, ClassLoader classLoader) {
     super(classReader, flags);
     this.classLoader = classLoader;
+    this.hierarchy = hierarchyOf(classLoader);
+  }
+
+  private static ConcurrentMap<String, ClassInfo> hierarchyOf(
+      ClassLoader loader) {
+    if (loader == null) {
+      return bootstrapHierarchy;
+    }
+    synchronized (hierarchies) {
+      ConcurrentMap<String, ClassInfo> hierarchy = hierarchies.get(loader);
+      if (hierarchy == null) {
+        hierarchy = new ConcurrentHashMap<String, ClassInfo>();
+        hierarchies.put(loader, hierarchy);
+      }
+      return hierarchy;
+    }
   }
 
   /**
@@ -85,24 +129,21 @@ class StaticClassWriter extends ClassWriter {
    */
   @Override protected String getCommonSuperClass(
       final String type1, final String type2) {
-    try {
-      return super.getCommonSuperClass(type1, type2);
-    } catch (Throwable e) {
-      // Try something else...
-    }
     // Exactly the same as in ClassWriter, but gets the superclass
     // directly from the class file.
-    ClassInfo ci1, ci2;
-    try {
-      ci1 = new ClassInfo(type1, classLoader);
-      ci2 = new ClassInfo(type2, classLoader);
-    } catch (Throwable e) {
-      throw new RuntimeException(e);
+    ClassInfo ci1 = classInfo(type1);
+    ClassInfo ci2 = classInfo(type2);
+    if (ci1 == null || ci2 == null) {
+      try {
+        return super.getCommonSuperClass(type1, type2);
+      } catch (Throwable e) {
+        throw new RuntimeException(e);
+      }
     }
-    if (ci1.isAssignableFrom(ci2)) {
+    if (isAssignableFrom(ci1, ci2)) {
       return type1;
     }
-    if (ci2.isAssignableFrom(ci1)) {
+    if (isAssignableFrom(ci2, ci1)) {
       return type2;
     }
     if (ci1.isInterface() || ci2.isInterface()) {
@@ -112,61 +153,125 @@ class StaticClassWriter extends ClassWriter {
     do {
       // Should never be null, because if ci1 were the Object class
       // or an interface, it would have been caught above.
-      ci1 = ci1.getSuperclass();
-    } while (!ci1.isAssignableFrom(ci2));
-    return ci1.getType().getInternalName();
+      ci1 = getSuperclass(ci1);
+    } while (!isAssignableFrom(ci1, ci2));
+    return ci1.getName();
+  }
+
+  /**
+   * Returns the hierarchy information for the class with the given
+   * internal name, from the cache or from its class file.
+   *
+   * @return the information, or null if the class cannot be found.
+   */
+  private ClassInfo classInfo(String type) {
+    ClassInfo info = hierarchy.get(type);
+    if (info != null) {
+      TransformStatistics.hierarchyCacheHit();
+    } else {
+      TransformStatistics.hierarchyCacheMiss();
+      info = ClassInfo.read(type, classLoader);
+      if (info == null) {
+        info = MISSING;
+      }
+      ClassInfo existing = hierarchy.putIfAbsent(type, info);
+      if (existing != null) {
+        info = existing;
+      }
+    }
+    return (info == MISSING) ? null : info;
+  }
+
+  private ClassInfo getSuperclass(ClassInfo info) {
+    String superClass = info.getSuperClass();
+    if (superClass == null) {
+      return null;
+    }
+    return checkedClassInfo(superClass);
+  }
+
+  private ClassInfo checkedClassInfo(String type) {
+    ClassInfo info = classInfo(type);
+    if (info == null) {
+      throw new RuntimeException("Class file not found: " + type);
+    }
+    return info;
+  }
+
+  private boolean implementsInterface(ClassInfo info, ClassInfo that) {
+    for (ClassInfo c = info; c != null; c = getSuperclass(c)) {
+      for (String iface : c.getInterfaces()) {
+        if (iface.equals(that.getName()) ||
+            implementsInterface(checkedClassInfo(iface), that)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean isSubclassOf(ClassInfo info, ClassInfo that) {
+    for (ClassInfo ci = info; ci != null; ci = getSuperclass(ci)) {
+      if (that.getName().equals(ci.getSuperClass())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Same as {@link Class#isAssignableFrom(Class)}
+   */
+  private boolean isAssignableFrom(ClassInfo info, ClassInfo that) {
+    return (info.getName().equals(that.getName()) ||
+            isSubclassOf(that, info) ||
+            implementsInterface(that, info) ||
+            (that.isInterface()
+             && info.getName().equals("java/lang/Object")));
   }
 
   /**
    * For a given class, this stores the information needed by the
-   * getCommonSuperClass test.  This determines if the class is
-   * available at runtime, and then, if it isn't, it tries to get the
-   * class file, and extract the appropriate information from that.
+   * getCommonSuperClass test, as extracted from its class file.  All
+   * class names are internal names.
    */
   static class ClassInfo {
 
-    private final Type type;
-    private final ClassLoader loader;
+    private final String name;
     private final boolean isInterface;
     private final String superClass;
     private final String[] interfaces;
 
-    public ClassInfo(String type, ClassLoader loader) {
-      Class<?> cls = null;
-      // First, see if we can extract the information from the class...
-      try {
-        cls = Class.forName(type);
-      } catch (Exception e) {
-        // failover...
-      }
-
-      if (cls != null) {
-        this.type = Type.getType(cls);
-        this.loader = loader;
-        this.isInterface = cls.isInterface();
-        this.superClass = cls.getSuperclass().getName();
-        Class[] ifs = cls.getInterfaces();
-        this.interfaces = new String[ifs.length];
-        for (int i = 0; i < ifs.length; i++) {
-          this.interfaces[i] = ifs[i].getName();
-        }
-        return;
-      }
+    private ClassInfo(String name, boolean isInterface, String superClass,
+        String[] interfaces) {
+      this.name = name;
+      this.isInterface = isInterface;
+      this.superClass = superClass;
+      this.interfaces = interfaces;
+    }
 
-      // The class isn't loaded.  Try to get the class file, and
-      // extract the information from that.
-      this.loader = loader;
-      this.type = Type.getObjectType(type);
-      String fileName = type.replace('.', '/') + ".class";
+    /**
+     * Reads the information for the given class from its class file or,
+     * if the class file cannot be found or parsed, from the class itself.
+     *
+     * @return the information, or null if the class cannot be found.
+     */
+    static ClassInfo read(String type, ClassLoader loader) {
+      String fileName = type + ".class";
       InputStream is = null;
-      ClassReader cr;
+      ClassReader cr = null;
       try {
         is = (loader == null) ?
             ClassLoader.getSystemResourceAsStream(fileName) :
             loader.getResourceAsStream(fileName);
-        cr = new ClassReader(is);
+        if (is != null) {
+          TransformStatistics.hierarchyResourceRead();
+          cr = new ClassReader(is);
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
+      } catch (IllegalArgumentException e) {
+        // A class file version that this ASM cannot read.
       } finally {
         if (is != null) {
           try {
@@ -175,27 +280,52 @@ class StaticClassWriter extends ClassWriter {
           }
         }
       }
+      if (cr == null) {
+        return fromClass(type, loader);
+      }
 
       int offset = cr.header;
-      isInterface = (cr.readUnsignedShort(offset) & Opcodes.ACC_INTERFACE) != 0;
+      boolean isInterface =
+          (cr.readUnsignedShort(offset) & Opcodes.ACC_INTERFACE) != 0;
       char[] buf = new char[2048];
 
       // Read the superclass
       offset += 4;
-      superClass = readConstantPoolString(cr, offset, buf);
+      String superClass = readConstantPoolString(cr, offset, buf);
 
       // Read the interfaces
       offset += 2;
       int numInterfaces = cr.readUnsignedShort(offset);
-      interfaces = new String[numInterfaces];
+      String[] interfaces = new String[numInterfaces];
       offset += 2;
       for (int i = 0; i < numInterfaces; i++) {
         interfaces[i] = readConstantPoolString(cr, offset, buf);
         offset += 2;
       }
+      return new ClassInfo(type, isInterface, superClass, interfaces);
+    }
+
+    // Gets the information from the class, without initializing it.
+    private static ClassInfo fromClass(String type, ClassLoader loader) {
+      Class<?> cls;
+      try {
+        cls = Class.forName(type.replace('/', '.'), false, loader);
+      } catch (Throwable e) {
+        return null;
+      }
+      Class<?> superClass = cls.getSuperclass();
+      Class<?>[] ifs = cls.getInterfaces();
+      String[] interfaces = new String[ifs.length];
+      for (int i = 0; i < ifs.length; i++) {
+        interfaces[i] = ifs[i].getName().replace('.', '/');
+      }
+      return new ClassInfo(type, cls.isInterface(),
+          (superClass == null) ? null : superClass.getName().replace('.', '/'),
+          interfaces);
     }
 
-    String readConstantPoolString(ClassReader cr, int offset, char[] buf) {
+    private static String readConstantPoolString(ClassReader cr, int offset,
+        char[] buf) {
       int cpIndex = cr.getItem(cr.readUnsignedShort(offset));
       if (cpIndex == 0) {
         return null;
@@ -204,29 +334,16 @@ class StaticClassWriter extends ClassWriter {
       return cr.readUTF8(cpIndex, buf);
     }
 
-    Type getType() {
-      return type;
+    String getName() {
+      return name;
     }
 
-    ClassInfo getSuperclass() {
-      if (superClass == null) {
-        return null;
-      }
-      return new ClassInfo(superClass, loader);
+    String getSuperClass() {
+      return superClass;
     }
 
-    /**
-     * Same as {@link Class#getInterfaces()}
-     */
-    ClassInfo[] getInterfaces() {
-      if (interfaces == null) {
-        return new ClassInfo[0];
-      }
-      ClassInfo[] result = new ClassInfo[interfaces.length];
-      for (int i = 0; i < result.length; ++i) {
-        result[i] = new ClassInfo(interfaces[i], loader);
-      }
-      return result;
+    String[] getInterfaces() {
+      return interfaces;
     }
 
     /**
@@ -235,39 +352,6 @@ class StaticClassWriter extends ClassWriter {
     boolean isInterface() {
       return isInterface;
     }
-
-    private boolean implementsInterface(ClassInfo that) {
-      for (ClassInfo c = this; c != null; c = c.getSuperclass()) {
-        for (ClassInfo iface : c.getInterfaces()) {
-          if (iface.type.equals(that.type) ||
-              iface.implementsInterface(that)) {
-            return true;
-          }
-        }
-      }
-      return false;
-    }
-
-    private boolean isSubclassOf(ClassInfo that) {
-      for (ClassInfo ci = this; ci != null; ci = ci.getSuperclass()) {
-        if (ci.getSuperclass() != null &&
-            ci.getSuperclass().type.equals(that.type)) {
-          return true;
-        }
-      }
-      return false;
-    }
-
-    /**
-     * Same as {@link Class#isAssignableFrom(Class)}
-     */
-    boolean isAssignableFrom(ClassInfo that) {
-      return (this == that ||
-              that.isSubclassOf(this) ||
-              that.implementsInterface(this) ||
-              (that.isInterface()
-               && getType().getDescriptor().equals("Ljava/lang/Object;")));
-    }
   }
 
 }
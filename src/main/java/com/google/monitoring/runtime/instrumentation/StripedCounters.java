@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters that many threads update and that are rarely
+ * read.  Each counter is split over stripes, in the manner of
+ * {@link AllocationSites}, so that threads that increment the same counter
+ * usually write to different cache lines; reading a counter sums its
+ * stripes.
+ */
+final class StripedCounters {
+  private static final int STRIPES = AllocationSites.stripeCount();
+
+  // Longs at either end of each stripe that keep its counters off the cache
+  // lines of whatever is allocated next to it.
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+  /**
+   * @param width the number of counters.
+   */
+  StripedCounters(int width) {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(width + 2 * PADDING);
+    }
+  }
+
+  /**
+   * Adds to a counter.
+   *
+   * @param context the context of the calling thread, which selects the
+   *     stripe.
+   * @param counter the index of the counter.
+   * @param delta the amount to add.
+   */
+  void add(RecorderContext context, int counter, long delta) {
+    stripes[context.stripe & (STRIPES - 1)].addAndGet(
+        PADDING + counter, delta);
+  }
+
+  /**
+   * Returns the value of a counter, summed over all stripes.
+   *
+   * @param counter the index of the counter.
+   * @return the value of the counter.
+   */
+  long get(int counter) {
+    long sum = 0;
+    for (AtomicLongArray stripe : stripes) {
+      sum += stripe.get(PADDING + counter);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the work done by {@link AllocationInstrumenter}'s
+ * class file transformer, for checking the effect of class filters and
+ * other ways of skipping classes.
+ */
+public final class TransformStatistics {
+  private static final AtomicLong transformed = new AtomicLong();
+  private static final AtomicLong transformNanos = new AtomicLong();
+  private static final AtomicLong filtered = new AtomicLong();
+  private static final AtomicLong skipped = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicLong hierarchyHits = new AtomicLong();
+  private static final AtomicLong hierarchyMisses = new AtomicLong();
+  private static final AtomicLong hierarchyReads = new AtomicLong();
+
+  private TransformStatistics() { }
+
+  static void classTransformed(long nanos) {
+    transformed.incrementAndGet();
+    transformNanos.addAndGet(nanos);
+  }
+
+  static void classFiltered() {
+    filtered.incrementAndGet();
+  }
+
+  static void classSkipped() {
+    skipped.incrementAndGet();
+  }
+
+  static void classFailed() {
+    failed.incrementAndGet();
+  }
+
+  static void hierarchyCacheHit() {
+    hierarchyHits.incrementAndGet();
+  }
+
+  static void hierarchyCacheMiss() {
+    hierarchyMisses.incrementAndGet();
+  }
+
+  static void hierarchyResourceRead() {
+    hierarchyReads.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of classes that were passed through the rewriting
+   * pipeline.
+   *
+   * @return the number of transformed classes.
+   */
+  public static long getTransformedCount() {
+    return transformed.get();
+  }
+
+  /**
+   * Returns the total time spent transforming classes.
+   *
+   * @return the time spent in the transformer, in nanoseconds.
+   */
+  public static long getTransformNanos() {
+    return transformNanos.get();
+  }
+
+  /**
+   * Returns the number of classes that were left alone because of the
+   * include and exclude patterns given to the agent.
+   *
+   * @return the number of filtered classes.
+   */
+  public static long getFilteredCount() {
+    return filtered.get();
+  }
+
+  /**
+   * Returns the number of classes that were left alone because a scan of
+   * their bytecode found no allocation sites.
+   *
+   * @return the number of classes without allocation sites.
+   */
+  public static long getSkippedCount() {
+    return skipped.get();
+  }
+
+  /**
+   * Returns the number of classes that could not be instrumented, because
+   * rewriting failed or would have made a method too long, and were left
+   * as they were.
+   *
+   * @return the number of classes that failed to be instrumented.
+   */
+  public static long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Estimates the time saved by not transforming the filtered and skipped
+   * classes, as their number times the average time it took to transform a
+   * class.
+   *
+   * @return the estimated time saved, in nanoseconds.
+   */
+  public static long getEstimatedNanosSaved() {
+    long count = transformed.get();
+    return (count == 0) ? 0 :
+        (filtered.get() + skipped.get()) * (transformNanos.get() / count);
+  }
+
+  /**
+   * Returns the number of class hierarchy lookups, made while computing
+   * stack map frames, that were answered from the per-class-loader cache.
+   *
+   * @return the number of hierarchy cache hits.
+   */
+  public static long getHierarchyCacheHits() {
+    return hierarchyHits.get();
+  }
+
+  /**
+   * Returns the number of class hierarchy lookups that were not in the
+   * cache.
+   *
+   * @return the number of hierarchy cache misses.
+   */
+  public static long getHierarchyCacheMisses() {
+    return hierarchyMisses.get();
+  }
+
+  /**
+   * Returns the number of class files read to find class hierarchy
+   * information.
+   *
+   * @return the number of class file resources read.
+   */
+  public static long getHierarchyResourceReads() {
+    return hierarchyReads.get();
+  }
+}
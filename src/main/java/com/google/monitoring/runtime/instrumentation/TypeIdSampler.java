@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A {@link Sampler} variant that identifies the allocated type by its
+ * {@link TypeRegistry} ID rather than by its descriptor.  Samplers that
+ * aggregate by type can keep their counts in plain arrays indexed by type ID,
+ * and only turn IDs back into descriptors with
+ * {@link TypeRegistry#descriptorOf(int)} when they report.  Like a
+ * {@link WeightedSampler}, it is told the weight of each sample.
+ */
+public interface TypeIdSampler {
+  /**
+   * Records an allocation.
+   *
+   * <b>CAUTION: DO NOT DO ALLOCATION IN THIS METHOD WITHOUT ENSURING THAT
+   * THE SAMPLER WILL NOT BE INVOKED ON THE RESULTING ALLOCATION.</b>
+   *
+   * @param typeId the {@link TypeRegistry} ID of the class/primitive type
+   *     being allocated.
+   * @param count the <code>int</code> count of how many instances are being
+   *     allocated, or -1 if this is not an array allocation.  See
+   *     {@link Sampler#sampleAllocation}.
+   * @param newObj the new <code>Object</code> whose allocation we're
+   *     recording.
+   * @param size the size of the object being allocated.
+   * @param weight the number of allocations like this one that this sample
+   *     represents; always 1 unless byte or inline sampling is enabled.  See
+   *     {@link WeightedSampler}.
+   */
+  public void sampleAllocation(int typeId, int count, Object newObj,
+      long size, double weight);
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * What the recorder needs to know about a class whose instances are
+ * allocated.  It is computed once per class and cached in a
+ * <code>ClassValue</code>, so that recording an allocation whose type is only
+ * known at runtime (reflection, <code>clone()</code>) does not build a
+ * descriptor string every time, and so that instance sizes only have to be
+ * measured once per class.
+ */
+final class TypeInfo {
+  private static final ClassValue<TypeInfo> infos = new ClassValue<TypeInfo>() {
+    @Override protected TypeInfo computeValue(Class<?> type) {
+      return new TypeInfo(type);
+    }
+  };
+
+  /**
+   * The descriptor the allocation is reported with: the internal name of
+   * the class, as computed by <code>getName().replace('.', '/')</code>.
+   */
+  final String descriptor;
+
+  // The TypeRegistry ID of descriptor, or -1 if none has been asked for
+  // yet.  Not volatile: a thread that does not see the ID yet looks it up
+  // again and gets the same one.
+  private int typeId = -1;
+
+  /**
+   * The size of an instance of the class, or -1 if it has not been measured
+   * yet.  It is filled in from the first instance the recorder sees; two
+   * threads racing to do so compute the same value.
+   */
+  volatile long instanceSize = -1;
+
+  // An estimate of instanceSize from the fields of the class, for when no
+  // instance has been measured; -1 if not computed yet.
+  private volatile long estimatedInstanceSize = -1;
+
+  /**
+   * For array classes, the base offset and element size (see
+   * {@link ArraySizes}), or -1 if the class is not an array class or its
+   * layout is unknown.
+   */
+  final long arrayBaseOffset;
+  final long arrayElementSize;
+
+  /**
+   * Whether this is an array class whose elements are not arrays.  The
+   * count the recorder is passed for such arrays is their length.
+   */
+  final boolean oneDimensionalArray;
+
+  private TypeInfo(Class<?> cls) {
+    descriptor = cls.getName().replace('.', '/');
+    Class<?> component = cls.getComponentType();
+    if (component != null) {
+      arrayBaseOffset = ArraySizes.baseOffset(component);
+      arrayElementSize = ArraySizes.elementSize(component);
+      oneDimensionalArray = !component.isArray();
+    } else {
+      arrayBaseOffset = -1;
+      arrayElementSize = -1;
+      oneDimensionalArray = false;
+    }
+  }
+
+  /**
+   * Returns the size of an instance of this class when the recorder cannot
+   * look at the instance: the measured size, if an instance has been
+   * measured, and otherwise an estimate (see
+   * {@link ArraySizes#estimateInstanceSize}).  0 if the layout is unknown.
+   *
+   * @param cls the class this is the information about.
+   */
+  long instanceSizeOf(Class<?> cls) {
+    long size = instanceSize;
+    if (size >= 0) {
+      return size;
+    }
+    size = estimatedInstanceSize;
+    if (size < 0) {
+      size = ArraySizes.estimateInstanceSize(cls);
+      estimatedInstanceSize = size;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the {@link TypeRegistry} ID of {@link #descriptor}.  It is only
+   * assigned when first asked for, since most classes are never reported by
+   * ID.
+   */
+  int typeId() {
+    int id = typeId;
+    if (id < 0) {
+      id = TypeRegistry.idOf(descriptor);
+      typeId = id;
+    }
+    return id;
+  }
+
+  /**
+   * Returns the information about the given class.
+   */
+  static TypeInfo of(Class<?> cls) {
+    return infos.get(cls);
+  }
+}
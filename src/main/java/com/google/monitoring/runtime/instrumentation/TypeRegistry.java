@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns compact integer IDs to the type descriptors that allocation sites
+ * are reported with.  IDs are handed out densely, starting at 0, in the order
+ * in which descriptors are first seen, so samplers can aggregate by type in
+ * flat arrays indexed by type ID instead of hashing descriptor strings on
+ * every event.
+ *
+ * <p>An ID is never reused for another descriptor: samplers, {@link LiveHeap}
+ * and queued events all keep data by type ID, and would otherwise attribute
+ * it to the wrong type.  Most IDs are assigned when a class is instrumented
+ * and baked into the rewritten bytecode as constants.  The types of objects
+ * whose class is only known at runtime (reflection, <code>clone()</code>)
+ * are only given IDs when something needs one (see {@link TypeInfo}), so
+ * generated classes such as proxies only take up an entry each if they are
+ * reported by ID.  IDs are only meaningful within a single run of the JVM.
+ */
+public final class TypeRegistry {
+  private static final ConcurrentHashMap<String, Integer> ids =
+      new ConcurrentHashMap<String, Integer>();
+
+  // Indexed by ID.  Replaced by a larger copy as needed; an entry is always
+  // written before its ID is published.
+  private static volatile String[] descriptors = new String[1024];
+
+  // Number of IDs assigned so far.
+  private static volatile int size = 0;
+
+  // Protects assignment of new IDs.
+  private static final Object lock = new Object();
+
+  private TypeRegistry() { }
+
+  /**
+   * Returns the ID of the given type descriptor, assigning a new one if the
+   * descriptor has not been seen before.
+   *
+   * @param descriptor the descriptor of the class/primitive type, in the form
+   *     passed to {@link Sampler#sampleAllocation}.
+   * @return the type ID of the descriptor.
+   */
+  public static int idOf(String descriptor) {
+    Integer id = ids.get(descriptor);
+    if (id != null) {
+      return id;
+    }
+    synchronized (lock) {
+      id = ids.get(descriptor);
+      if (id != null) {
+        return id;
+      }
+      int newId = size;
+      String[] current = descriptors;
+      if (newId == current.length) {
+        String[] grown = new String[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        descriptors = grown;
+        current = grown;
+      }
+      current[newId] = descriptor;
+      size = newId + 1;
+      ids.put(descriptor, newId);
+      return newId;
+    }
+  }
+
+  /**
+   * Returns the type descriptor with the given ID.
+   *
+   * @param typeId a type ID returned by {@link #idOf(String)} or passed to a
+   *     {@link TypeIdSampler}.
+   * @return the descriptor of the class/primitive type.
+   * @throws IllegalArgumentException if no such ID has been assigned.
+   */
+  public static String descriptorOf(int typeId) {
+    if (typeId < 0 || typeId >= size) {
+      throw new IllegalArgumentException("Unknown type ID " + typeId);
+    }
+    return descriptors[typeId];
+  }
+
+  /**
+   * Returns the number of type IDs assigned so far.  Every ID handed out is
+   * less than this value, so it can be used to size per-type arrays.
+   *
+   * @return the number of type IDs assigned so far.
+   */
+  public static int size() {
+    return size;
+  }
+}
@@ -94,6 +94,19 @@ public class VerifyingClassAdapter extends ClassVisitor {
     };
   }
   
+  /**
+   * Visits a method that is passed through unchanged.  The visitor of the
+   * underlying class writer is returned as is, so that when the class is
+   * read by the {@link org.objectweb.asm.ClassReader} the writer was created
+   * from, ASM copies the method's bytes verbatim instead of parsing and
+   * rewriting it.  An unchanged method cannot have grown, so it is not
+   * checked.
+   */
+  MethodVisitor visitUnchangedMethod(int access, String name, String desc,
+      String signature, String[] exceptions) {
+    return super.visitMethod(access, name, desc, signature, exceptions);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -123,6 +136,7 @@ public class VerifyingClassAdapter extends ClassVisitor {
     if (state != State.PASS) {
       logger.log(Level.WARNING,
           "Failed to instrument class " + className + " because " + message);
+      TransformStatistics.classFailed();
       return original;
     }
     return cw.toByteArray();
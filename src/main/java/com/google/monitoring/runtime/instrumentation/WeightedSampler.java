@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A {@link Sampler} variant that is told how many allocations each sampled
+ * allocation stands for.  When {@link AllocationRecorder} samples by byte
+ * interval (see {@link AllocationRecorder#setSamplingInterval(long)}), only
+ * some allocations reach the samplers; summing <code>weight</code> and
+ * <code>weight * size</code> over all samples gives unbiased estimates of the
+ * number of allocations and of the number of bytes allocated.
+ */
+public interface WeightedSampler {
+  /**
+   * Records a sampled allocation.
+   *
+   * <b>CAUTION: DO NOT DO ALLOCATION IN THIS METHOD WITHOUT ENSURING THAT
+   * THE SAMPLER WILL NOT BE INVOKED ON THE RESULTING ALLOCATION.</b>
+   *
+   * @param count the <code>int</code> count of how many instances are being
+   *     allocated, or -1 if this is not an array allocation.  See
+   *     {@link Sampler#sampleAllocation}.
+   * @param desc the <code>String</code> descriptor of the class/primitive type
+   *     being allocated.
+   * @param newObj the new <code>Object</code> whose allocation we're
+   *     recording.
+   * @param size the size of the object being allocated.
+   * @param weight the number of allocations like this one that this sample
+   *     represents; always 1 unless byte or inline sampling is enabled.
+   */
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size, double weight);
+}
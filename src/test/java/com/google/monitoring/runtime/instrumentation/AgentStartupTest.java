@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.testapp.AllocatingApp;
+import com.google.monitoring.runtime.testapp.AttachingApp;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.LocalVariablesSorter;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+/**
+ * Starts a JVM with the agent in each of its modes, and checks that an
+ * application that allocates in every instrumented way runs to completion.
+ * Also attaches and detaches the agent at runtime.
+ */
+public class AgentStartupTest extends TestCase {
+  private File directory;
+  private File agentJar;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("agent").toFile();
+    // The agent classes and ASM are put on the boot class path, as the
+    // release jar does for itself.  Only jars can be added to it when the
+    // agent is attached at runtime, so a directory of classes is jarred.
+    StringBuilder bootClassPath = new StringBuilder();
+    for (Class<?> cls : new Class<?>[] { AllocationInstrumenter.class,
+        ClassReader.class, LocalVariablesSorter.class, ClassNode.class }) {
+      File location = location(cls);
+      if (location.isDirectory()) {
+        File jar = new File(directory, location.getName() + ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+          addToJar(out, location, "");
+        } finally {
+          out.close();
+        }
+        location = jar;
+      }
+      bootClassPath.append(location.toURI().getRawPath()).append(' ');
+    }
+    Manifest manifest = new Manifest();
+    Attributes attributes = manifest.getMainAttributes();
+    attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    attributes.putValue("Premain-Class",
+        AllocationInstrumenter.class.getName());
+    attributes.putValue("Agent-Class",
+        AllocationInstrumenter.class.getName());
+    attributes.putValue("Can-Retransform-Classes", "true");
+    attributes.putValue("Boot-Class-Path", bootClassPath.toString().trim());
+    agentJar = new File(directory, "agent.jar");
+    new JarOutputStream(new FileOutputStream(agentJar), manifest).close();
+  }
+
+  @Override protected void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static void addToJar(JarOutputStream out, File file, String name)
+      throws IOException {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          addToJar(out, child, name + child.getName()
+              + (child.isDirectory() ? "/" : ""));
+        }
+      }
+    } else {
+      out.putNextEntry(new JarEntry(name));
+      Files.copy(file.toPath(), out);
+      out.closeEntry();
+    }
+  }
+
+  private static File location(Class<?> cls) throws Exception {
+    return new File(
+        cls.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+
+  // Runs AllocatingApp with the given agent arguments, and returns the
+  // number of allocations its sampler saw.
+  private long run(String agentArgs) throws Exception {
+    ProcessBuilder builder = new ProcessBuilder(
+        new File(System.getProperty("java.home"), "bin/java").getPath(),
+        "-javaagent:" + agentJar.getPath() + "=" + agentArgs,
+        "-cp", location(AllocatingApp.class).getPath(),
+        AllocatingApp.class.getName());
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    String output = readFully(process.getInputStream());
+    int status = process.waitFor();
+    String tail = output.substring(Math.max(0, output.length() - 4000));
+    assertEquals(agentArgs + ":\n" + tail, 0, status);
+    int start = output.lastIndexOf("samples=");
+    assertTrue(agentArgs + ":\n" + tail, start >= 0);
+    int end = output.indexOf('\n', start);
+    return Long.parseLong(output.substring(start + "samples=".length(),
+        (end < 0) ? output.length() : end).trim());
+  }
+
+  // Runs AttachingApp, which loads the agent into itself once for each of
+  // the given arguments, and returns the line it printed after each load.
+  private List<String> attach(String... agentArgs) throws Exception {
+    List<String> command = new ArrayList<String>();
+    command.add(
+        new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-Djdk.attach.allowAttachSelf=true");
+    String classPath = location(AttachingApp.class).getPath();
+    // Before Java 9, the attach API is in tools.jar.
+    File tools = new File(System.getProperty("java.home"), "../lib/tools.jar");
+    if (tools.exists()) {
+      classPath += File.pathSeparator + tools.getPath();
+    }
+    command.add("-cp");
+    command.add(classPath);
+    command.add(AttachingApp.class.getName());
+    command.add(agentJar.getPath());
+    for (String args : agentArgs) {
+      command.add(args);
+    }
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    String output = readFully(process.getInputStream());
+    int status = process.waitFor();
+    String tail = output.substring(Math.max(0, output.length() - 4000));
+    assertEquals(tail, 0, status);
+    List<String> reports = new ArrayList<String>();
+    for (String line : output.split("\n")) {
+      if (line.contains(": samples=")) {
+        reports.add(line.trim());
+      }
+    }
+    assertEquals(tail, agentArgs.length, reports.size());
+    return reports;
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testDefault() throws Exception {
+    assertTrue(run("") >= 7000);
+  }
+
+  public void testCountOnly() throws Exception {
+    // Count-only sites do not call the samplers.
+    assertEquals(0, run("countOnly"));
+  }
+
+  public void testInvokeDynamic() throws Exception {
+    assertTrue(run("invokedynamic") >= 7000);
+  }
+
+  public void testSiteCounters() throws Exception {
+    assertTrue(run("siteCounters") >= 7000);
+  }
+
+  public void testStackDepth() throws Exception {
+    assertTrue(run("stackDepth=8") >= 7000);
+  }
+
+  public void testLiveHeap() throws Exception {
+    assertTrue(run("liveHeap") >= 7000);
+  }
+
+  public void testSampling() throws Exception {
+    run("samplingInterval=1024");
+    run("inlineSampling=16");
+  }
+
+  public void testAsync() throws Exception {
+    run("async,asyncObjectReferences");
+  }
+
+  public void testEventLog() throws Exception {
+    run("eventLog=" + directory.getPath());
+  }
+
+  public void testJmx() throws Exception {
+    assertTrue(run("jmx") >= 7000);
+  }
+
+  public void testFiltered() throws Exception {
+    assertEquals(0, run("exclude=com.google.monitoring.runtime.testapp.**"));
+  }
+
+  public void testManualOnly() throws Exception {
+    assertEquals(0, run("manualOnly,subclassesAlso"));
+  }
+
+  public void testAttachDetachAndReattach() throws Exception {
+    List<String> reports = attach("countOnly", "", "detach", "");
+    assertEquals("countOnly: samples=0 probes=true", reports.get(0));
+    // Already attached, so the arguments are ignored.
+    assertEquals(": samples=0 probes=true", reports.get(1));
+    // Detaching restores the classes as they were loaded.
+    assertEquals("detach: samples=0 probes=false", reports.get(2));
+    // Re-attaching without countOnly goes back to the regular probes.
+    assertTrue(reports.get(3), reports.get(3).startsWith(": samples="));
+    assertTrue(reports.get(3), reports.get(3).endsWith(" probes=true"));
+    long samples = Long.parseLong(reports.get(3).substring(
+        ": samples=".length(), reports.get(3).indexOf(' ', 2)));
+    assertTrue(reports.get(3), samples >= 7000);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the sampling done by {@link AllocationRecorder}, with a made-up
+ * {@link Instrumentation} that sizes every object at {@link #SIZE} bytes.
+ */
+public class AllocationRecorderTest extends TestCase {
+  private static final long SIZE = 100;
+
+  // Allocated by the tests; no other code sizes this class.
+  static class Allocated {
+  }
+
+  private final WeightedSampler sampler = new WeightedSampler() {
+    @Override public void sampleAllocation(int count, String desc,
+        Object newObj, long size, double weight) {
+      if (newObj instanceof Allocated) {
+        samples++;
+      }
+    }
+  };
+
+  private int samples;
+  private Instrumentation previous;
+  private long previousInterval;
+
+  static Instrumentation fixedSizeInstrumentation(final long size) {
+    return (Instrumentation) Proxy.newProxyInstance(
+        Instrumentation.class.getClassLoader(),
+        new Class<?>[] { Instrumentation.class },
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method,
+              Object[] args) {
+            if (method.getName().equals("getObjectSize")) {
+              return size;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  @Override protected void setUp() {
+    previous = AllocationRecorder.getInstrumentation();
+    previousInterval = AllocationRecorder.getSamplingInterval();
+    AllocationRecorder.setInstrumentation(fixedSizeInstrumentation(SIZE));
+    AllocationRecorder.addSampler(sampler);
+  }
+
+  @Override protected void tearDown() {
+    AllocationRecorder.removeSampler(sampler);
+    AllocationRecorder.setSamplingInterval(previousInterval);
+    AllocationRecorder.setInstrumentation(previous);
+  }
+
+  private void allocate() {
+    AllocationRecorder.recordAllocation(-1,
+        "com/google/monitoring/runtime/instrumentation/"
+            + "AllocationRecorderTest$Allocated",
+        new Allocated());
+  }
+
+  public void testEveryAllocationIsRecordedWithoutSampling() {
+    AllocationRecorder.setSamplingInterval(0);
+    allocate();
+    allocate();
+    assertEquals(2, samples);
+  }
+
+  public void testChangingTheIntervalRestartsTheCountdown() {
+    // Draws a countdown that this test will never use up.
+    AllocationRecorder.setSamplingInterval(Long.MAX_VALUE / 4);
+    allocate();
+    assertEquals(0, samples);
+    // Any countdown drawn for a one-byte mean runs out within one object.
+    AllocationRecorder.setSamplingInterval(1);
+    allocate();
+    assertEquals(1, samples);
+  }
+
+  public void testTypeIdSamplersAreToldTheWeight() {
+    final double[] weight = new double[1];
+    TypeIdSampler byTypeId = new TypeIdSampler() {
+      @Override public void sampleAllocation(int typeId, int count,
+          Object newObj, long size, double w) {
+        if (newObj instanceof Allocated) {
+          weight[0] = w;
+        }
+      }
+    };
+    AllocationRecorder.addSampler(byTypeId);
+    try {
+      AllocationRecorder.setSamplingInterval(10 * SIZE);
+      for (int i = 0; i < 100000 && samples == 0; i++) {
+        allocate();
+      }
+      assertEquals(1, samples);
+      assertEquals(1 / -Math.expm1(-0.1), weight[0], 1e-9);
+    } finally {
+      AllocationRecorder.removeSampler(byTypeId);
+    }
+  }
+
+  public void testAllocationsAreOnlyCountedWhileSomethingListens() {
+    AllocationRecorder.setSamplingInterval(0);
+    AllocationRecorder.removeSampler(sampler);
+    long before = AllocationRecorder.getAllocationCount();
+    allocate();
+    assertEquals(before, AllocationRecorder.getAllocationCount());
+    AllocationRecorder.addSampler(sampler);
+    allocate();
+    assertEquals(before + 1, AllocationRecorder.getAllocationCount());
+  }
+}
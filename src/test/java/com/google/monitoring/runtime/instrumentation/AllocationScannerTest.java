@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link AllocationScanner} finds the same allocating methods as
+ * a visitor that looks at the instructions parsed by ASM.
+ */
+public class AllocationScannerTest extends TestCase {
+  // Records, for each method, whether it contains an allocating instruction
+  // or a call to a method named clone or newInstance.
+  private static final class AllocatingMethods extends ClassVisitor {
+    final List<Boolean> methods = new ArrayList<Boolean>();
+
+    AllocatingMethods() {
+      super(Opcodes.ASM5);
+    }
+
+    @Override public MethodVisitor visitMethod(int access, String name,
+        String desc, String signature, String[] exceptions) {
+      final int index = methods.size();
+      methods.add(false);
+      return new MethodVisitor(Opcodes.ASM5) {
+        @Override public void visitTypeInsn(int opcode, String type) {
+          if (opcode == Opcodes.NEW || opcode == Opcodes.ANEWARRAY) {
+            methods.set(index, true);
+          }
+        }
+
+        @Override public void visitIntInsn(int opcode, int operand) {
+          if (opcode == Opcodes.NEWARRAY) {
+            methods.set(index, true);
+          }
+        }
+
+        @Override public void visitMultiANewArrayInsn(String desc, int dims) {
+          methods.set(index, true);
+        }
+
+        @Override public void visitMethodInsn(int opcode, String owner,
+            String name, String desc, boolean itf) {
+          if (name.equals("clone") || name.equals("newInstance")) {
+            methods.set(index, true);
+          }
+        }
+      };
+    }
+  }
+
+  private static boolean[] expected(byte[] classFile) {
+    AllocatingMethods visitor = new AllocatingMethods();
+    new ClassReader(classFile).accept(visitor, ClassReader.SKIP_FRAMES);
+    boolean[] methods = new boolean[visitor.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = visitor.methods.get(i);
+    }
+    return methods;
+  }
+
+  private static File location(Class<?> cls) throws URISyntaxException {
+    return new File(
+        cls.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  // Checks every class file in the given jar or directory, and returns how
+  // many there were.
+  private static int checkAll(File location) throws IOException {
+    int checked = 0;
+    if (location.isDirectory()) {
+      File[] files = location.listFiles();
+      for (File file : files) {
+        if (file.isDirectory()) {
+          checked += checkAll(file);
+        } else if (file.getName().endsWith(".class")) {
+          check(file.getPath(), Files.readAllBytes(file.toPath()));
+          checked++;
+        }
+      }
+      return checked;
+    }
+    JarFile jar = new JarFile(location);
+    try {
+      for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+        JarEntry entry = e.nextElement();
+        if (entry.getName().endsWith(".class")) {
+          check(entry.getName(), readFully(jar.getInputStream(entry)));
+          checked++;
+        }
+      }
+    } finally {
+      jar.close();
+    }
+    return checked;
+  }
+
+  private static void check(String name, byte[] classFile) {
+    boolean[] expected = expected(classFile);
+    boolean[] actual = AllocationScanner.allocatingMethods(classFile);
+    assertNotNull(name, actual);
+    assertTrue(name + ": expected " + Arrays.toString(expected) + " but was " +
+        Arrays.toString(actual), Arrays.equals(expected, actual));
+    boolean any = false;
+    for (boolean allocates : expected) {
+      any |= allocates;
+    }
+    assertEquals(name, any, AllocationScanner.hasAllocationSites(classFile));
+  }
+
+  public void testAgreesWithAsmOnAsm() throws Exception {
+    assertTrue(checkAll(location(ClassReader.class)) > 20);
+  }
+
+  public void testAgreesWithAsmOnTheAgent() throws Exception {
+    assertTrue(checkAll(location(AllocationScanner.class)) > 20);
+  }
+
+  public void testMalformedClassIsNotScanned() throws Exception {
+    byte[] classFile = readFully(AllocationScannerTest.class
+        .getResourceAsStream("AllocationScannerTest.class"));
+    assertNull(AllocationScanner.allocatingMethods(
+        Arrays.copyOf(classFile, classFile.length / 2)));
+    assertTrue(AllocationScanner.hasAllocationSites(
+        Arrays.copyOf(classFile, classFile.length / 2)));
+  }
+}
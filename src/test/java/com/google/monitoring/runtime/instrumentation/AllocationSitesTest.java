@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AllocationSites}.
+ */
+public class AllocationSitesTest extends TestCase {
+  public void testRegisteringASiteAgainReturnsItsId() {
+    int site = AllocationSites.register("test/Sites", "run", "()V", 10, 0);
+    int size = AllocationSites.size();
+    assertEquals(site,
+        AllocationSites.register("test/Sites", "run", "()V", 10, 0));
+    assertEquals(size, AllocationSites.size());
+    assertEquals("test/Sites.run()V:10", AllocationSites.describe(site));
+  }
+
+  public void testSitesOnTheSameLineAreDistinct() {
+    int first = AllocationSites.register("test/Sites", "line", "()V", 7, 0);
+    int second = AllocationSites.register("test/Sites", "line", "()V", 7, 1);
+    assertTrue(first != second);
+    assertEquals(7, AllocationSites.getLineNumber(second));
+  }
+
+  public void testCounting() {
+    int site = AllocationSites.register("test/Sites", "count", "()V", 1, 0);
+    boolean wasEnabled = AllocationSites.isCountingEnabled();
+    AllocationSites.setCountingEnabled(true);
+    try {
+      RecorderContext context = RecorderContext.forCurrentThread();
+      AllocationSites.add(site, context, 2, 48);
+      AllocationSites.add(site, context, 1, 16);
+      // Sites registered after counting was enabled get counters too.
+      int later = AllocationSites.register("test/Sites", "count", "()V", 2, 1);
+      AllocationSites.add(later, context, 1, 24);
+      AllocationSites.Snapshot snapshot = AllocationSites.snapshot();
+      assertEquals(3, snapshot.getCount(site));
+      assertEquals(64, snapshot.getBytes(site));
+      assertEquals(1, snapshot.getCount(later));
+      assertEquals(24, snapshot.getBytes(later));
+    } finally {
+      AllocationSites.setCountingEnabled(wasEnabled);
+    }
+  }
+
+  public void testUnknownSite() {
+    try {
+      AllocationSites.describe(AllocationSites.size());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
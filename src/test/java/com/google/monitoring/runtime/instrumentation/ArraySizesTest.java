@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ArraySizes}, calibrated against made-up JVM layouts.
+ */
+public class ArraySizesTest extends TestCase {
+  // A JVM layout: the header size, the reference size and the alignment.
+  // Array elements start right after the length field, aligned to their
+  // own size, as in HotSpot.
+  private static class Layout implements InvocationHandler {
+    final long header;
+    final long reference;
+    final long alignment;
+
+    Layout(long header, long reference, long alignment) {
+      this.header = header;
+      this.reference = reference;
+      this.alignment = alignment;
+    }
+
+    long elementSize(Class<?> component) {
+      if (component == boolean.class || component == byte.class) {
+        return 1;
+      } else if (component == char.class || component == short.class) {
+        return 2;
+      } else if (component == int.class || component == float.class) {
+        return 4;
+      } else if (component == long.class || component == double.class) {
+        return 8;
+      }
+      return reference;
+    }
+
+    long baseOffset(Class<?> component) {
+      long element = elementSize(component);
+      return (header + 4 + element - 1) / element * element;
+    }
+
+    long align(long size) {
+      return (size + alignment - 1) / alignment * alignment;
+    }
+
+    long sizeOf(Class<?> component, int length) {
+      return align(baseOffset(component) + length * elementSize(component));
+    }
+
+    @Override public Object invoke(Object proxy, Method method,
+        Object[] args) {
+      if (method.getName().equals("getObjectSize")) {
+        Object array = args[0];
+        return sizeOf(array.getClass().getComponentType(),
+            Array.getLength(array));
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private static void calibrate(Layout layout) {
+    ArraySizes.calibrate((Instrumentation) Proxy.newProxyInstance(
+        Instrumentation.class.getClassLoader(),
+        new Class<?>[] { Instrumentation.class }, layout));
+  }
+
+  private static final Class<?>[] COMPONENTS = {
+    boolean.class, byte.class, char.class, short.class, int.class,
+    float.class, long.class, double.class, Object.class, String.class,
+    int[].class
+  };
+
+  private static final int[] LENGTHS = { 0, 1, 2, 3, 7, 8, 9, 100, 4099 };
+
+  private static void checkArrays(Layout layout) {
+    for (Class<?> component : COMPONENTS) {
+      for (int length : LENGTHS) {
+        assertEquals(component + "[" + length + "]",
+            layout.sizeOf(component, length),
+            ArraySizes.sizeOf(component, length));
+      }
+    }
+  }
+
+  static class Base {
+    int a;
+    static long ignored;
+  }
+
+  static class Derived extends Base {
+    long b;
+    Object c;
+    boolean d;
+  }
+
+  public void testCompressedLayout() {
+    Layout layout = new Layout(12, 4, 8);
+    calibrate(layout);
+    checkArrays(layout);
+    assertEquals(12, ArraySizes.headerSize());
+    assertEquals(4, ArraySizes.referenceSize());
+    assertEquals(16, ArraySizes.estimateInstanceSize(Object.class));
+    // 12 + 4 + 8 + 4 + 1, aligned.
+    assertEquals(32, ArraySizes.estimateInstanceSize(Derived.class));
+    assertEquals(0, ArraySizes.estimateInstanceSize(int[].class));
+  }
+
+  public void testUncompressedLayout() {
+    Layout layout = new Layout(16, 8, 8);
+    calibrate(layout);
+    checkArrays(layout);
+    assertEquals(16, ArraySizes.headerSize());
+    assertEquals(8, ArraySizes.referenceSize());
+    // 16 + 4 + 8 + 8 + 1, aligned.
+    assertEquals(40, ArraySizes.estimateInstanceSize(Derived.class));
+  }
+
+  public void testLargerAlignment() {
+    Layout layout = new Layout(12, 4, 16);
+    calibrate(layout);
+    checkArrays(layout);
+    assertEquals(32, ArraySizes.estimateInstanceSize(Derived.class));
+    assertEquals(48, ArraySizes.alignSize(33));
+  }
+
+  public void testLayoutThatDoesNotFitIsNotUsed() {
+    Layout layout = new Layout(12, 4, 8) {
+      @Override long sizeOf(Class<?> component, int length) {
+        long size = super.sizeOf(component, length);
+        return (component == char.class && length == 100) ? size + 8 : size;
+      }
+    };
+    calibrate(layout);
+    assertTrue(ArraySizes.sizeOf(char.class, 100) !=
+        layout.sizeOf(char.class, 100));
+    for (Class<?> component : COMPONENTS) {
+      if (component != char.class) {
+        for (int length : LENGTHS) {
+          assertEquals(layout.sizeOf(component, length),
+              ArraySizes.sizeOf(component, length));
+        }
+      }
+    }
+  }
+
+  public void testSizeOfLayout() {
+    Layout layout = new Layout(12, 4, 8);
+    calibrate(layout);
+    assertEquals(16, ArraySizes.sizeOf(16, 4, 0));
+    assertEquals(24, ArraySizes.sizeOf(16, 4, 1));
+    assertEquals(24, ArraySizes.sizeOf(16, 8, 1));
+    assertEquals(816, ArraySizes.sizeOf(16, 8, 100));
+  }
+}
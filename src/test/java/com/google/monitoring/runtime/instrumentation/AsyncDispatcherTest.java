@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for stopping and restarting {@link AsyncDispatcher}.
+ */
+public class AsyncDispatcherTest extends TestCase {
+  private static final int SITE = 123456;
+
+  // Counts the events with site ID SITE.
+  private static final class SiteCounter implements BatchSampler {
+    final AtomicInteger seen = new AtomicInteger();
+
+    @Override public void sampleAllocations(AllocationBatch batch) {
+      for (int i = 0; i < batch.length(); i++) {
+        if (batch.siteIds()[i] == SITE) {
+          seen.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static Thread dispatcherThread() {
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("AllocationRecorder-dispatcher")) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  public void testStopEndsTheThreadAndStartResumes() throws Exception {
+    SiteCounter sampler = new SiteCounter();
+    AllocationRecorder.addSampler(sampler);
+    try {
+      Thread t = dispatcherThread();
+      assertNotNull(t);
+      AsyncDispatcher.stop();
+      t.join(5000);
+      assertFalse(t.isAlive());
+      assertNull(dispatcherThread());
+
+      EventRing ring = AsyncDispatcher.register(Thread.currentThread());
+      assertTrue(ring.offer(1, SITE, -1, -1, 16, 1.0, 0, null, false));
+      Thread.sleep(50);
+      assertEquals(0, sampler.seen.get());
+
+      AsyncDispatcher.start();
+      for (int i = 0; i < 500 && sampler.seen.get() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, sampler.seen.get());
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+      AsyncDispatcher.stop();
+    }
+  }
+}
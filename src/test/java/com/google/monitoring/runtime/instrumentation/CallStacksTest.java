@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CallStacks}.
+ */
+public class CallStacksTest extends TestCase {
+  private static StackTraceElement frame(String method, int line) {
+    return new StackTraceElement("test.Stacks", method, "Stacks.java", line);
+  }
+
+  public void testStacksShareTheirInnermostFrames() {
+    StackTraceElement[] first = {
+        frame("allocate", 1), frame("caller", 2), frame("main", 3) };
+    StackTraceElement[] second = {
+        frame("allocate", 1), frame("other", 4), frame("main", 3) };
+    int firstId = CallStacks.intern(first, 0, 3);
+    int secondId = CallStacks.intern(second, 0, 3);
+    assertTrue(firstId != secondId);
+    assertEquals(firstId, CallStacks.intern(first.clone(), 0, 3));
+    assertEquals(CallStacks.getParent(CallStacks.getParent(firstId)),
+        CallStacks.getParent(CallStacks.getParent(secondId)));
+    // The two "main" frames are the same frame in different stacks.
+    assertEquals(CallStacks.getFrame(firstId), CallStacks.getFrame(secondId));
+    assertEquals(Arrays.asList(first),
+        Arrays.asList(CallStacks.getStack(firstId)));
+  }
+
+  public void testInternPrefix() {
+    StackTraceElement[] stack = {
+        frame("prefix", 1), frame("prefixCaller", 2) };
+    int inner = CallStacks.intern(stack, 0, 1);
+    assertEquals(-1, CallStacks.getParent(inner));
+    assertEquals(inner, CallStacks.getParent(CallStacks.intern(stack, 0, 2)));
+    assertEquals(-1, CallStacks.intern(stack, 1, 1));
+  }
+
+  public void testCaptureSkipsRecorderFrames() throws Exception {
+    final int[] stackId = new int[1];
+    // On a fresh thread, the only frame outside the agent's package is
+    // Thread.run.
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        stackId[0] = CallStacks.capture(8, RecorderContext.forCurrentThread());
+      }
+    });
+    thread.start();
+    thread.join();
+    StackTraceElement[] stack = CallStacks.getStack(stackId[0]);
+    assertEquals(1, stack.length);
+    assertEquals("java.lang.Thread", stack[0].getClassName());
+    assertEquals("run", stack[0].getMethodName());
+  }
+
+  public void testUsesStackWalkerWhenAvailable() {
+    boolean available;
+    try {
+      Class.forName("java.lang.StackWalker");
+      available = true;
+    } catch (ClassNotFoundException e) {
+      available = false;
+    }
+    assertEquals(available, CallStacks.usesStackWalker());
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ClassFilter}.
+ */
+public class ClassFilterTest extends TestCase {
+  private static ClassFilter includes(String... patterns) {
+    return ClassFilter.compile(Arrays.asList(patterns),
+        Collections.<String>emptyList());
+  }
+
+  public void testNoPatternsAcceptEverything() {
+    ClassFilter filter = ClassFilter.compile(Collections.<String>emptyList(),
+        Collections.<String>emptyList());
+    assertSame(ClassFilter.ACCEPT_ALL, filter);
+    assertTrue(filter.accepts("com/example/Foo"));
+  }
+
+  public void testSingleStarStaysInOnePackage() {
+    ClassFilter filter = includes("com.example.*");
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertTrue(filter.accepts("com/example/Foo$Bar"));
+    assertFalse(filter.accepts("com/example/sub/Foo"));
+    assertFalse(filter.accepts("com/examples/Foo"));
+  }
+
+  public void testDoubleStarCrossesPackages() {
+    ClassFilter filter = includes("com/example/**");
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertTrue(filter.accepts("com/example/sub/deeper/Foo"));
+    assertFalse(filter.accepts("com/other/Foo"));
+  }
+
+  public void testStarInTheMiddle() {
+    ClassFilter filter = includes("com.*.Foo", "org.**.Bar");
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertFalse(filter.accepts("com/example/sub/Foo"));
+    assertFalse(filter.accepts("com/example/Foo2"));
+    assertTrue(filter.accepts("org/a/Bar"));
+    assertTrue(filter.accepts("org/a/b/Bar"));
+    assertFalse(filter.accepts("org/a/Baz"));
+  }
+
+  public void testQuestionMarkIsOneCharacterWithinAPackage() {
+    ClassFilter filter = includes("com.example.Fo?");
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertFalse(filter.accepts("com/example/Fo"));
+    assertFalse(filter.accepts("com/example/Fooo"));
+    assertFalse(includes("com?example.Foo").accepts("com/example/Foo"));
+  }
+
+  public void testLiteralPatternsMatchWholeNames() {
+    ClassFilter filter = includes("com.example.Foo", "com.example.Foo.Bar");
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertTrue(filter.accepts("com/example/Foo/Bar"));
+    assertFalse(filter.accepts("com/example/Fo"));
+    assertFalse(filter.accepts("com/example/FooBar"));
+  }
+
+  public void testExcludesWin() {
+    ClassFilter filter = ClassFilter.compile(Arrays.asList("com.example.**"),
+        Arrays.asList("com.example.generated.**", "**Test"));
+    assertTrue(filter.accepts("com/example/Foo"));
+    assertFalse(filter.accepts("com/example/generated/Foo"));
+    assertFalse(filter.accepts("com/example/FooTest"));
+
+    ClassFilter excludesOnly = ClassFilter.compile(
+        Collections.<String>emptyList(), Arrays.asList("com.example.*"));
+    assertFalse(excludesOnly.accepts("com/example/Foo"));
+    assertTrue(excludesOnly.accepts("org/example/Foo"));
+  }
+
+  public void testReadConfig() throws IOException {
+    File file = File.createTempFile("filter", ".txt");
+    try {
+      Files.write(file.toPath(), Arrays.asList(
+          "# comment", "", "include com.example.**",
+          "  exclude   com.example.Generated*  "), StandardCharsets.UTF_8);
+      List<String> includes = new ArrayList<String>();
+      List<String> excludes = new ArrayList<String>();
+      ClassFilter.readConfig(file, includes, excludes);
+      assertEquals(Arrays.asList("com.example.**"), includes);
+      assertEquals(Arrays.asList("com.example.Generated*"), excludes);
+
+      Files.write(file.toPath(), Arrays.asList("include"),
+          StandardCharsets.UTF_8);
+      try {
+        ClassFilter.readConfig(file, includes, excludes);
+        fail();
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage(),
+            expected.getMessage().endsWith(":1: expected \"include PATTERN\"" +
+                " or \"exclude PATTERN\""));
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.testapp.Constructed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ConstructorInstrumenter}, with a made-up
+ * {@link Instrumentation} that records the classes it is asked to
+ * retransform.
+ */
+public class ConstructorInstrumenterTest extends TestCase {
+  // The classes passed to each call to retransformClasses.
+  private final List<List<Class<?>>> retransformed =
+      new ArrayList<List<Class<?>>>();
+  private final Set<Class<?>> unmodifiable = new HashSet<Class<?>>();
+  // If set, thrown by the next call to retransformClasses.
+  private UnmodifiableClassException failure;
+
+  private final List<Object> sampled = new ArrayList<Object>();
+  private final ConstructorCallback<Object> callback =
+      new ConstructorCallback<Object>() {
+        @Override public void sample(Object newObj) {
+          sampled.add(newObj);
+        }
+      };
+
+  private Instrumentation previous;
+
+  @Override protected void setUp() {
+    previous = AllocationRecorder.getInstrumentation();
+    AllocationRecorder.setInstrumentation((Instrumentation)
+        Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+            new Class<?>[] { Instrumentation.class },
+            new InvocationHandler() {
+              @Override public Object invoke(Object proxy, Method method,
+                  Object[] args) throws UnmodifiableClassException {
+                if (method.getName().equals("isModifiableClass")) {
+                  return !unmodifiable.contains(args[0]);
+                }
+                if (method.getName().equals("retransformClasses")) {
+                  retransformed.add(Arrays.asList((Class<?>[]) args[0]));
+                  if (failure != null) {
+                    UnmodifiableClassException e = failure;
+                    failure = null;
+                    throw e;
+                  }
+                  return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+              }
+            }));
+  }
+
+  @Override protected void tearDown() throws Exception {
+    for (Class<?> c : new Class<?>[] { Constructed.First.class,
+        Constructed.Second.class, Constructed.Branching.class }) {
+      ConstructorInstrumenter.removeSampler(c, callback);
+    }
+    AllocationRecorder.setInstrumentation(previous);
+  }
+
+  private static byte[] classFile(Class<?> cls) throws IOException {
+    InputStream in = cls.getResourceAsStream(
+        cls.getName().substring(cls.getName().lastIndexOf('.') + 1)
+            + ".class");
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String internalName(Class<?> cls) {
+    return cls.getName().replace('.', '/');
+  }
+
+  public void testClassesAreRetransformedTogether() throws Exception {
+    Map<Class<?>, List<ConstructorCallback<Object>>> samplers =
+        new LinkedHashMap<Class<?>, List<ConstructorCallback<Object>>>();
+    samplers.put(Constructed.First.class, Collections.singletonList(callback));
+    samplers.put(Constructed.Second.class,
+        Collections.singletonList(callback));
+    ConstructorInstrumenter.instrumentClasses(samplers);
+    assertEquals(1, retransformed.size());
+    assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            Constructed.First.class, Constructed.Second.class)),
+        new HashSet<Class<?>>(retransformed.get(0)));
+
+    Object first = new Constructed.First();
+    ConstructorInstrumenter.invokeSamplers(first);
+    Object second = new Constructed.Second();
+    ConstructorInstrumenter.invokeSamplers(second);
+    assertEquals(Arrays.asList(first, second), sampled);
+
+    // A class that already has callbacks is not retransformed again, nor
+    // when it still has some left.
+    ConstructorCallback<Object> other = new ConstructorCallback<Object>() {
+      @Override public void sample(Object newObj) {
+      }
+    };
+    ConstructorInstrumenter.instrumentClass(Constructed.First.class, other);
+    assertTrue(
+        ConstructorInstrumenter.removeSampler(Constructed.First.class, other));
+    assertEquals(1, retransformed.size());
+  }
+
+  public void testNothingIsAddedIfAClassIsUnmodifiable() throws Exception {
+    unmodifiable.add(Constructed.Second.class);
+    Map<Class<?>, List<ConstructorCallback<Object>>> samplers =
+        new LinkedHashMap<Class<?>, List<ConstructorCallback<Object>>>();
+    samplers.put(Constructed.First.class, Collections.singletonList(callback));
+    samplers.put(Constructed.Second.class,
+        Collections.singletonList(callback));
+    try {
+      ConstructorInstrumenter.instrumentClasses(samplers);
+      fail();
+    } catch (UnmodifiableClassException expected) {
+    }
+    assertTrue(retransformed.isEmpty());
+    assertFalse(ConstructorInstrumenter.hasCallbacks(Constructed.First.class));
+  }
+
+  public void testCallbacksAreTakenBackIfRetransformationFails()
+      throws Exception {
+    ConstructorCallback<Object> other = new ConstructorCallback<Object>() {
+      @Override public void sample(Object newObj) {
+        fail();
+      }
+    };
+    ConstructorInstrumenter.instrumentClass(Constructed.First.class, callback);
+    Map<Class<?>, List<ConstructorCallback<Object>>> samplers =
+        new LinkedHashMap<Class<?>, List<ConstructorCallback<Object>>>();
+    samplers.put(Constructed.First.class, Collections.singletonList(other));
+    samplers.put(Constructed.Second.class, Collections.singletonList(other));
+    failure = new UnmodifiableClassException();
+    try {
+      ConstructorInstrumenter.instrumentClasses(samplers);
+      fail();
+    } catch (UnmodifiableClassException expected) {
+    }
+    // Only the new class was being retransformed.
+    assertEquals(Arrays.<Class<?>>asList(Constructed.Second.class),
+        retransformed.get(1));
+    assertFalse(
+        ConstructorInstrumenter.hasCallbacks(Constructed.Second.class));
+    // The earlier callback stays, and the new one is gone.
+    Object first = new Constructed.First();
+    ConstructorInstrumenter.invokeSamplers(first);
+    assertEquals(Collections.singletonList(first), sampled);
+  }
+
+  public void testRemovingTheLastCallbackRestoresTheClass() throws Exception {
+    Class<?> c = Constructed.First.class;
+    byte[] original = classFile(c);
+    ConstructorInstrumenter transformer = new ConstructorInstrumenter();
+    ConstructorInstrumenter.instrumentClass(c, callback);
+    assertNotNull(transformer.transform(c.getClassLoader(), internalName(c),
+        c, null, original));
+
+    assertTrue(ConstructorInstrumenter.removeSampler(c, callback));
+    assertFalse(ConstructorInstrumenter.removeSampler(c, callback));
+    // Retransformed once to add the callback and once to take it out, and
+    // the second time the class file is left as it was.
+    assertEquals(2, retransformed.size());
+    assertEquals(Collections.<Class<?>>singletonList(c), retransformed.get(1));
+    assertNull(transformer.transform(c.getClassLoader(), internalName(c),
+        c, null, original));
+    ConstructorInstrumenter.invokeSamplers(new Constructed.First());
+    assertTrue(sampled.isEmpty());
+  }
+
+  // Loads a single class from the given bytes, rather than asking its
+  // parent first.
+  private static class SingleClassLoader extends ClassLoader {
+    private final String name;
+    private final byte[] bytes;
+
+    SingleClassLoader(String name, byte[] bytes) {
+      super(SingleClassLoader.class.getClassLoader());
+      this.name = name;
+      this.bytes = bytes;
+    }
+
+    @Override protected Class<?> loadClass(String className, boolean resolve)
+        throws ClassNotFoundException {
+      if (!className.equals(name)) {
+        return super.loadClass(className, resolve);
+      }
+      synchronized (getClassLoadingLock(className)) {
+        Class<?> c = findLoadedClass(className);
+        if (c == null) {
+          c = defineClass(className, bytes, 0, bytes.length);
+        }
+        return c;
+      }
+    }
+  }
+
+  public void testConstructorsWithFramesAreInstrumented() throws Exception {
+    // LocalVariablesSorter rejects frames that ClassReader has not
+    // expanded, and the frames that are kept must still verify.
+    Class<?> c = Constructed.Branching.class;
+    byte[] instrumented = ConstructorInstrumenter.instrument(classFile(c), c);
+    Class<?> loaded =
+        new SingleClassLoader(c.getName(), instrumented).loadClass(
+            c.getName());
+    assertNotSame(c, loaded);
+    ConstructorInstrumenter.instrumentClass(loaded, callback);
+    try {
+      Object newObj = loaded.newInstance();
+      assertEquals(Collections.singletonList(newObj), sampled);
+      assertEquals(1, loaded.getField("value").getInt(newObj));
+    } finally {
+      ConstructorInstrumenter.removeSampler(loaded, callback);
+    }
+  }
+}
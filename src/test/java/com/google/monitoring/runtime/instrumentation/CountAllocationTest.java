@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the count-only probes of {@link AllocationRecorder}.
+ */
+public class CountAllocationTest extends TestCase {
+  private boolean wasCounting;
+
+  @Override protected void setUp() {
+    wasCounting = AllocationSites.isCountingEnabled();
+    AllocationSites.setCountingEnabled(true);
+  }
+
+  @Override protected void tearDown() {
+    AllocationSites.setCountingEnabled(wasCounting);
+  }
+
+  private static long count(int site) {
+    return AllocationSites.snapshot().getCount(site);
+  }
+
+  public void testProbesCount() {
+    int site = AllocationSites.register("test/Count", "run", "()V", 1, 0);
+    AllocationRecorder.countAllocation(-1, CountAllocationTest.class, site);
+    AllocationRecorder.countAllocation(2, int[][].class, site);
+    AllocationRecorder.countAllocation(CountAllocationTest.class, site);
+    AllocationRecorder.countArrayAllocation(3, long.class, site);
+    assertEquals(4, count(site));
+    assertFalse(RecorderContext.forCurrentThread().recording);
+  }
+
+  public void testProbesDoNotReenterTheRecorder() {
+    int site = AllocationSites.register("test/Count", "nested", "()V", 1, 0);
+    RecorderContext context = RecorderContext.forCurrentThread();
+    // As if the probe had been reached from within the recorder, e.g. while
+    // a size was being worked out.
+    context.recording = true;
+    try {
+      AllocationRecorder.countAllocation(-1, CountAllocationTest.class, site);
+      AllocationRecorder.countAllocation(CountAllocationTest.class, site);
+      AllocationRecorder.countArrayAllocation(1, int.class, site);
+      assertTrue(context.recording);
+    } finally {
+      context.recording = false;
+    }
+    assertEquals(0, count(site));
+  }
+
+  public void testInstanceSizeIsKeptPerSite() {
+    int site = AllocationSites.register("test/Count", "size", "()V", 1, 0);
+    AllocationSites.setInstanceSize(site, 40);
+    AllocationRecorder.countAllocation(-1, CountAllocationTest.class, site);
+    assertEquals(40, AllocationSites.snapshot().getBytes(site));
+  }
+
+  public void testZeroInstanceSizeIsKept() {
+    int site = AllocationSites.register("test/Count", "zero", "()V", 1, 0);
+    assertEquals(-1, AllocationSites.getInstanceSize(site));
+    AllocationSites.setInstanceSize(site, 0);
+    AllocationRecorder.countAllocation(-1, CountAllocationTest.class, site);
+    assertEquals(0, AllocationSites.getInstanceSize(site));
+    assertEquals(0, AllocationSites.snapshot().getBytes(site));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link EventLogWriter} and {@link EventLogReader}.
+ */
+public class EventLogWriterTest extends TestCase {
+  private File directory;
+
+  @Override protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("eventlog").toFile();
+  }
+
+  @Override protected void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static AllocationBatch batch(int typeId, int siteId, int events) {
+    AllocationBatch batch = new AllocationBatch(events);
+    for (int i = 0; i < events; i++) {
+      batch.typeIds[i] = typeId;
+      batch.siteIds[i] = siteId;
+      batch.counts[i] = -1;
+      batch.sizes[i] = 24;
+      batch.weights[i] = 2.0;
+      batch.timestamps[i] = 1000L * (i + 1);
+    }
+    batch.length = events;
+    return batch;
+  }
+
+  private static String read(File... segments) throws IOException {
+    EventLogReader reader = new EventLogReader();
+    for (File segment : segments) {
+      reader.readSegment(segment);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    reader.print(new PrintStream(out, true), 10);
+    return out.toString();
+  }
+
+  private File[] segments() {
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    return files;
+  }
+
+  public void testRoundTrip() throws IOException {
+    int typeId = TypeRegistry.idOf("Ltest/RoundTrip;");
+    int siteId = AllocationSites.register("test/Log", "run", "()V", 42, 0);
+    EventLogWriter writer = new EventLogWriter(directory, "log",
+        EventLogWriter.DEFAULT_SEGMENT_BYTES >> 8, 0);
+    writer.sampleAllocations(batch(typeId, siteId, 3));
+    writer.sampleAllocations(batch(typeId, -1, 1));
+    writer.close();
+
+    File[] segments = segments();
+    assertEquals(1, segments.length);
+    assertEquals(EventLogWriter.segmentName("log", 0),
+        segments[0].getName());
+    String summary = read(segments);
+    assertTrue(summary, summary.startsWith("4 events"));
+    // Four events of weight 2 and 24 bytes each.
+    assertTrue(summary, summary.contains(
+        String.format("%16d %14d %10d  Ltest/RoundTrip;", 192, 8, 4)));
+    assertTrue(summary, summary.contains(
+        String.format("%16d %14d %10d  test/Log.run()V:42", 144, 6, 3)));
+    assertTrue(summary, summary.contains("<unknown site>"));
+  }
+
+  public void testNewWriterContinuesAnExistingLog() throws IOException {
+    int typeId = TypeRegistry.idOf("Ltest/Continued;");
+    EventLogWriter first = new EventLogWriter(directory, "log", 64 << 10, 1);
+    first.sampleAllocations(batch(typeId, -1, 2));
+    first.close();
+    // A segment with a longer prefix must not be mistaken for one of ours.
+    assertTrue(new File(directory,
+        EventLogWriter.segmentName("log-other", 7)).createNewFile());
+
+    EventLogWriter second = new EventLogWriter(directory, "log", 64 << 10, 1);
+    second.sampleAllocations(batch(typeId, -1, 1));
+    second.close();
+
+    File[] segments = segments();
+    assertEquals(3, segments.length);
+    assertEquals(EventLogWriter.segmentName("log", 0),
+        segments[0].getName());
+    assertEquals(EventLogWriter.segmentName("log", 1),
+        segments[1].getName());
+    // The first run's segment is neither truncated nor counted against the
+    // second writer's limit of one segment.
+    assertTrue(read(segments[0]).startsWith("2 events"));
+    assertTrue(read(segments[1]).startsWith("1 events"));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link EventRing} and how {@link AsyncDispatcher} grows it.
+ */
+public class EventRingTest extends TestCase {
+  private static boolean offer(EventRing ring, int typeId) {
+    return ring.offer(typeId, -1, -1, -1, 16, 1.0, 0, null, false);
+  }
+
+  public void testOfferFailsWhenFull() {
+    EventRing ring = new EventRing(Thread.currentThread(), 4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(offer(ring, i));
+    }
+    assertFalse(offer(ring, 4));
+    assertEquals(0, ring.dropped());
+
+    ring.release(ring.head() + 1);
+    assertTrue(offer(ring, 4));
+    assertEquals(4, ring.typeIds[ring.index(ring.tail() - 1)]);
+  }
+
+  public void testGrowRetiresTheFullRing() {
+    EventRing ring = AsyncDispatcher.register(Thread.currentThread());
+    assertFalse(ring.isOrphaned());
+    EventRing grown = AsyncDispatcher.grow(ring);
+    assertEquals(2 * ring.capacity(), grown.capacity());
+    assertTrue(ring.isOrphaned());
+    assertFalse(grown.isOrphaned());
+  }
+
+  public void testRingsStopGrowing() {
+    EventRing ring = AsyncDispatcher.register(Thread.currentThread());
+    while (true) {
+      EventRing grown = AsyncDispatcher.grow(ring);
+      if (grown == ring) {
+        break;
+      }
+      ring = grown;
+    }
+    assertFalse(ring.isOrphaned());
+    assertEquals(4096, ring.capacity());
+    ring.countDrop();
+    assertEquals(1, ring.dropped());
+  }
+}
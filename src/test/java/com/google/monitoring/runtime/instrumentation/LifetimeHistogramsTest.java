@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LifetimeHistograms}.
+ */
+public class LifetimeHistogramsTest extends TestCase {
+  public void testBucketsArePowersOfTwo() {
+    assertEquals(0, LifetimeHistograms.bucketOf(-5));
+    assertEquals(0, LifetimeHistograms.bucketOf(0));
+    assertEquals(1, LifetimeHistograms.bucketOf(1));
+    assertEquals(2, LifetimeHistograms.bucketOf(2));
+    assertEquals(2, LifetimeHistograms.bucketOf(3));
+    assertEquals(3, LifetimeHistograms.bucketOf(4));
+    assertEquals(11, LifetimeHistograms.bucketOf(1024));
+    assertEquals(10, LifetimeHistograms.bucketOf(1023));
+  }
+
+  public void testLongLifetimesShareTheLastBucket() {
+    int last = LifetimeHistograms.BUCKETS - 1;
+    long lastLowerBound = LifetimeHistograms.bucketLowerBoundNanos(last);
+    assertEquals(last, LifetimeHistograms.bucketOf(lastLowerBound));
+    assertEquals(last - 1, LifetimeHistograms.bucketOf(lastLowerBound - 1));
+    assertEquals(last, LifetimeHistograms.bucketOf(Long.MAX_VALUE));
+  }
+
+  public void testLowerBoundsAreTheFirstLifetimeInEachBucket() {
+    assertEquals(0, LifetimeHistograms.bucketLowerBoundNanos(0));
+    for (int bucket = 1; bucket < LifetimeHistograms.BUCKETS; bucket++) {
+      long lowerBound = LifetimeHistograms.bucketLowerBoundNanos(bucket);
+      assertEquals(bucket, LifetimeHistograms.bucketOf(lowerBound));
+      assertEquals(bucket - 1, LifetimeHistograms.bucketOf(lowerBound - 1));
+    }
+  }
+
+  public void testTotalsAndPercentiles() {
+    long[] histogram = new long[LifetimeHistograms.BUCKETS];
+    // 90 objects died within 2-4ns, 10 within 1-2ms.
+    histogram[LifetimeHistograms.bucketOf(3)] = 90;
+    histogram[LifetimeHistograms.bucketOf(1500000)] = 10;
+    LifetimeHistograms histograms = new LifetimeHistograms(
+        new long[][] { new long[LifetimeHistograms.BUCKETS], histogram });
+
+    assertEquals(2, histograms.size());
+    assertEquals(0, histograms.getTotal(0));
+    assertEquals(-1, histograms.getPercentileNanos(0, 0.5));
+    assertEquals(100, histograms.getTotal(1));
+    assertEquals(4, histograms.getPercentileNanos(1, 0.5));
+    assertEquals(4, histograms.getPercentileNanos(1, 0.9));
+    assertEquals(1L << 21, histograms.getPercentileNanos(1, 0.95));
+
+    histograms.getHistogram(1)[0] = 1000;
+    assertEquals(100, histograms.getTotal(1));
+  }
+
+  public void testPercentileInTheLastBucketIsUnbounded() {
+    long[] histogram = new long[LifetimeHistograms.BUCKETS];
+    histogram[LifetimeHistograms.BUCKETS - 1] = 1;
+    LifetimeHistograms histograms =
+        new LifetimeHistograms(new long[][] { histogram });
+    assertEquals(Long.MAX_VALUE, histograms.getPercentileNanos(0, 0.5));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LiveHeap}, fed through the recorder with a made-up
+ * {@link Instrumentation} that sizes every object at 16 bytes.
+ */
+public class LiveHeapTest extends TestCase {
+  private Instrumentation previous;
+  private long previousInterval;
+  private int typeId;
+  private int site;
+
+  // The tracked object, while the test keeps it alive.
+  private Object tracked;
+
+  @Override protected void setUp() {
+    previous = AllocationRecorder.getInstrumentation();
+    previousInterval = AllocationRecorder.getSamplingInterval();
+    AllocationRecorder.setInstrumentation(
+        AllocationRecorderTest.fixedSizeInstrumentation(16));
+    AllocationRecorder.setSamplingInterval(0);
+    LiveHeap.setEnabled(true);
+    typeId = TypeRegistry.idOf("test/" + getName());
+    site = AllocationSites.register("test/LiveHeap", getName(), "()V", 1, 0);
+  }
+
+  @Override protected void tearDown() {
+    LiveHeap.setEnabled(false);
+    LiveHeap.setMaxTracked(LiveHeap.DEFAULT_MAX_TRACKED);
+    AllocationRecorder.setSamplingInterval(previousInterval);
+    AllocationRecorder.setInstrumentation(previous);
+  }
+
+  public void testCollectedObjectsAreSubtracted() throws Exception {
+    tracked = new Object();
+    AllocationRecorder.recordAllocation(-1, typeId, tracked, site);
+    assertEquals(1, LiveHeap.byType().getCount(typeId));
+    assertEquals(16, LiveHeap.byType().getBytes(typeId));
+    assertEquals(1, LiveHeap.bySite().getCount(site));
+    assertEquals(16, LiveHeap.bySite().getBytes(site));
+
+    tracked = null;
+    for (int i = 0; i < 500 && LiveHeap.bySite().getCount(site) != 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(0, LiveHeap.bySite().getCount(site));
+    assertEquals(0, LiveHeap.bySite().getBytes(site));
+    assertEquals(0, LiveHeap.byType().getCount(typeId));
+    assertEquals(0, LiveHeap.byType().getBytes(typeId));
+    assertEquals(1, LiveHeap.lifetimesBySite().getTotal(site));
+    assertEquals(1, LiveHeap.lifetimesByType().getTotal(typeId));
+  }
+
+  public void testSamplesOverTheBudgetAreCounted() {
+    LiveHeap.setMaxTracked(0);
+    long untracked = LiveHeap.getUntrackedCount();
+    tracked = new Object();
+    AllocationRecorder.recordAllocation(-1, typeId, tracked, site);
+    assertEquals(untracked + 1, LiveHeap.getUntrackedCount());
+    assertEquals(0, LiveHeap.byType().getCount(typeId));
+    assertEquals(0, LiveHeap.bySite().getCount(site));
+
+    LiveHeap.setMaxTracked(LiveHeap.DEFAULT_MAX_TRACKED);
+    AllocationRecorder.recordAllocation(-1, typeId, tracked, site);
+    assertEquals(untracked + 1, LiveHeap.getUntrackedCount());
+    assertEquals(1, LiveHeap.byType().getCount(typeId));
+  }
+}
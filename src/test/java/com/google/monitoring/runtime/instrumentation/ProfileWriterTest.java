@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ProfileWriter}, by decoding what it writes.
+ */
+public class ProfileWriterTest extends TestCase {
+  // A protobuf field: its number, and either its varint value or its bytes.
+  private static final class Field {
+    final int number;
+    final long value;
+    final byte[] bytes;
+
+    Field(int number, long value, byte[] bytes) {
+      this.number = number;
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+
+  // Decodes a message made of varint and length-delimited fields.
+  private static List<Field> decode(byte[] b) {
+    List<Field> fields = new ArrayList<Field>();
+    int[] p = { 0 };
+    while (p[0] < b.length) {
+      long tag = varint(b, p);
+      int number = (int) (tag >>> 3);
+      if ((tag & 7) == 0) {
+        fields.add(new Field(number, varint(b, p), null));
+      } else {
+        assertEquals(2, tag & 7);
+        int length = (int) varint(b, p);
+        fields.add(new Field(number, 0,
+            Arrays.copyOfRange(b, p[0], p[0] + length)));
+        p[0] += length;
+      }
+    }
+    return fields;
+  }
+
+  private static long varint(byte[] b, int[] p) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte next = b[p[0]++];
+      value |= (long) (next & 0x7F) << shift;
+      if (next >= 0) {
+        return value;
+      }
+    }
+  }
+
+  // Decodes a packed repeated varint field.
+  private static long[] packed(byte[] b) {
+    List<Long> values = new ArrayList<Long>();
+    int[] p = { 0 };
+    while (p[0] < b.length) {
+      values.add(varint(b, p));
+    }
+    long[] result = new long[values.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = values.get(i);
+    }
+    return result;
+  }
+
+  private static List<Field> only(List<Field> fields, int number) {
+    List<Field> result = new ArrayList<Field>();
+    for (Field field : fields) {
+      if (field.number == number) {
+        result.add(field);
+      }
+    }
+    return result;
+  }
+
+  private static long value(byte[] message, int number) {
+    List<Field> fields = only(decode(message), number);
+    assertEquals(1, fields.size());
+    return fields.get(0).value;
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in =
+        new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  public void testProfile() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProfileWriter writer = new ProfileWriter(out);
+    long inner = writer.location("inner", "com.example.Foo.alloc",
+        "Foo.java", 300);
+    long outer = writer.location("outer", "com.example.Foo.run", null, -1);
+    // Same key, same location; the other arguments are not looked at.
+    assertEquals(inner, writer.location("inner", "ignored", "ignored", 1));
+    // Another line of the same method shares its function.
+    long other = writer.location("other", "com.example.Foo.alloc",
+        "Foo.java", 301);
+    writer.sample(new long[] { inner, outer, other }, 2, 3, 1L << 40);
+    writer.sample(new long[] { other }, 1, 1, 24);
+    writer.finish();
+
+    List<Field> profile = decode(gunzip(out.toByteArray()));
+    List<String> strings = new ArrayList<String>();
+    for (Field field : only(profile, 6)) {
+      strings.add(new String(field.bytes, StandardCharsets.UTF_8));
+    }
+    assertEquals("", strings.get(0));
+
+    List<Field> sampleTypes = only(profile, 1);
+    assertEquals(2, sampleTypes.size());
+    assertEquals("alloc_objects",
+        strings.get((int) value(sampleTypes.get(0).bytes, 1)));
+    assertEquals("count",
+        strings.get((int) value(sampleTypes.get(0).bytes, 2)));
+    assertEquals("alloc_space",
+        strings.get((int) value(sampleTypes.get(1).bytes, 1)));
+    assertEquals("bytes",
+        strings.get((int) value(sampleTypes.get(1).bytes, 2)));
+
+    List<Field> samples = only(profile, 2);
+    assertEquals(2, samples.size());
+    List<Field> sample = decode(samples.get(0).bytes);
+    assertTrue(Arrays.equals(new long[] { inner, outer },
+        packed(only(sample, 1).get(0).bytes)));
+    assertTrue(Arrays.equals(new long[] { 3, 1L << 40 },
+        packed(only(sample, 2).get(0).bytes)));
+    sample = decode(samples.get(1).bytes);
+    assertTrue(Arrays.equals(new long[] { other },
+        packed(only(sample, 1).get(0).bytes)));
+    assertTrue(Arrays.equals(new long[] { 1, 24 },
+        packed(only(sample, 2).get(0).bytes)));
+
+    List<Field> locations = only(profile, 4);
+    assertEquals(3, locations.size());
+    List<Field> functions = only(profile, 5);
+    assertEquals(2, functions.size());
+    long[] lines = new long[locations.size() + 1];
+    long[] functionOf = new long[locations.size() + 1];
+    for (Field location : locations) {
+      int id = (int) value(location.bytes, 1);
+      byte[] line = only(decode(location.bytes), 4).get(0).bytes;
+      functionOf[id] = value(line, 1);
+      lines[id] = value(line, 2);
+    }
+    assertEquals(300, lines[(int) inner]);
+    assertEquals(0, lines[(int) outer]);
+    assertEquals(301, lines[(int) other]);
+    assertEquals(functionOf[(int) inner], functionOf[(int) other]);
+    assertTrue(functionOf[(int) inner] != functionOf[(int) outer]);
+
+    String[] names = new String[functions.size() + 1];
+    String[] files = new String[functions.size() + 1];
+    for (Field function : functions) {
+      int id = (int) value(function.bytes, 1);
+      names[id] = strings.get((int) value(function.bytes, 2));
+      assertEquals(value(function.bytes, 2), value(function.bytes, 3));
+      files[id] = strings.get((int) value(function.bytes, 4));
+    }
+    assertEquals("com.example.Foo.alloc", names[(int) functionOf[(int) inner]]);
+    assertEquals("Foo.java", files[(int) functionOf[(int) inner]]);
+    assertEquals("com.example.Foo.run", names[(int) functionOf[(int) outer]]);
+    assertEquals("", files[(int) functionOf[(int) outer]]);
+
+    assertEquals(1, only(profile, 9).size());
+    assertTrue(only(profile, 9).get(0).value > 0);
+  }
+}
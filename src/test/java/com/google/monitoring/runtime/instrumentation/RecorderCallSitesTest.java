@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RecorderCallSites}, through a probe linked the way the
+ * JVM links the <code>invokedynamic</code> instructions of rewritten code.
+ */
+public class RecorderCallSitesTest extends TestCase {
+  private static final String DESC =
+      "com/google/monitoring/runtime/instrumentation/"
+      + "RecorderCallSitesTest$Allocated";
+
+  static class Allocated {
+  }
+
+  private final Sampler sampler = new Sampler() {
+    @Override public void sampleAllocation(int count, String desc,
+        Object newObj, long size) {
+      if (newObj instanceof Allocated) {
+        samples++;
+      }
+    }
+  };
+
+  private int samples;
+  private Instrumentation previous;
+  private MethodHandle probe;
+
+  @Override protected void setUp() throws Exception {
+    previous = AllocationRecorder.getInstrumentation();
+    AllocationRecorder.setInstrumentation(
+        AllocationRecorderTest.fixedSizeInstrumentation(16));
+    probe = RecorderCallSites.bootstrap(MethodHandles.lookup(),
+        "recordAllocation",
+        MethodType.methodType(void.class, int.class, String.class,
+            Object.class)).dynamicInvoker();
+  }
+
+  @Override protected void tearDown() {
+    AllocationRecorder.removeSampler(sampler);
+    AllocationRecorder.setInstrumentation(previous);
+  }
+
+  private void allocate() throws Throwable {
+    probe.invokeExact(-1, DESC, (Object) new Allocated());
+  }
+
+  public void testProbeFollowsTheSamplers() throws Throwable {
+    AllocationRecorder.addSampler(sampler);
+    allocate();
+    assertEquals(1, samples);
+    AllocationRecorder.removeSampler(sampler);
+    allocate();
+    assertEquals(1, samples);
+    AllocationRecorder.addSampler(sampler);
+    allocate();
+    assertEquals(2, samples);
+  }
+
+  public void testDisabledProbeDoesNotCallTheRecorder() throws Throwable {
+    AllocationRecorder.addSampler(sampler);
+    try {
+      // The sampler is still registered, so only the no-op target can keep
+      // it from seeing this allocation.
+      RecorderCallSites.setEnabled(false);
+      allocate();
+      assertEquals(0, samples);
+      RecorderCallSites.setEnabled(true);
+      allocate();
+      assertEquals(1, samples);
+    } finally {
+      AllocationRecorder.listenersChanged();
+    }
+  }
+}
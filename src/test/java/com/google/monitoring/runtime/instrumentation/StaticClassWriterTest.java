@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the class hierarchy lookups of {@link StaticClassWriter}.
+ */
+public class StaticClassWriterTest extends TestCase {
+  private static final String PREFIX =
+      "com/google/monitoring/runtime/instrumentation/StaticClassWriterTest$";
+
+  static class Base { }
+  static class Left extends Base { }
+  static class Right extends Base { }
+
+  // Loads like the test's class loader, counting the class files read.
+  static class CountingLoader extends ClassLoader {
+    int reads;
+
+    CountingLoader() {
+      super(StaticClassWriterTest.class.getClassLoader());
+    }
+
+    @Override public InputStream getResourceAsStream(String name) {
+      reads++;
+      return super.getResourceAsStream(name);
+    }
+  }
+
+  private static StaticClassWriter writer(ClassLoader loader)
+      throws IOException {
+    InputStream in = StaticClassWriterTest.class.getResourceAsStream(
+        "StaticClassWriterTest$Base.class");
+    try {
+      return new StaticClassWriter(new ClassReader(in),
+          ClassWriter.COMPUTE_FRAMES, loader);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testCommonSuperClass() throws IOException {
+    StaticClassWriter writer = writer(new CountingLoader());
+    assertEquals(PREFIX + "Base",
+        writer.getCommonSuperClass(PREFIX + "Left", PREFIX + "Right"));
+    assertEquals(PREFIX + "Base",
+        writer.getCommonSuperClass(PREFIX + "Left", PREFIX + "Base"));
+    assertEquals("java/lang/Object",
+        writer.getCommonSuperClass(PREFIX + "Left", "java/lang/Runnable"));
+  }
+
+  public void testHierarchyIsCachedPerLoader() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    long reads = TransformStatistics.getHierarchyResourceReads();
+    long misses = TransformStatistics.getHierarchyCacheMisses();
+    writer(loader).getCommonSuperClass(PREFIX + "Left", PREFIX + "Right");
+    int loaderReads = loader.reads;
+    assertTrue(loaderReads > 0);
+    assertTrue(TransformStatistics.getHierarchyResourceReads() > reads);
+    assertTrue(TransformStatistics.getHierarchyCacheMisses() > misses);
+
+    // Another writer for the same loader only uses the cache.
+    reads = TransformStatistics.getHierarchyResourceReads();
+    misses = TransformStatistics.getHierarchyCacheMisses();
+    long hits = TransformStatistics.getHierarchyCacheHits();
+    writer(loader).getCommonSuperClass(PREFIX + "Left", PREFIX + "Right");
+    assertEquals(loaderReads, loader.reads);
+    assertEquals(reads, TransformStatistics.getHierarchyResourceReads());
+    assertEquals(misses, TransformStatistics.getHierarchyCacheMisses());
+    assertTrue(TransformStatistics.getHierarchyCacheHits() > hits);
+
+    // Another loader has a cache of its own.
+    CountingLoader other = new CountingLoader();
+    writer(other).getCommonSuperClass(PREFIX + "Left", PREFIX + "Right");
+    assertEquals(loaderReads, other.reads);
+  }
+
+  public void testClassesThatAsmCannotReadComeFromTheClass()
+      throws IOException {
+    // Past Java 8, the JDK's class files are too new for this ASM to
+    // parse, so the information has to come from the loaded classes.
+    StaticClassWriter writer = writer(new CountingLoader());
+    assertEquals("java/util/AbstractList",
+        writer.getCommonSuperClass("java/util/ArrayList",
+            "java/util/LinkedList"));
+    assertEquals("java/util/AbstractCollection",
+        writer.getCommonSuperClass("java/util/ArrayList",
+            "java/util/ArrayDeque"));
+  }
+
+  public void testMissingClassesAreCached() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    for (int i = 0; i < 2; i++) {
+      try {
+        writer(loader).getCommonSuperClass("test/Missing", PREFIX + "Base");
+        fail();
+      } catch (RuntimeException expected) {
+      }
+    }
+    // One read for test/Missing and one for Base; none the second time.
+    assertEquals(2, loader.reads);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.WeakReference;
+
+import junit.framework.TestCase;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Tests for {@link TypeRegistry}.
+ */
+public class TypeRegistryTest extends TestCase {
+  // Defines a class with the given internal name and only a default
+  // constructor in a class loader of its own, so that it can be unloaded.
+  private static Class<?> defineClass(String name) {
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object",
+        null);
+    MethodVisitor mv =
+        cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>",
+        "()V", false);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(1, 1);
+    mv.visitEnd();
+    cw.visitEnd();
+    final byte[] bytes = cw.toByteArray();
+    return new ClassLoader(null) {
+      Class<?> define() {
+        return defineClass(null, bytes, 0, bytes.length);
+      }
+    }.define();
+  }
+
+  public void testIdsAreStable() {
+    int id = TypeRegistry.idOf("test/Stable");
+    assertEquals(id, TypeRegistry.idOf("test/Stable"));
+    assertEquals("test/Stable", TypeRegistry.descriptorOf(id));
+    assertTrue(id < TypeRegistry.size());
+    assertTrue(id != TypeRegistry.idOf("test/Other"));
+  }
+
+  public void testClassesWithTheSameNameShareAnId() {
+    Class<?> a = defineClass("test/Shared");
+    Class<?> b = defineClass("test/Shared");
+    assertNotSame(a, b);
+    assertEquals(TypeInfo.of(a).typeId(), TypeInfo.of(b).typeId());
+    assertEquals(TypeRegistry.idOf("test/Shared"), TypeInfo.of(b).typeId());
+  }
+
+  public void testIdsOfUnloadedClassesAreNotReused() throws Exception {
+    // An object of a class that is then unloaded, while the live heap still
+    // holds data for its type.
+    Class<?> unloaded = defineClass("test/Unloaded");
+    int id = TypeInfo.of(unloaded).typeId();
+    LiveHeap.track(unloaded.newInstance(), id, -1, 1, 16);
+    WeakReference<Class<?>> ref = new WeakReference<Class<?>>(unloaded);
+    unloaded = null;
+    for (int i = 0; i < 100 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      String name = "test/Loaded" + i;
+      int newId = TypeInfo.of(defineClass(name)).typeId();
+      assertTrue(name + " reused the ID of test/Unloaded", newId != id);
+      assertEquals(0, LiveHeap.byType().getCount(newId));
+    }
+    assertEquals("test/Unloaded", TypeRegistry.descriptorOf(id));
+  }
+}
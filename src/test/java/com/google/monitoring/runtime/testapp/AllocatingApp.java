@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.testapp;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.Sampler;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An application for AgentStartupTest to run under the agent.  It lives
+ * outside the agent's package, whose classes the agent never rewrites, and
+ * allocates in every way the agent instruments.
+ */
+public class AllocatingApp {
+  public static void main(String[] args) {
+    final AtomicLong samples = new AtomicLong();
+    AllocationRecorder.addSampler(new Sampler() {
+      @Override public void sampleAllocation(int count, String desc,
+          Object newObj, long size) {
+        samples.incrementAndGet();
+      }
+    });
+    Object[] sink = new Object[8];
+    for (int i = 0; i < 1000; i++) {
+      sink[0] = new StringBuilder();
+      sink[1] = new int[i % 7];
+      sink[2] = new String[2][i % 3];
+      sink[3] = new long[2][3][];
+      sink[4] = Array.newInstance(int.class, 3);
+      sink[5] = Array.newInstance(byte.class, 2, 2);
+      sink[6] = ((int[]) sink[1]).clone();
+    }
+    System.out.println("samples=" + samples.get());
+  }
+}
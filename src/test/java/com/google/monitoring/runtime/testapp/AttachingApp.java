@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.testapp;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.Sampler;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An application for AgentStartupTest that loads the agent into itself.
+ * It is given the agent jar and the arguments of each load, and after each
+ * one prints how many allocations the sampler saw and whether the
+ * allocating code contains recorder probes.
+ */
+public class AttachingApp {
+  public static void main(String[] args) throws Exception {
+    String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    Class<?> vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+    Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+    Method loadAgent =
+        vmClass.getMethod("loadAgent", String.class, String.class);
+    try {
+      for (int i = 1; i < args.length; i++) {
+        loadAgent.invoke(vm, args[0], args[i]);
+        // Only touches the agent's classes once they are on the boot class
+        // path.
+        Session.report(args[i]);
+      }
+    } finally {
+      vmClass.getMethod("detach").invoke(vm);
+    }
+  }
+
+  static class Session {
+    static final AtomicLong samples = new AtomicLong();
+
+    static {
+      AllocationRecorder.addSampler(new Sampler() {
+        @Override public void sampleAllocation(int count, String desc,
+            Object newObj, long size) {
+          samples.incrementAndGet();
+        }
+      });
+    }
+
+    static void report(String agentArgs) throws Exception {
+      samples.set(0);
+      Allocations.run();
+      System.out.println(agentArgs + ": samples=" + samples.get() +
+          " probes=" + hasProbes(Allocations.class));
+    }
+
+    // Retransforms the class with a transformer of our own added after the
+    // agent's, and checks whether the bytes it is given call the recorder.
+    static boolean hasProbes(Class<?> cls) throws Exception {
+      Method getInstrumentation =
+          AllocationRecorder.class.getDeclaredMethod("getInstrumentation");
+      getInstrumentation.setAccessible(true);
+      Instrumentation inst = (Instrumentation) getInstrumentation.invoke(null);
+      final String[] classFile = new String[1];
+      ClassFileTransformer capture = new ClassFileTransformer() {
+        @Override public byte[] transform(ClassLoader loader, String name,
+            Class<?> classBeingRedefined, ProtectionDomain domain,
+            byte[] bytes) {
+          classFile[0] = new String(bytes, StandardCharsets.ISO_8859_1);
+          return null;
+        }
+      };
+      inst.addTransformer(capture, true);
+      try {
+        inst.retransformClasses(cls);
+      } finally {
+        inst.removeTransformer(capture);
+      }
+      return classFile[0].contains(
+          "com/google/monitoring/runtime/instrumentation/AllocationRecorder");
+    }
+  }
+
+  static class Allocations {
+    static void run() {
+      Object[] sink = new Object[8];
+      for (int i = 0; i < 1000; i++) {
+        sink[0] = new StringBuilder();
+        sink[1] = new int[i % 7];
+        sink[2] = new String[2][i % 3];
+        sink[3] = new long[2][3][];
+        sink[4] = Array.newInstance(int.class, 3);
+        sink[5] = Array.newInstance(byte.class, 2, 2);
+        sink[6] = ((int[]) sink[1]).clone();
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.testapp;
+
+/**
+ * Classes for ConstructorInstrumenterTest to instrument.  They live outside
+ * the agent's package, whose classes the agent never rewrites.
+ */
+public class Constructed {
+  public static class First {
+  }
+
+  public static class Second {
+  }
+
+  /** Has a constructor with a branch, and so a stack map frame, and a local. */
+  public static class Branching {
+    public final int value;
+
+    public Branching() {
+      int v = 0;
+      if (System.nanoTime() != 0) {
+        v = 1;
+      }
+      value = v;
+    }
+  }
+}